@@ -16,9 +16,6 @@ import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 class AesCrypt {
-    private final byte[] key;
-    private final byte[] iv;
-
     protected final SecretKeySpec skeySpec;
     protected final AlgorithmParameterSpec paramSpec;
     protected Cipher cipher;
@@ -38,10 +35,9 @@ class AesCrypt {
             throw new DecodingException(e);
         }
 
-        this.key = Arrays.copyOf(key, key.length);
-        this.iv = Arrays.copyOf(iv, iv.length);
-        this.skeySpec = new SecretKeySpec(this.key, "AES");
-        this.paramSpec = new IvParameterSpec(this.iv);
+        // the specs copy key and iv themselves
+        this.skeySpec = new SecretKeySpec(key, "AES");
+        this.paramSpec = new IvParameterSpec(iv);
     }
 
     public byte[] encrypt(byte[] rawData, int length) throws GeneralSecurityException {
@@ -51,16 +47,29 @@ class AesCrypt {
         return this.cipher.doFinal(tempData);
     }
 
-    public byte[] decrypt(byte[] rawData, int length) throws DecodingException {
-        byte[] encrypted = rawData;
-
-        if (length != 0) {
-            encrypted = Arrays.copyOf(rawData, length);
-        }
-
+    /**
+     * Decrypts {@code length} bytes of the input into the output. Input and output may be the same array to decrypt in
+     * place.
+     * 
+     * @param input
+     *            the encrypted data.
+     * @param inputOffset
+     *            the offset of the encrypted data in the input.
+     * @param length
+     *            the number of bytes to decrypt.
+     * @param output
+     *            the buffer for the decrypted data.
+     * @param outputOffset
+     *            the offset in the output where the decrypted data is stored.
+     * @return the number of bytes stored in the output.
+     * @throws DecodingException
+     *             if the data could not be decrypted.
+     */
+    public int decrypt(byte[] input, int inputOffset, int length, byte[] output, int outputOffset)
+            throws DecodingException {
         try {
             cipher.init(Cipher.DECRYPT_MODE, skeySpec, paramSpec);
-            return cipher.doFinal(encrypted);
+            return cipher.doFinal(input, inputOffset, length, output, outputOffset);
         } catch (GeneralSecurityException e) {
             throw new DecodingException(e);
         }
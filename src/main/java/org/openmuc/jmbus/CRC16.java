@@ -12,12 +12,14 @@ import java.nio.ByteBuffer;
  */
 class CRC16 {
 
-    private static byte[] computeCrc(byte[] bytes, int poly, int initialValue, int xorValue) {
+    private static byte[] computeCrc(byte[] bytes, int offset, int length, int poly, int initialValue,
+            int xorValue) {
         int i;
         int crcVal = initialValue;
         byte[] crc = new byte[2];
 
-        for (byte b : bytes) {
+        for (int j = offset; j < offset + length; j++) {
+            byte b = bytes[j];
             for (i = 0x80; i != 0; i >>= 1) {
                 if ((crcVal & 0x8000) != 0) {
                     crcVal = (crcVal << 1) ^ poly;
@@ -46,7 +48,22 @@ class CRC16 {
      * @return the CRC16 result.
      */
     public static byte[] calculateCrc16(byte[] bytes) {
-        return computeCrc(bytes, 0x3D65, 0x0000, 0xFFFF);
+        return calculateCrc16(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Computes the CRC16 according EN13757 over a part of the given array.
+     * 
+     * @param bytes
+     *            the array containing the data to be checked.
+     * @param offset
+     *            the offset of the data.
+     * @param length
+     *            the length of the data.
+     * @return the CRC16 result.
+     */
+    public static byte[] calculateCrc16(byte[] bytes, int offset, int length) {
+        return computeCrc(bytes, offset, length, 0x3D65, 0x0000, 0xFFFF);
     }
 
     /**
@@ -8,6 +8,7 @@ package org.openmuc.jmbus;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
@@ -17,7 +18,10 @@ import java.util.List;
 
 import org.openmuc.jmbus.MBusMessage.MessageType;
 import org.openmuc.jmbus.VerboseMessage.MessageDirection;
+import org.openmuc.jmbus.transportlayer.ReplayBuilder;
 import org.openmuc.jmbus.transportlayer.SerialBuilder;
+import org.openmuc.jmbus.transportlayer.SerialTransportLayer;
+import org.openmuc.jmbus.transportlayer.SimulatedBuilder;
 import org.openmuc.jmbus.transportlayer.TcpBuilder;
 import org.openmuc.jmbus.transportlayer.TransportLayer;
 
@@ -32,12 +36,18 @@ import org.openmuc.jmbus.transportlayer.TransportLayer;
  */
 public class MBusConnection implements AutoCloseable {
 
-    private static final int START_BYTE = 0x68;
-    private static final int STOP_BYTE = 0x16;
-    private static final int SINGLE_CHARACTER = 0xe5;
+    static final int START_BYTE = 0x68;
+    static final int STOP_BYTE = 0x16;
+    static final int SINGLE_CHARACTER = 0xe5;
 
     // 261 is the maximum size of a long frame
-    private static final int MAX_MESSAGE_SIZE = 261;
+    static final int MAX_MESSAGE_SIZE = 261;
+
+    static final int DEFAULT_BAUD_RATE = 2400;
+
+    // CI fields 0xb8 to 0xbf switch to 300, 600, ..., 38400 baud
+    private static final int CI_BAUD_RATE_300 = 0xb8;
+    private static final int CI_BAUD_RATE_38400 = 0xbf;
 
     private final byte[] outputBuffer = new byte[MAX_MESSAGE_SIZE];
 
@@ -54,6 +64,10 @@ public class MBusConnection implements AutoCloseable {
 
     private final TransportLayer transportLayer;
 
+    // negotiated baud rate per primary address, 0 for the baud rate of the line
+    private final int[] baudRates = new int[251];
+    private int lineBaudRate;
+
     /**
      * Creates an M-Bus Service Access Point that is used to read meters.
      * 
@@ -373,8 +387,172 @@ public class MBusConnection implements AutoCloseable {
         frameCountBits[primaryAddress] = true;
     }
 
+    /**
+     * Switches the communication with a meter to the fastest baud rate it supports. Same as
+     * {@link #negotiateBaudRate(int, int)} with a maximum of 38400 baud.
+     * 
+     * @param primaryAddress
+     *            the primary address of the meter.
+     * @return the baud rate the meter communicates with from now on.
+     * @throws IOException
+     *             if the connection is not to a serial line or if the meter does not answer at either baud rate after a
+     *             failed switch.
+     */
+    public int negotiateBaudRate(int primaryAddress) throws IOException {
+        return negotiateBaudRate(primaryAddress, baudRateForCi(CI_BAUD_RATE_38400));
+    }
+
+    /**
+     * Switches the communication with a meter to the fastest baud rate it supports up to a maximum.
+     * <p>
+     * Starting at the maximum, the meter is asked to switch to every standard baud rate above its current one (SND_UD
+     * with CI 0xb8 to 0xbf) until it acknowledges. A meter ignores a baud rate it does not support, so every rejected
+     * baud rate costs one timeout. After an acknowledgement the serial line is switched and the meter is checked with a
+     * SND_NKE. If it does not answer the line is switched back and the next lower baud rate is tried.
+     * </p>
+     * <p>
+     * The result is remembered for the meter. Every later request to its primary address switches the line to its baud
+     * rate first, requests to other meters and to the addresses 0xfd to 0xff are sent at the baud rate the line had
+     * before the first negotiation. Switching is only possible on a serial line which is not recorded to a capture
+     * file.
+     * </p>
+     * 
+     * @param primaryAddress
+     *            the primary address of the meter.
+     * @param maxBaudRate
+     *            the highest baud rate to try, one of 300, 600, ..., 38400.
+     * @return the baud rate the meter communicates with from now on.
+     * @throws IOException
+     *             if the connection is not to a serial line or if the meter does not answer at either baud rate after a
+     *             failed switch.
+     */
+    public int negotiateBaudRate(int primaryAddress, int maxBaudRate) throws IOException {
+        SerialTransportLayer serialLine = serialLine(primaryAddress);
+        int maxCi = ciForBaudRate(maxBaudRate);
+        if (maxCi < 0) {
+            throw new IllegalArgumentException("Baud rate must be one of 300, 600, ..., 38400.");
+        }
+        if (lineBaudRate == 0) {
+            lineBaudRate = serialLine.getBaudRate();
+        }
+
+        int currentBaudRate = getBaudRate(primaryAddress);
+        for (int ci = maxCi; ci >= CI_BAUD_RATE_300 && baudRateForCi(ci) > currentBaudRate; ci--) {
+            int baudRate = baudRateForCi(ci);
+            boolean acknowledged;
+            try {
+                sendLongMessage(primaryAddress, 0x73, ci, 0, new byte[0]);
+                acknowledged = receiveMessage().getMessageType() == MessageType.SINGLE_CHARACTER;
+            } catch (InterruptedIOException e) {
+                // the baud rate is not supported
+                continue;
+            } catch (IOException e) {
+                // a garbled answer, the meter may have switched anyway
+                acknowledged = true;
+            }
+
+            if (acknowledged) {
+                baudRates[primaryAddress] = baudRate;
+                if (answersLinkReset(primaryAddress)) {
+                    return baudRate;
+                }
+            }
+            baudRates[primaryAddress] = currentBaudRate == lineBaudRate ? 0 : currentBaudRate;
+            if (!answersLinkReset(primaryAddress)) {
+                throw new IOException("Meter " + primaryAddress + " answers neither at " + baudRate + " nor at "
+                        + currentBaudRate + " baud.");
+            }
+        }
+        return currentBaudRate;
+    }
+
+    /**
+     * Switches a meter back to the baud rate of the line it had before the first negotiation.
+     * 
+     * @param primaryAddress
+     *            the primary address of the meter.
+     * @throws IOException
+     *             if the connection is not to a serial line or if the meter does not acknowledge the switch.
+     */
+    public void resetBaudRate(int primaryAddress) throws IOException {
+        serialLine(primaryAddress);
+        if (baudRates[primaryAddress] == 0) {
+            return;
+        }
+
+        int ci = ciForBaudRate(lineBaudRate);
+        if (ci < 0) {
+            throw new IOException("Baud rate " + lineBaudRate + " of the line can not be switched to.");
+        }
+        sendLongMessage(primaryAddress, 0x73, ci, 0, new byte[0]);
+        MBusMessage mBusMessage = receiveMessage();
+        if (mBusMessage.getMessageType() != MessageType.SINGLE_CHARACTER) {
+            throw new IOException("Unable to change baud rate.");
+        }
+        baudRates[primaryAddress] = 0;
+    }
+
+    /**
+     * Returns the baud rate a meter is communicated with.
+     * 
+     * @param primaryAddress
+     *            the primary address of the meter.
+     * @return the negotiated baud rate of the meter, the baud rate of the line if none has been negotiated or
+     *         {@code 0} if the connection is not to a serial line.
+     */
+    public int getBaudRate(int primaryAddress) {
+        if (primaryAddress < 0 || primaryAddress > 250) {
+            throw new IllegalArgumentException("Primary address must be between 0 and 250.");
+        }
+        if (baudRates[primaryAddress] != 0) {
+            return baudRates[primaryAddress];
+        }
+        if (lineBaudRate != 0) {
+            return lineBaudRate;
+        }
+        if (transportLayer instanceof SerialTransportLayer) {
+            return ((SerialTransportLayer) transportLayer).getBaudRate();
+        }
+        return 0;
+    }
+
+    private SerialTransportLayer serialLine(int primaryAddress) throws IOException {
+        if (primaryAddress < 0 || primaryAddress > 250) {
+            throw new IllegalArgumentException("Primary address must be between 0 and 250.");
+        }
+        if (!(transportLayer instanceof SerialTransportLayer)) {
+            throw new IOException("Baud rate can only be changed on a serial line.");
+        }
+        return (SerialTransportLayer) transportLayer;
+    }
+
+    private boolean answersLinkReset(int primaryAddress) {
+        try {
+            linkReset(primaryAddress);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static int baudRateForCi(int ci) {
+        return 300 << (ci - CI_BAUD_RATE_300);
+    }
+
+    /*
+     * Returns the CI field switching to the baud rate, or -1 if it is no standard baud rate.
+     */
+    static int ciForBaudRate(int baudRate) {
+        for (int ci = CI_BAUD_RATE_300; ci <= CI_BAUD_RATE_38400; ci++) {
+            if (baudRateForCi(ci) == baudRate) {
+                return ci;
+            }
+        }
+        return -1;
+    }
+
     private void componentSelection(boolean deselect) throws IOException, InterruptedIOException {
-        byte[] ba = secondaryAddressAsBa();
+        byte[] ba = secondaryAddressAsBa(secondaryAddress);
 
         // send select/deselect
         if (deselect) {
@@ -391,7 +569,7 @@ public class MBusConnection implements AutoCloseable {
         }
     }
 
-    private byte[] secondaryAddressAsBa() {
+    static byte[] secondaryAddressAsBa(SecondaryAddress secondaryAddress) {
         byte[] ba = new byte[8];
 
         ((ByteBuffer) ByteBuffer.allocate(8)
@@ -403,40 +581,72 @@ public class MBusConnection implements AutoCloseable {
 
     private void sendShortMessage(int slaveAddr, int cmd) throws IOException {
         synchronized (os) {
-            outputBuffer[0] = 0x10;
-            outputBuffer[1] = (byte) (cmd);
-            outputBuffer[2] = (byte) (slaveAddr);
-            outputBuffer[3] = (byte) (cmd + slaveAddr);
-            outputBuffer[4] = STOP_BYTE;
+            switchBaudRate(slaveAddr);
+            int length = encodeShortMessage(outputBuffer, slaveAddr, cmd);
 
-            verboseMessage(MessageDirection.SEND, outputBuffer, 0, 5);
+            verboseMessage(MessageDirection.SEND, outputBuffer, 0, length);
 
-            os.write(outputBuffer, 0, 5);
+            os.write(outputBuffer, 0, length);
         }
     }
 
     void sendLongMessage(int slaveAddr, int controlField, int ci, int length, byte[] data) throws IOException {
         synchronized (os) {
-            outputBuffer[0] = START_BYTE;
-            outputBuffer[1] = (byte) (length + 3);
-            outputBuffer[2] = (byte) (length + 3);
-            outputBuffer[3] = START_BYTE;
-            outputBuffer[4] = (byte) controlField;
-            outputBuffer[5] = (byte) slaveAddr;
-            outputBuffer[6] = (byte) ci;
-
-            for (int i = 0; i < length; i++) {
-                outputBuffer[7 + i] = data[i];
-            }
+            switchBaudRate(slaveAddr);
+            int messageLength = encodeLongMessage(outputBuffer, slaveAddr, controlField, ci, length, data);
+
+            verboseMessage(MessageDirection.SEND, outputBuffer, 0, messageLength);
 
-            outputBuffer[length + 7] = computeChecksum(length, outputBuffer);
+            os.write(outputBuffer, 0, messageLength);
+        }
+    }
+
+    /*
+     * Switches the line to the baud rate negotiated with the meter, as soon as any has been negotiated.
+     */
+    private void switchBaudRate(int slaveAddr) throws IOException {
+        if (lineBaudRate == 0) {
+            return;
+        }
+        int baudRate = slaveAddr <= 250 && baudRates[slaveAddr] != 0 ? baudRates[slaveAddr] : lineBaudRate;
+        SerialTransportLayer serialLine = (SerialTransportLayer) transportLayer;
+        if (serialLine.getBaudRate() != baudRate) {
+            serialLine.changeBaudRate(baudRate);
+        }
+    }
 
-            outputBuffer[length + 8] = STOP_BYTE;
+    /*
+     * Writes a short frame into the buffer and returns its length.
+     */
+    static int encodeShortMessage(byte[] buffer, int slaveAddr, int cmd) {
+        buffer[0] = 0x10;
+        buffer[1] = (byte) (cmd);
+        buffer[2] = (byte) (slaveAddr);
+        buffer[3] = (byte) (cmd + slaveAddr);
+        buffer[4] = STOP_BYTE;
+        return 5;
+    }
 
-            verboseMessage(MessageDirection.SEND, outputBuffer, 0, length + 9);
+    /*
+     * Writes a long frame into the buffer, which must hold at least length + 9 bytes, and returns its length.
+     */
+    static int encodeLongMessage(byte[] buffer, int slaveAddr, int controlField, int ci, int length, byte[] data) {
+        buffer[0] = START_BYTE;
+        buffer[1] = (byte) (length + 3);
+        buffer[2] = (byte) (length + 3);
+        buffer[3] = START_BYTE;
+        buffer[4] = (byte) controlField;
+        buffer[5] = (byte) slaveAddr;
+        buffer[6] = (byte) ci;
 
-            os.write(outputBuffer, 0, length + 9);
+        for (int i = 0; i < length; i++) {
+            buffer[7 + i] = data[i];
         }
+
+        buffer[length + 7] = computeChecksum(length, buffer);
+
+        buffer[length + 8] = STOP_BYTE;
+        return length + 9;
     }
 
     private static byte computeChecksum(int length, byte[] oBuffer) {
@@ -552,4 +762,56 @@ public class MBusConnection implements AutoCloseable {
 
     }
 
+    /**
+     * Create a new builder for a connection which replays a capture file instead of talking to a meter.
+     * 
+     * @param replayFile
+     *            the capture file recorded by a connection built with a capture file.
+     * @return a new connection builder.
+     */
+    public static MBusReplayBuilder newReplayBuilder(File replayFile) {
+        return new MBusReplayBuilder(replayFile);
+    }
+
+    public static class MBusReplayBuilder extends ReplayBuilder<MBusConnection, MBusReplayBuilder> {
+
+        protected MBusReplayBuilder(File replayFile) {
+            super(replayFile);
+        }
+
+        @Override
+        public MBusConnection build() throws IOException {
+            MBusConnection mBusConnection = new MBusConnection(buildTransportLayer());
+            mBusConnection.open();
+            return mBusConnection;
+        }
+
+    }
+
+    /**
+     * Create a new builder for a connection to a simulated bus in the same process instead of real meters.
+     * 
+     * @param simulatedMBus
+     *            the simulated bus with its meters.
+     * @return a new connection builder.
+     */
+    public static MBusSimulatedBuilder newSimulatedBuilder(SimulatedMBus simulatedMBus) {
+        return new MBusSimulatedBuilder(simulatedMBus);
+    }
+
+    public static class MBusSimulatedBuilder extends SimulatedBuilder<MBusConnection, MBusSimulatedBuilder> {
+
+        protected MBusSimulatedBuilder(SimulatedMBus simulatedMBus) {
+            super(simulatedMBus);
+        }
+
+        @Override
+        public MBusConnection build() throws IOException {
+            MBusConnection mBusConnection = new MBusConnection(buildTransportLayer());
+            mBusConnection.open();
+            return mBusConnection;
+        }
+
+    }
+
 }
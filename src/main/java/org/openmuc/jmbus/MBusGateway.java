@@ -0,0 +1,442 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+import org.openmuc.jmbus.MBusMessage.MessageType;
+
+/**
+ * An M-Bus TCP gateway served by a {@link MBusMultiplexer}.
+ * <p>
+ * The requests are sent one after another, the next one after the meter answered the previous one or its timeout
+ * elapsed. All methods return immediately, the outcome is reported to the given listener. The frame count bit of
+ * every primary address is toggled like by {@link MBusConnection#read(int)}.
+ * </p>
+ */
+public class MBusGateway implements AutoCloseable {
+
+    // a long frame holds C, A and CI field and up to 252 bytes of data
+    private static final int MAX_DATA_LENGTH = 252;
+
+    private final MBusMultiplexer multiplexer;
+    private final SocketChannel channel;
+    private final int timeout;
+
+    // accessed by the thread of the multiplexer only
+    private SelectionKey key;
+    private boolean connected;
+    private IOException failure;
+    private final ConnectTimer connectTimer = new ConnectTimer();
+
+    private final Queue<Request> queue = new ArrayDeque<>();
+    private Request current;
+    private long busySince;
+    private final boolean[] frameCountBits = new boolean[254];
+
+    // written by the thread of the multiplexer only
+    private volatile long busyNanos;
+    private volatile long numberOfRequests;
+
+    private final byte[] outputBuffer = new byte[MBusConnection.MAX_MESSAGE_SIZE];
+    private final ByteBuffer out = ByteBuffer.wrap(outputBuffer);
+    private final ByteBuffer in = ByteBuffer.allocate(MBusConnection.MAX_MESSAGE_SIZE);
+
+    private enum Kind {
+        READ,
+        ACKNOWLEDGED,
+        LINK_RESET
+    }
+
+    MBusGateway(MBusMultiplexer multiplexer, SocketChannel channel, int timeout) {
+        this.multiplexer = multiplexer;
+        this.channel = channel;
+        this.timeout = timeout;
+        Arrays.fill(frameCountBits, true);
+        out.limit(0);
+    }
+
+    /**
+     * Reads a meter using primary addressing. Sends a data request (REQ_UD2) and reports the received RSP_UD frame.
+     *
+     * @param primaryAddress
+     *            the primary address of the meter to read. For secondary address use 0xfd.
+     * @param listener
+     *            the listener receiving the response.
+     */
+    public void read(int primaryAddress, MBusResponseListener listener) {
+        checkPrimaryAddress(primaryAddress);
+        submit(new Request(Kind.READ, primaryAddress, listener));
+    }
+
+    /**
+     * Writes to a meter using primary addressing. Sends a data send (SND_UD) and expects an acknowledgement.
+     *
+     * @param primaryAddress
+     *            the primary address of the meter to write. For secondary address use 0xfd.
+     * @param data
+     *            the data to send to the meter.
+     * @param listener
+     *            the listener receiving the acknowledgement.
+     */
+    public void write(int primaryAddress, byte[] data, MBusResponseListener listener) {
+        checkPrimaryAddress(primaryAddress);
+        if (data != null && data.length > MAX_DATA_LENGTH) {
+            throw new IllegalArgumentException("Data must not be longer than " + MAX_DATA_LENGTH + " bytes.");
+        }
+        submit(new Request(primaryAddress, 0x73, 0x51, data == null ? new byte[0] : data.clone(), listener));
+    }
+
+    /**
+     * Selects the meter with the specified secondary address. After this the meter can be read on primary address 0xfd.
+     *
+     * @param secondaryAddress
+     *            the secondary address of the meter to select.
+     * @param listener
+     *            the listener receiving the acknowledgement.
+     */
+    public void selectComponent(SecondaryAddress secondaryAddress, MBusResponseListener listener) {
+        submit(new Request(0xfd, 0x53, 0x52, MBusConnection.secondaryAddressAsBa(secondaryAddress), listener));
+    }
+
+    /**
+     * Deselects the meter with the specified secondary address.
+     *
+     * @param secondaryAddress
+     *            the secondary address of the meter to deselect.
+     * @param listener
+     *            the listener receiving the acknowledgement.
+     */
+    public void deselectComponent(SecondaryAddress secondaryAddress, MBusResponseListener listener) {
+        submit(new Request(0xfd, 0x53, 0x56, MBusConnection.secondaryAddressAsBa(secondaryAddress), listener));
+    }
+
+    /**
+     * Sends a SND_NKE message to reset the FCB (frame counter bit).
+     *
+     * @param primaryAddress
+     *            the primary address of the meter to reset.
+     * @param listener
+     *            the listener receiving the acknowledgement.
+     */
+    public void linkReset(int primaryAddress, MBusResponseListener listener) {
+        checkPrimaryAddress(primaryAddress);
+        submit(new Request(Kind.LINK_RESET, primaryAddress, listener));
+    }
+
+    /*
+     * Arguments are checked in the thread of the caller, the thread of the multiplexer serves every gateway.
+     */
+    private static void checkPrimaryAddress(int primaryAddress) {
+        if (primaryAddress < 0 || primaryAddress > 253) {
+            throw new IllegalArgumentException("Primary address must be between 0 and 253.");
+        }
+    }
+
+    /**
+     * Closes the connection to the gateway. Pending requests fail.
+     */
+    @Override
+    public void close() {
+        multiplexer.execute(new Runnable() {
+            @Override
+            public void run() {
+                fail(new IOException("Gateway connection is closed."));
+            }
+        });
+    }
+
+    private void submit(final Request request) {
+        boolean queued = multiplexer.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (failure != null) {
+                    notifyFailure(request, failure);
+                    return;
+                }
+                queue.add(request);
+                sendNext();
+            }
+        });
+        if (!queued) {
+            request.listener.requestFailed(new IOException("Multiplexer is closed."));
+        }
+    }
+
+    void register(Selector selector, boolean connected, int connectionTimeout) {
+        try {
+            this.key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+        } catch (ClosedChannelException e) {
+            fail(e);
+            return;
+        }
+
+        if (connected) {
+            this.connected = true;
+        }
+        else {
+            multiplexer.schedule(connectTimer, connectionTimeout);
+        }
+    }
+
+    void finishConnect() throws IOException {
+        if (!channel.finishConnect()) {
+            return;
+        }
+        multiplexer.cancel(connectTimer);
+        connected = true;
+        key.interestOps(SelectionKey.OP_READ);
+        sendNext();
+    }
+
+    void flush() throws IOException {
+        channel.write(out);
+        if (!out.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    void read() throws IOException {
+        if (channel.read(in) < 0) {
+            throw new EOFException("Connection closed by gateway.");
+        }
+        if (current == null) {
+            // late response to a request which timed out
+            in.clear();
+            return;
+        }
+
+        int first = in.get(0) & 0xff;
+        int length;
+        if (first == MBusConnection.SINGLE_CHARACTER) {
+            length = 1;
+        }
+        else if (first == MBusConnection.START_BYTE) {
+            if (in.position() < 2) {
+                return;
+            }
+            // the L field gives the quantity of the user data plus 3 (for C, A, CI)
+            length = (in.get(1) & 0xff) + 6;
+        }
+        else {
+            complete(null, new IOException(String.format("Received unknown message: %02X", first)));
+            return;
+        }
+
+        if (in.position() < length) {
+            return;
+        }
+
+        byte[] receivedBytes = Arrays.copyOf(in.array(), length);
+        try {
+            complete(decode(current, receivedBytes), null);
+        } catch (IOException e) {
+            complete(null, e);
+        }
+    }
+
+    /*
+     * Closes the connection and fails all pending requests.
+     */
+    void fail(IOException cause) {
+        if (failure != null) {
+            return;
+        }
+        failure = cause;
+        connected = false;
+
+        multiplexer.cancel(connectTimer);
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        multiplexer.removeGateway(this);
+
+        Request request = current;
+        current = null;
+        if (request != null) {
+            requestEnded();
+            multiplexer.cancel(request);
+            notifyFailure(request, cause);
+        }
+        while ((request = queue.poll()) != null) {
+            notifyFailure(request, cause);
+        }
+    }
+
+    private void sendNext() {
+        if (current != null || !connected || queue.isEmpty()) {
+            return;
+        }
+
+        current = queue.poll();
+        busySince = System.nanoTime();
+        // bytes received meanwhile belong to no request
+        in.clear();
+
+        out.clear();
+        out.limit(encode(current));
+        multiplexer.schedule(current, timeout);
+        try {
+            flush();
+            if (out.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private int encode(Request request) {
+        switch (request.kind) {
+        case READ:
+            int primaryAddress = request.primaryAddress;
+            int cmd = frameCountBits[primaryAddress] ? 0x7b : 0x5b;
+            frameCountBits[primaryAddress] = !frameCountBits[primaryAddress];
+            return MBusConnection.encodeShortMessage(outputBuffer, primaryAddress, cmd);
+        case LINK_RESET:
+            return MBusConnection.encodeShortMessage(outputBuffer, request.primaryAddress, 0x40);
+        default:
+            return MBusConnection.encodeLongMessage(outputBuffer, request.primaryAddress, request.controlField,
+                    request.ci, request.data.length, request.data);
+        }
+    }
+
+    private MBusMessage decode(Request request, byte[] receivedBytes) throws IOException {
+        MBusMessage message = MBusMessage.decode(receivedBytes, receivedBytes.length);
+
+        if (request.kind != Kind.READ) {
+            if (message.getMessageType() != MessageType.SINGLE_CHARACTER) {
+                throw new IOException("Received wrong kind of message. Expected SINGLE_CHARACTER but got: "
+                        + message.getMessageType());
+            }
+            if (request.kind == Kind.LINK_RESET) {
+                frameCountBits[request.primaryAddress] = true;
+            }
+            return message;
+        }
+
+        if (message.getMessageType() != MessageType.RSP_UD) {
+            throw new IOException(
+                    "Received wrong kind of message. Expected RSP_UD but got: " + message.getMessageType());
+        }
+        try {
+            message.getVariableDataResponse().decode();
+        } catch (DecodingException e) {
+            throw new IOException("Error decoding incoming RSP_UD message.", e);
+        }
+        return message;
+    }
+
+    private void complete(MBusMessage response, IOException cause) {
+        Request request = current;
+        current = null;
+        requestEnded();
+        in.clear();
+        multiplexer.cancel(request);
+
+        if (cause == null) {
+            try {
+                request.listener.responseReceived(response);
+            } catch (RuntimeException e) {
+                MBusMultiplexer.handleListenerException(e);
+            }
+        }
+        else {
+            notifyFailure(request, cause);
+        }
+        sendNext();
+    }
+
+    /*
+     * The bus is busy from sending a request until the response has been received or the request failed.
+     */
+    private void requestEnded() {
+        busyNanos += System.nanoTime() - busySince;
+        numberOfRequests++;
+    }
+
+    /*
+     * The time in nanoseconds the bus has been busy with requests.
+     */
+    long getBusyNanos() {
+        return busyNanos;
+    }
+
+    long getNumberOfRequests() {
+        return numberOfRequests;
+    }
+
+    private static void notifyFailure(Request request, IOException cause) {
+        try {
+            request.listener.requestFailed(cause);
+        } catch (RuntimeException e) {
+            MBusMultiplexer.handleListenerException(e);
+        }
+    }
+
+    private class Request extends MBusMultiplexer.Timer {
+
+        private final Kind kind;
+        private final int primaryAddress;
+        private final int controlField;
+        private final int ci;
+        private final byte[] data;
+        private final MBusResponseListener listener;
+
+        Request(Kind kind, int primaryAddress, MBusResponseListener listener) {
+            this.kind = kind;
+            this.primaryAddress = primaryAddress;
+            this.controlField = 0;
+            this.ci = 0;
+            this.data = null;
+            this.listener = listener;
+        }
+
+        Request(int primaryAddress, int controlField, int ci, byte[] data, MBusResponseListener listener) {
+            this.kind = Kind.ACKNOWLEDGED;
+            this.primaryAddress = primaryAddress;
+            this.controlField = controlField;
+            this.ci = ci;
+            this.data = data;
+            this.listener = listener;
+        }
+
+        @Override
+        void expired() {
+            if (current != this) {
+                return;
+            }
+            current = null;
+            requestEnded();
+            notifyFailure(this, new SocketTimeoutException("Timeout waiting for response."));
+            sendNext();
+        }
+    }
+
+    private class ConnectTimer extends MBusMultiplexer.Timer {
+
+        @Override
+        void expired() {
+            fail(new SocketTimeoutException("Connect timed out."));
+        }
+    }
+
+}
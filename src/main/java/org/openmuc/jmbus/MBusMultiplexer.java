@@ -0,0 +1,278 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the request/response exchanges with many M-Bus TCP gateways from a single thread.
+ * <p>
+ * Every gateway is connected through a non-blocking socket channel which is served by one selector loop. The frames
+ * are encoded and decoded like those of {@link MBusConnection}. The timeouts of the requests are kept in a
+ * {@link TimingWheel} with a resolution of 10 ms.
+ * </p>
+ * <p>
+ * The listeners are called by the thread of the multiplexer. They must not block, but may send further requests.
+ * </p>
+ *
+ * <pre>
+ * MBusMultiplexer multiplexer = new MBusMultiplexer();
+ * MBusGateway gateway = multiplexer.connect("192.168.0.10", 10001);
+ * gateway.read(5, responseListener);
+ * </pre>
+ */
+public class MBusMultiplexer implements AutoCloseable {
+
+    private static final int DEFAULT_CONNECTION_TIMEOUT = 10000;
+    private static final int DEFAULT_TIMEOUT = 500;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // written while holding the lock of the tasks, so that no task is queued after the last one has run
+    private volatile boolean closed;
+
+    // accessed by the thread of the multiplexer only
+    private final TimingWheel wheel = new TimingWheel(0);
+    private final long startNanos = System.nanoTime();
+    private final List<MBusGateway> gateways = new ArrayList<>();
+
+    /**
+     * A timeout which is scheduled in the timing wheel of the multiplexer.
+     */
+    abstract static class Timer extends TimingWheel.Timeout {
+
+        abstract void expired();
+    }
+
+    /**
+     * Creates a new multiplexer and starts its thread.
+     *
+     * @throws IOException
+     *             if the selector could not be opened.
+     */
+    public MBusMultiplexer() throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "M-Bus multiplexer");
+        this.thread.start();
+    }
+
+    /**
+     * Connects to a gateway with a connection timeout of 10 s and a response timeout of 500 ms. Requests are sent once
+     * the connection has been established.
+     *
+     * @param hostAddress
+     *            the host address of the gateway.
+     * @param port
+     *            the TCP port of the gateway.
+     * @return the gateway.
+     * @throws IOException
+     *             if the host address could not be resolved or the connection could not be started.
+     */
+    public MBusGateway connect(String hostAddress, int port) throws IOException {
+        return connect(hostAddress, port, DEFAULT_CONNECTION_TIMEOUT, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Connects to a gateway. Requests are sent once the connection has been established.
+     *
+     * @param hostAddress
+     *            the host address of the gateway.
+     * @param port
+     *            the TCP port of the gateway.
+     * @param connectionTimeout
+     *            the time in MILLIS the connection may take to be established.
+     * @param timeout
+     *            the time in MILLIS a meter may take to answer a request.
+     * @return the gateway.
+     * @throws IOException
+     *             if the host address could not be resolved or the connection could not be started.
+     */
+    public MBusGateway connect(String hostAddress, int port, final int connectionTimeout, int timeout)
+            throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Multiplexer is closed.");
+        }
+
+        InetAddress hostname = InetAddress.getByName(hostAddress);
+        final SocketChannel channel = SocketChannel.open();
+        final boolean connected;
+        try {
+            channel.configureBlocking(false);
+            // requests are single short frames, do not delay them
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            connected = channel.connect(new InetSocketAddress(hostname, port));
+        } catch (IOException e) {
+            channel.close();
+            throw new IOException("Connecting to " + hostname + ":" + port + " failed.", e);
+        }
+
+        final MBusGateway gateway = new MBusGateway(this, channel, timeout);
+        boolean queued = execute(new Runnable() {
+            @Override
+            public void run() {
+                gateways.add(gateway);
+                gateway.register(selector, connected, connectionTimeout);
+            }
+        });
+        if (!queued) {
+            channel.close();
+            throw new IllegalStateException("Multiplexer is closed.");
+        }
+        return gateway;
+    }
+
+    /**
+     * Stops the thread of the multiplexer and closes all gateways. Pending requests fail.
+     */
+    @Override
+    public void close() {
+        synchronized (tasks) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        selector.wakeup();
+
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /*
+     * Runs the task on the thread of the multiplexer. Returns false if the multiplexer is closed, the task is never run
+     * then.
+     */
+    boolean execute(Runnable task) {
+        synchronized (tasks) {
+            if (closed) {
+                return false;
+            }
+            tasks.add(task);
+        }
+        selector.wakeup();
+        return true;
+    }
+
+    void schedule(Timer timer, int timeout) {
+        long deadline = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(timeout);
+        // round up, the timer must not expire early
+        wheel.schedule(timer, (deadline + TICK_NANOS - 1) / TICK_NANOS);
+    }
+
+    void cancel(Timer timer) {
+        wheel.cancel(timer);
+    }
+
+    void removeGateway(MBusGateway gateway) {
+        gateways.remove(gateway);
+    }
+
+    /*
+     * Listeners must not stop the multiplexer.
+     */
+    static void handleListenerException(RuntimeException e) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+    }
+
+    private void loop() {
+        List<TimingWheel.Timeout> expired = new ArrayList<>();
+        try {
+            while (!closed) {
+                long nextTick = (wheel.getCurrentTick() + 1) * TICK_NANOS;
+                long wait = nextTick - (System.nanoTime() - startNanos);
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+
+                runTasks();
+                processSelectedKeys();
+                advanceWheel(expired);
+            }
+        } catch (IOException e) {
+            // the selector failed, nothing can be served anymore
+        } finally {
+            synchronized (tasks) {
+                closed = true;
+            }
+            // the last tasks, no other task can be queued anymore
+            runTasks();
+            IOException cause = new IOException("Multiplexer is closed.");
+            for (MBusGateway gateway : new ArrayList<>(gateways)) {
+                gateway.fail(cause);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                handleListenerException(e);
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        for (SelectionKey key : selector.selectedKeys()) {
+            MBusGateway gateway = (MBusGateway) key.attachment();
+            try {
+                if (key.isValid() && key.isConnectable()) {
+                    gateway.finishConnect();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    gateway.flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    gateway.read();
+                }
+            } catch (IOException e) {
+                gateway.fail(e);
+            }
+        }
+        selector.selectedKeys().clear();
+    }
+
+    private void advanceWheel(List<TimingWheel.Timeout> expired) {
+        long targetTick = (System.nanoTime() - startNanos) / TICK_NANOS;
+        while (wheel.getCurrentTick() < targetTick) {
+            wheel.tick(expired);
+        }
+
+        for (TimingWheel.Timeout timeout : expired) {
+            ((Timer) timeout).expired();
+        }
+        expired.clear();
+    }
+
+}
@@ -0,0 +1,45 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus;
+
+import java.io.IOException;
+import java.util.EventListener;
+
+/**
+ * Receives the outcome of a readout of all meters of an {@link MBusSegmentedGateway}.
+ */
+public interface MBusReadoutListener extends EventListener {
+
+    /**
+     * Callback, when a meter answered. The variable data structure of the RSP_UD frame has been decoded already.
+     *
+     * @param segment
+     *            the index of the segment of the meter.
+     * @param primaryAddress
+     *            the primary address of the meter.
+     * @param response
+     *            the response of the meter.
+     */
+    void meterRead(int segment, int primaryAddress, MBusMessage response);
+
+    /**
+     * Callback, when reading a meter failed.
+     *
+     * @param segment
+     *            the index of the segment of the meter.
+     * @param primaryAddress
+     *            the primary address of the meter.
+     * @param cause
+     *            the cause of the failure, a {@link java.net.SocketTimeoutException} on timeout.
+     */
+    void meterFailed(int segment, int primaryAddress, IOException cause);
+
+    /**
+     * Callback, when every meter of the readout has been read or failed.
+     */
+    void readoutFinished();
+
+}
@@ -0,0 +1,33 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus;
+
+import java.io.IOException;
+import java.util.EventListener;
+
+/**
+ * Receives the outcome of a request sent through an {@link MBusGateway}.
+ */
+public interface MBusResponseListener extends EventListener {
+
+    /**
+     * Callback, when the meter answered the request. The variable data structure of an RSP_UD frame has been decoded
+     * already.
+     *
+     * @param response
+     *            the response of the meter.
+     */
+    void responseReceived(MBusMessage response);
+
+    /**
+     * Callback, when the request failed, e.g. because it timed out or the connection to the gateway broke.
+     *
+     * @param cause
+     *            the cause of the failure, an {@link java.io.InterruptedIOException} on timeout.
+     */
+    void requestFailed(IOException cause);
+
+}
@@ -0,0 +1,315 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A gateway with several independent M-Bus segments, each of them reachable on its own TCP port.
+ * <p>
+ * Every segment is an {@link MBusGateway} of the same {@link MBusMultiplexer}, so the segments are driven concurrently
+ * by the thread of the multiplexer while the requests on a segment follow each other without a gap. A meter belongs to
+ * the segment it is wired to. {@link #readAll(MBusReadoutListener)} reads every meter once, all segments at the same
+ * time, and takes as long as the segment with the most bus time.
+ * </p>
+ * <p>
+ * The utilisation of a segment is the share of time its bus has been busy with requests, from sending a request until
+ * its response has been received or it failed. An unevenly loaded gateway shows as segments with a high utilisation
+ * next to idle ones.
+ * </p>
+ *
+ * <pre>
+ * MBusSegmentedGateway gateway = new MBusSegmentedGateway(multiplexer, "192.168.0.10", 10001, 10002, 10003);
+ * gateway.addMeter(0, 5);
+ * gateway.addMeter(1, 5);
+ * gateway.readAll(readoutListener);
+ * </pre>
+ */
+public class MBusSegmentedGateway implements AutoCloseable {
+
+    private static final int DEFAULT_CONNECTION_TIMEOUT = 10000;
+    private static final int DEFAULT_TIMEOUT = 500;
+
+    private final MBusGateway[] segments;
+    private final List<TreeSet<Integer>> meters = new ArrayList<>();
+
+    private long resetNanos;
+    private final long[] busyNanosAtReset;
+    private final long[] requestsAtReset;
+
+    /**
+     * Connects to all segments of a gateway with a connection timeout of 10 s and a response timeout of 500 ms.
+     *
+     * @param multiplexer
+     *            the multiplexer serving the segments.
+     * @param hostAddress
+     *            the host address of the gateway.
+     * @param ports
+     *            the TCP ports of the segments, the index of a port is the index of its segment.
+     * @throws IOException
+     *             if the host address could not be resolved or a connection could not be started.
+     */
+    public MBusSegmentedGateway(MBusMultiplexer multiplexer, String hostAddress, int... ports) throws IOException {
+        this(multiplexer, hostAddress, ports, DEFAULT_CONNECTION_TIMEOUT, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Connects to all segments of a gateway.
+     *
+     * @param multiplexer
+     *            the multiplexer serving the segments.
+     * @param hostAddress
+     *            the host address of the gateway.
+     * @param ports
+     *            the TCP ports of the segments, the index of a port is the index of its segment.
+     * @param connectionTimeout
+     *            the time in MILLIS the connection to a segment may take to be established.
+     * @param timeout
+     *            the time in MILLIS a meter may take to answer a request.
+     * @throws IOException
+     *             if the host address could not be resolved or a connection could not be started.
+     */
+    public MBusSegmentedGateway(MBusMultiplexer multiplexer, String hostAddress, int[] ports, int connectionTimeout,
+            int timeout) throws IOException {
+        if (ports.length == 0) {
+            throw new IllegalArgumentException("A gateway needs at least one segment.");
+        }
+
+        this.segments = new MBusGateway[ports.length];
+        try {
+            for (int i = 0; i < ports.length; i++) {
+                segments[i] = multiplexer.connect(hostAddress, ports[i], connectionTimeout, timeout);
+                meters.add(new TreeSet<Integer>());
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        this.busyNanosAtReset = new long[ports.length];
+        this.requestsAtReset = new long[ports.length];
+        resetStatistics();
+    }
+
+    public int getNumberOfSegments() {
+        return segments.length;
+    }
+
+    /**
+     * Returns a segment, e.g. to write to a meter or to select one by its secondary address.
+     *
+     * @param segment
+     *            the index of the segment.
+     * @return the segment.
+     */
+    public MBusGateway getSegment(int segment) {
+        return segments[segment];
+    }
+
+    /**
+     * Adds a meter to the readout of the gateway.
+     *
+     * @param segment
+     *            the index of the segment the meter is wired to.
+     * @param primaryAddress
+     *            the primary address of the meter on its segment.
+     * @return the gateway itself.
+     */
+    public synchronized MBusSegmentedGateway addMeter(int segment, int primaryAddress) {
+        if (primaryAddress < 0 || primaryAddress > 250) {
+            throw new IllegalArgumentException("Primary address must be between 0 and 250.");
+        }
+        meters.get(segment).add(primaryAddress);
+        return this;
+    }
+
+    /**
+     * Removes a meter from the readout of the gateway.
+     *
+     * @param segment
+     *            the index of the segment of the meter.
+     * @param primaryAddress
+     *            the primary address of the meter on its segment.
+     * @return {@code true} if the meter has been read by the gateway.
+     */
+    public synchronized boolean removeMeter(int segment, int primaryAddress) {
+        return meters.get(segment).remove(primaryAddress);
+    }
+
+    /**
+     * Returns the primary addresses of the meters of a segment in ascending order.
+     *
+     * @param segment
+     *            the index of the segment.
+     * @return the primary addresses.
+     */
+    public synchronized List<Integer> getMeters(int segment) {
+        return new ArrayList<>(meters.get(segment));
+    }
+
+    /**
+     * Reads a meter. Sends a data request (REQ_UD2) and reports the received RSP_UD frame.
+     *
+     * @param segment
+     *            the index of the segment of the meter.
+     * @param primaryAddress
+     *            the primary address of the meter on its segment.
+     * @param listener
+     *            the listener receiving the response.
+     */
+    public void read(int segment, int primaryAddress, MBusResponseListener listener) {
+        segments[segment].read(primaryAddress, listener);
+    }
+
+    /**
+     * Reads every meter of the gateway once. The requests of all segments are queued at once, each segment sends them
+     * one after another while the segments work in parallel. Returns immediately, the outcome is reported to the
+     * listener.
+     *
+     * @param listener
+     *            the listener receiving the responses.
+     */
+    public void readAll(final MBusReadoutListener listener) {
+        List<List<Integer>> readout = new ArrayList<>();
+        int numberOfMeters = 0;
+        synchronized (this) {
+            for (TreeSet<Integer> segmentMeters : meters) {
+                readout.add(new ArrayList<>(segmentMeters));
+                numberOfMeters += segmentMeters.size();
+            }
+        }
+
+        if (numberOfMeters == 0) {
+            listener.readoutFinished();
+            return;
+        }
+
+        AtomicInteger remaining = new AtomicInteger(numberOfMeters);
+        for (int segment = 0; segment < readout.size(); segment++) {
+            for (int primaryAddress : readout.get(segment)) {
+                segments[segment].read(primaryAddress,
+                        new ReadoutRequest(segment, primaryAddress, remaining, listener));
+            }
+        }
+    }
+
+    /**
+     * Returns the share of time the bus of a segment has been busy with requests since the statistics have been
+     * reset.
+     *
+     * @param segment
+     *            the index of the segment.
+     * @return the utilisation between 0 and 1.
+     */
+    public synchronized double getUtilisation(int segment) {
+        long elapsed = System.nanoTime() - resetNanos;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        long busy = segments[segment].getBusyNanos() - busyNanosAtReset[segment];
+        return Math.min(1.0, (double) busy / elapsed);
+    }
+
+    /**
+     * Returns the mean utilisation of all segments since the statistics have been reset. A gateway whose segments are
+     * all fully utilised has a utilisation of 1.
+     *
+     * @return the utilisation between 0 and 1.
+     */
+    public synchronized double getUtilisation() {
+        double sum = 0;
+        for (int i = 0; i < segments.length; i++) {
+            sum += getUtilisation(i);
+        }
+        return sum / segments.length;
+    }
+
+    /**
+     * Returns the number of requests per second all segments together have completed since the statistics have been
+     * reset, including the failed ones.
+     *
+     * @return the requests per second.
+     */
+    public synchronized double getRequestRate() {
+        long elapsed = System.nanoTime() - resetNanos;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        long requests = 0;
+        for (int i = 0; i < segments.length; i++) {
+            requests += segments[i].getNumberOfRequests() - requestsAtReset[i];
+        }
+        return requests * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    /**
+     * Starts a new period for the utilisation and the request rate.
+     */
+    public synchronized void resetStatistics() {
+        resetNanos = System.nanoTime();
+        for (int i = 0; i < segments.length; i++) {
+            busyNanosAtReset[i] = segments[i].getBusyNanos();
+            requestsAtReset[i] = segments[i].getNumberOfRequests();
+        }
+    }
+
+    /**
+     * Closes the connections to all segments. Pending requests fail.
+     */
+    @Override
+    public void close() {
+        for (MBusGateway segment : segments) {
+            if (segment != null) {
+                segment.close();
+            }
+        }
+    }
+
+    private static class ReadoutRequest implements MBusResponseListener {
+
+        private final int segment;
+        private final int primaryAddress;
+        private final AtomicInteger remaining;
+        private final MBusReadoutListener listener;
+
+        ReadoutRequest(int segment, int primaryAddress, AtomicInteger remaining, MBusReadoutListener listener) {
+            this.segment = segment;
+            this.primaryAddress = primaryAddress;
+            this.remaining = remaining;
+            this.listener = listener;
+        }
+
+        @Override
+        public void responseReceived(MBusMessage response) {
+            try {
+                listener.meterRead(segment, primaryAddress, response);
+            } finally {
+                countDown();
+            }
+        }
+
+        @Override
+        public void requestFailed(IOException cause) {
+            try {
+                listener.meterFailed(segment, primaryAddress, cause);
+            } finally {
+                countDown();
+            }
+        }
+
+        private void countDown() {
+            if (remaining.decrementAndGet() == 0) {
+                listener.readoutFinished();
+            }
+        }
+    }
+
+}
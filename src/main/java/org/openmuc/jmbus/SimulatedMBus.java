@@ -0,0 +1,368 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openmuc.jmbus.transportlayer.SerialTransportLayer;
+import org.openmuc.jmbus.transportlayer.SimulatedTransportLayer;
+
+/**
+ * Transport layer to a simulated wired M-Bus with any number of {@link SimulatedMeter}s, which runs in the same process
+ * without any hardware.
+ * <p>
+ * The bus is meant to test polling throughput, secondary address scans and timeout policies against large meter
+ * populations. A connection to it is built with {@link MBusConnection#newSimulatedBuilder(SimulatedMBus)}. The frames
+ * written by the master are passed to every meter they are addressed to. Frames with a wrong checksum are ignored like
+ * on a real bus, so the master runs into its timeout.
+ * </p>
+ * <p>
+ * If several meters answer, their answers collide. Identical single characters merge into one. Any other collision is
+ * received as one long frame of the length of the longest answer whose length fields differ, so the master reads
+ * exactly one frame and fails to decode it.
+ * </p>
+ * <p>
+ * An answer becomes readable after the latency of the bus and the response delay of the meter. If the transmission is
+ * timed the transmission time of the request and the answer at the current baud rate is added. Errors are injected at
+ * random: an answer can get lost or one of its bytes can get corrupted.
+ * </p>
+ * <p>
+ * The bus starts at 2400 baud and its baud rate can be changed like the one of a serial port. A frame only reaches the
+ * meters which communicate at the baud rate of the bus.
+ * </p>
+ */
+public class SimulatedMBus extends SimulatedTransportLayer implements SerialTransportLayer {
+
+    private static final int SHORT_FRAME_START = 0x10;
+    private static final int SHORT_FRAME_LENGTH = 5;
+    private static final int LONG_FRAME_HEADER_LENGTH = 4;
+
+    // start, stop and parity bit
+    private static final int BITS_PER_BYTE = 11;
+
+    private final List<SimulatedMeter> meters = new ArrayList<>();
+    private final List<List<SimulatedMeter>> metersByPrimaryAddress = new ArrayList<>(251);
+    private final Random random;
+
+    private final byte[] frame = new byte[MBusConnection.MAX_MESSAGE_SIZE];
+    private int framePosition;
+
+    private int latency;
+    private int baudRate = MBusConnection.DEFAULT_BAUD_RATE;
+    private boolean transmissionTimed;
+    private double lossRate;
+    private double corruptionRate;
+
+    private long numberOfRequests;
+    private long numberOfCollisions;
+
+    /**
+     * Creates a new simulated bus without meters.
+     */
+    public SimulatedMBus() {
+        this(new Random());
+    }
+
+    /**
+     * Creates a new simulated bus without meters whose errors are injected reproducibly.
+     *
+     * @param seed
+     *            the seed of the random errors.
+     */
+    public SimulatedMBus(long seed) {
+        this(new Random(seed));
+    }
+
+    private SimulatedMBus(Random random) {
+        this.random = random;
+        for (int i = 0; i <= 250; i++) {
+            metersByPrimaryAddress.add(new ArrayList<SimulatedMeter>(1));
+        }
+    }
+
+    /**
+     * Attaches a meter to the bus.
+     *
+     * @param meter
+     *            the meter.
+     * @return the bus itself.
+     */
+    public synchronized SimulatedMBus addMeter(SimulatedMeter meter) {
+        meters.add(meter);
+        metersByPrimaryAddress.get(meter.getPrimaryAddress()).add(meter);
+        return this;
+    }
+
+    /**
+     * Detaches a meter from the bus.
+     *
+     * @param meter
+     *            the meter.
+     * @return {@code true} if the meter was attached.
+     */
+    public synchronized boolean removeMeter(SimulatedMeter meter) {
+        metersByPrimaryAddress.get(meter.getPrimaryAddress()).remove(meter);
+        return meters.remove(meter);
+    }
+
+    public synchronized List<SimulatedMeter> getMeters() {
+        return new ArrayList<>(meters);
+    }
+
+    /**
+     * Sets the time between the end of a request and the begin of the answer. Default is {@code 0}.
+     *
+     * @param latency
+     *            the latency in MILLIS.
+     * @return the bus itself.
+     */
+    public synchronized SimulatedMBus setLatency(int latency) {
+        if (latency < 0) {
+            throw new IllegalArgumentException("Latency must be >= 0.");
+        }
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * Sets whether the transmission time of the frames at the current baud rate is added to the delay of an answer.
+     * Default is {@code false}, the frames are transmitted without delay.
+     *
+     * @param transmissionTimed
+     *            {@code true} to delay the answers by the transmission time.
+     * @return the bus itself.
+     */
+    public synchronized SimulatedMBus setTransmissionTimed(boolean transmissionTimed) {
+        this.transmissionTimed = transmissionTimed;
+        return this;
+    }
+
+    @Override
+    public synchronized int getBaudRate() {
+        return baudRate;
+    }
+
+    @Override
+    public synchronized void changeBaudRate(int baudRate) throws IOException {
+        if (baudRate <= 0) {
+            throw new IOException("Baud rate " + baudRate + " is not supported.");
+        }
+        this.baudRate = baudRate;
+        // a frame being received is garbled by the change
+        framePosition = 0;
+    }
+
+    /**
+     * Sets the probability that the answer of a meter gets lost. The meter has handled the request anyway, e.g. it has
+     * toggled its FCB. Default is {@code 0}.
+     *
+     * @param lossRate
+     *            the probability between 0 and 1.
+     * @return the bus itself.
+     */
+    public synchronized SimulatedMBus setLossRate(double lossRate) {
+        this.lossRate = checkProbability(lossRate);
+        return this;
+    }
+
+    /**
+     * Sets the probability that one bit of an answer is flipped. Default is {@code 0}.
+     *
+     * @param corruptionRate
+     *            the probability between 0 and 1.
+     * @return the bus itself.
+     */
+    public synchronized SimulatedMBus setCorruptionRate(double corruptionRate) {
+        this.corruptionRate = checkProbability(corruptionRate);
+        return this;
+    }
+
+    private static double checkProbability(double probability) {
+        if (!(probability >= 0 && probability <= 1)) {
+            throw new IllegalArgumentException("Probability must be between 0 and 1.");
+        }
+        return probability;
+    }
+
+    /**
+     * Returns the number of valid frames the master has sent.
+     *
+     * @return the number of requests.
+     */
+    public synchronized long getNumberOfRequests() {
+        return numberOfRequests;
+    }
+
+    /**
+     * Returns the number of requests several meters have answered.
+     *
+     * @return the number of collisions.
+     */
+    public synchronized long getNumberOfCollisions() {
+        return numberOfCollisions;
+    }
+
+    @Override
+    protected synchronized void opened() {
+        framePosition = 0;
+    }
+
+    @Override
+    protected synchronized void received(byte[] b, int off, int len) {
+        long now = System.nanoTime();
+        for (int i = off; i < off + len; i++) {
+            frame[framePosition++] = b[i];
+            int frameLength = frameLength();
+            if (frameLength < 0) {
+                resynchronize();
+            }
+            else if (frameLength == framePosition) {
+                handleFrame(frameLength, now);
+                framePosition = 0;
+            }
+        }
+    }
+
+    /*
+     * Returns the length of the frame in the buffer, 0 if it is not known yet, or -1 if the buffer holds no frame.
+     */
+    private int frameLength() {
+        int start = frame[0] & 0xff;
+        if (start == SHORT_FRAME_START) {
+            return SHORT_FRAME_LENGTH;
+        }
+        if (start != MBusConnection.START_BYTE) {
+            return -1;
+        }
+        if (framePosition < LONG_FRAME_HEADER_LENGTH) {
+            return 0;
+        }
+        if (frame[1] != frame[2] || (frame[3] & 0xff) != MBusConnection.START_BYTE || (frame[1] & 0xff) < 3) {
+            return -1;
+        }
+        return (frame[1] & 0xff) + 6;
+    }
+
+    private void resynchronize() {
+        // drop bytes until the buffer starts with a frame again
+        do {
+            System.arraycopy(frame, 1, frame, 0, --framePosition);
+        } while (framePosition > 0 && frameLength() < 0);
+    }
+
+    private void handleFrame(int frameLength, long now) {
+        int checksumOffset = frameLength == SHORT_FRAME_LENGTH ? 1 : 4;
+        int checksum = 0;
+        for (int i = checksumOffset; i < frameLength - 2; i++) {
+            checksum += frame[i];
+        }
+        if (frame[frameLength - 2] != (byte) checksum || (frame[frameLength - 1] & 0xff) != MBusConnection.STOP_BYTE) {
+            return;
+        }
+        numberOfRequests++;
+
+        int controlField = frame[checksumOffset] & 0xff;
+        int address = frame[checksumOffset + 1] & 0xff;
+        int ci = frameLength == SHORT_FRAME_LENGTH ? -1 : frame[6] & 0xff;
+        int dataOffset = 7;
+        int dataLength = frameLength - 9;
+
+        List<byte[]> answers = new ArrayList<>(1);
+        int responseDelay = 0;
+        boolean selection = address == 0xfd && (ci == 0x52 || ci == 0x56);
+        for (SimulatedMeter meter : addressedMeters(address, selection)) {
+            if (meter.getBaudRate() != baudRate) {
+                continue;
+            }
+            byte[] answer;
+            if (selection) {
+                answer = meter.handleSelection(ci, frame, dataOffset, dataLength);
+            }
+            else {
+                answer = meter.handle(controlField, address, ci, frame, dataOffset, dataLength);
+            }
+            if (answer != null && address != 0xff && !(lossRate > 0 && random.nextDouble() < lossRate)) {
+                answers.add(answer);
+                responseDelay = Math.max(responseDelay, meter.getResponseDelay());
+            }
+        }
+        if (answers.isEmpty()) {
+            return;
+        }
+
+        byte[] answer = answers.size() == 1 ? answers.get(0) : collide(answers);
+        if (corruptionRate > 0 && random.nextDouble() < corruptionRate) {
+            answer = corrupt(answer);
+        }
+
+        long delay = TimeUnit.MILLISECONDS.toNanos(latency + responseDelay) + transmissionTime(frameLength)
+                + transmissionTime(answer.length);
+        respond(answer, now + delay);
+    }
+
+    private List<SimulatedMeter> addressedMeters(int address, boolean selection) {
+        if (address <= 250) {
+            return metersByPrimaryAddress.get(address);
+        }
+        if (selection) {
+            return meters;
+        }
+        List<SimulatedMeter> addressedMeters = new ArrayList<>(1);
+        for (SimulatedMeter meter : meters) {
+            if (meter.isAddressed(address)) {
+                addressedMeters.add(meter);
+            }
+        }
+        return addressedMeters;
+    }
+
+    private byte[] collide(List<byte[]> answers) {
+        int length = 0;
+        for (byte[] answer : answers) {
+            length = Math.max(length, answer.length);
+        }
+        if (length == 1) {
+            return answers.get(0);
+        }
+        numberOfCollisions++;
+
+        // the bus is pulled to zero by any meter sending a zero bit
+        byte[] collision = new byte[length];
+        Arrays.fill(collision, (byte) 0xff);
+        for (byte[] answer : answers) {
+            for (int i = 0; i < answer.length; i++) {
+                collision[i] &= answer[i];
+            }
+        }
+        collision[0] = MBusConnection.START_BYTE;
+        collision[1] = (byte) (length - 6);
+        collision[2] = (byte) ~(length - 6);
+        collision[3] = MBusConnection.START_BYTE;
+        collision[length - 1] = MBusConnection.STOP_BYTE;
+        return collision;
+    }
+
+    private byte[] corrupt(byte[] answer) {
+        byte[] corrupted = answer.clone();
+        // the frame structure stays intact, so the master reads exactly one frame
+        int index = corrupted.length == 1 ? 0 : 4 + random.nextInt(corrupted.length - 5);
+        corrupted[index] ^= 1 << random.nextInt(8);
+        return corrupted;
+    }
+
+    private long transmissionTime(int numberOfBytes) {
+        if (!transmissionTimed) {
+            return 0;
+        }
+        return TimeUnit.SECONDS.toNanos(numberOfBytes * BITS_PER_BYTE) / baudRate;
+    }
+
+}
@@ -0,0 +1,336 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A virtual wired M-Bus slave which is attached to a {@link SimulatedMBus}.
+ * <p>
+ * The meter answers SND_NKE, REQ_UD2, SND_UD and the selection by its secondary address like a real slave. Every
+ * REQ_UD2 with a toggled frame count bit (FCB) is answered with the next of the configured telegrams, a repeated FCB
+ * repeats the last telegram. All telegrams but the last signal that more records follow, so a master reading all of
+ * them has to read until {@link VariableDataStructure#moreRecordsFollow()} is {@code false}. After the last telegram
+ * the first one follows again. A SND_NKE or an application reset starts with the first telegram.
+ * </p>
+ */
+public class SimulatedMeter {
+
+    // L field of 255 minus C, A, CI, the long header and the DIF signaling more records
+    private static final int MAX_RECORDS_LENGTH = 255 - 3 - 12 - 1;
+
+    private static final int SND_NKE = 0x00;
+    private static final int SND_UD = 0x03;
+    private static final int REQ_UD2 = 0x0b;
+
+    private static final int CI_RESET = 0x50;
+    private static final int CI_DATA_SEND = 0x51;
+    private static final int CI_SELECTION = 0x52;
+    private static final int CI_DESELECTION = 0x56;
+    private static final int CI_BAUD_RATE_300 = 0xb8;
+    private static final int CI_BAUD_RATE_38400 = 0xbf;
+
+    private static final byte[] SINGLE_CHARACTER = { (byte) MBusConnection.SINGLE_CHARACTER };
+
+    private final int primaryAddress;
+    private final SecondaryAddress secondaryAddress;
+    private final List<byte[]> telegrams = new ArrayList<>();
+    private int status;
+    private int responseDelay;
+    private int maxBaudRate = MBusConnection.DEFAULT_BAUD_RATE;
+
+    private int baudRate = MBusConnection.DEFAULT_BAUD_RATE;
+    private boolean selected;
+    private boolean frameCountBitValid;
+    private boolean frameCountBit;
+    private int telegramIndex;
+    private int accessNumber;
+    private byte[] receivedData;
+    private int numberOfResponses;
+
+    /**
+     * Creates a new simulated meter without telegrams. A meter without telegrams answers with a telegram without data
+     * records.
+     *
+     * @param primaryAddress
+     *            the primary address between 0 and 250. Several meters may share an address, they collide when the
+     *            address is read.
+     * @param secondaryAddress
+     *            the secondary address with a long header, which is sent in the header of every telegram.
+     */
+    public SimulatedMeter(int primaryAddress, SecondaryAddress secondaryAddress) {
+        if (primaryAddress < 0 || primaryAddress > 250) {
+            throw new IllegalArgumentException("Primary address must be between 0 and 250.");
+        }
+        if (secondaryAddress.asByteArray().length != 8) {
+            throw new IllegalArgumentException("Secondary address must have a length of 8 bytes.");
+        }
+        this.primaryAddress = primaryAddress;
+        this.secondaryAddress = secondaryAddress;
+    }
+
+    /**
+     * Adds a telegram which the meter answers a REQ_UD2 with.
+     *
+     * @param dataRecords
+     *            the encoded data records of the telegram, at most 239 bytes.
+     * @return the meter itself.
+     */
+    public synchronized SimulatedMeter addTelegram(byte[] dataRecords) {
+        if (dataRecords.length > MAX_RECORDS_LENGTH) {
+            throw new IllegalArgumentException(
+                    "Data records must not be longer than " + MAX_RECORDS_LENGTH + " bytes.");
+        }
+        telegrams.add(dataRecords.clone());
+        return this;
+    }
+
+    /**
+     * Sets the status byte sent in the header of the telegrams. Default is {@code 0}.
+     *
+     * @param status
+     *            the status byte.
+     * @return the meter itself.
+     */
+    public synchronized SimulatedMeter setStatus(int status) {
+        this.status = status & 0xff;
+        return this;
+    }
+
+    /**
+     * Sets a delay the answers of this meter take longer than the latency of the bus, e.g. to simulate a slow meter.
+     * Default is {@code 0}.
+     *
+     * @param responseDelay
+     *            the delay in MILLIS.
+     * @return the meter itself.
+     */
+    public synchronized SimulatedMeter setResponseDelay(int responseDelay) {
+        if (responseDelay < 0) {
+            throw new IllegalArgumentException("Response delay must be >= 0.");
+        }
+        this.responseDelay = responseDelay;
+        return this;
+    }
+
+    /**
+     * Sets the highest baud rate the meter switches to when asked to. Requests for higher rates are ignored. Default is
+     * {@code 2400}.
+     *
+     * @param maxBaudRate
+     *            a baud rate between 300 and 38400.
+     * @return the meter itself.
+     */
+    public synchronized SimulatedMeter setMaxBaudRate(int maxBaudRate) {
+        if (MBusConnection.ciForBaudRate(maxBaudRate) < 0) {
+            throw new IllegalArgumentException("Baud rate must be one of 300, 600, ..., 38400.");
+        }
+        this.maxBaudRate = maxBaudRate;
+        return this;
+    }
+
+    /**
+     * Returns the baud rate the meter currently communicates with. Only frames sent at this rate reach the meter.
+     *
+     * @return the baud rate.
+     */
+    public synchronized int getBaudRate() {
+        return baudRate;
+    }
+
+    public int getPrimaryAddress() {
+        return primaryAddress;
+    }
+
+    public SecondaryAddress getSecondaryAddress() {
+        return secondaryAddress;
+    }
+
+    /**
+     * Returns whether the meter is selected by its secondary address and therefore answers requests to address 253.
+     *
+     * @return {@code true} if the meter is selected.
+     */
+    public synchronized boolean isSelected() {
+        return selected;
+    }
+
+    /**
+     * Returns the user data of the last SND_UD with CI 0x51 sent to the meter.
+     *
+     * @return the data or {@code null} if nothing has been written yet.
+     */
+    public synchronized byte[] getReceivedData() {
+        return receivedData == null ? null : receivedData.clone();
+    }
+
+    /**
+     * Returns the number of telegrams the meter has answered with, including repetitions.
+     *
+     * @return the number of RSP_UD telegrams.
+     */
+    public synchronized int getNumberOfResponses() {
+        return numberOfResponses;
+    }
+
+    synchronized int getResponseDelay() {
+        return responseDelay;
+    }
+
+    /*
+     * Returns whether a frame to the given address is meant for this meter, the selection itself excluded.
+     */
+    synchronized boolean isAddressed(int address) {
+        return address == primaryAddress || address == 0xfe || address == 0xff || (address == 0xfd && selected);
+    }
+
+    /*
+     * Handles a selection or deselection, which every meter on the bus receives, and returns the answer or null.
+     */
+    synchronized byte[] handleSelection(int ci, byte[] frame, int offset, int length) {
+        boolean matches = length == 8 && matches(frame, offset);
+        if (ci == CI_SELECTION) {
+            // a selection with a different address deselects the meter
+            selected = matches;
+            return matches ? SINGLE_CHARACTER : null;
+        }
+        if (matches && selected) {
+            selected = false;
+            return SINGLE_CHARACTER;
+        }
+        return null;
+    }
+
+    /*
+     * Handles a frame to an address this meter is addressed by and returns the answer or null.
+     */
+    synchronized byte[] handle(int controlField, int address, int ci, byte[] frame, int offset, int length) {
+        switch (controlField & 0x0f) {
+        case SND_NKE:
+            reset();
+            if (address == 0xfd) {
+                selected = false;
+            }
+            return SINGLE_CHARACTER;
+        case REQ_UD2:
+            return respondUserData(controlField);
+        case SND_UD:
+            if (ci == CI_RESET) {
+                telegramIndex = 0;
+            }
+            else if (ci == CI_DATA_SEND) {
+                receivedData = Arrays.copyOfRange(frame, offset, offset + length);
+            }
+            else if (ci >= CI_BAUD_RATE_300 && ci <= CI_BAUD_RATE_38400) {
+                return switchBaudRate(MBusConnection.baudRateForCi(ci));
+            }
+            return SINGLE_CHARACTER;
+        default:
+            // REQ_UD1 and the other functions are not supported
+            return null;
+        }
+    }
+
+    /*
+     * The acknowledgement is sent at the previous rate, the meter switches afterwards.
+     */
+    private byte[] switchBaudRate(int newBaudRate) {
+        if (newBaudRate > maxBaudRate) {
+            return null;
+        }
+        baudRate = newBaudRate;
+        return SINGLE_CHARACTER;
+    }
+
+    private void reset() {
+        frameCountBitValid = false;
+        telegramIndex = 0;
+    }
+
+    private byte[] respondUserData(int controlField) {
+        boolean frameCountValid = (controlField & 0x10) == 0x10;
+        boolean fcb = (controlField & 0x20) == 0x20;
+
+        int numberOfTelegrams = Math.max(1, telegrams.size());
+        boolean repetition = frameCountValid && frameCountBitValid && fcb == frameCountBit;
+        if (!repetition) {
+            if (frameCountValid && frameCountBitValid) {
+                telegramIndex = (telegramIndex + 1) % numberOfTelegrams;
+            }
+            accessNumber = (accessNumber + 1) & 0xff;
+        }
+        if (frameCountValid) {
+            frameCountBitValid = true;
+            frameCountBit = fcb;
+        }
+
+        numberOfResponses++;
+        byte[] dataRecords = telegrams.isEmpty() ? new byte[0] : telegrams.get(telegramIndex);
+        boolean moreRecordsFollow = telegramIndex < numberOfTelegrams - 1;
+        return encodeUserData(dataRecords, moreRecordsFollow);
+    }
+
+    private byte[] encodeUserData(byte[] dataRecords, boolean moreRecordsFollow) {
+        int userDataLength = 12 + dataRecords.length + (moreRecordsFollow ? 1 : 0);
+        byte[] frame = new byte[userDataLength + 9];
+
+        frame[0] = MBusConnection.START_BYTE;
+        frame[1] = (byte) (userDataLength + 3);
+        frame[2] = (byte) (userDataLength + 3);
+        frame[3] = MBusConnection.START_BYTE;
+        frame[4] = 0x08;
+        frame[5] = (byte) primaryAddress;
+        frame[6] = 0x72;
+
+        byte[] address = secondaryAddress.asByteArray();
+        System.arraycopy(address, 0, frame, 7, 8);
+        frame[15] = (byte) accessNumber;
+        frame[16] = (byte) status;
+        // the signature stays 0, the telegram is not encrypted
+        System.arraycopy(dataRecords, 0, frame, 19, dataRecords.length);
+        if (moreRecordsFollow) {
+            frame[19 + dataRecords.length] = 0x1f;
+        }
+
+        int checksum = 0;
+        for (int i = 4; i < frame.length - 2; i++) {
+            checksum += frame[i];
+        }
+        frame[frame.length - 2] = (byte) checksum;
+        frame[frame.length - 1] = MBusConnection.STOP_BYTE;
+        return frame;
+    }
+
+    /*
+     * Compares the address with a selection, in which every nibble of the ID and every byte of the other fields may
+     * be a wildcard of all ones.
+     */
+    private boolean matches(byte[] selection, int offset) {
+        byte[] address = secondaryAddress.asByteArray();
+        for (int i = 0; i < 4; i++) {
+            int selected = selection[offset + i];
+            if ((selected & 0x0f) != 0x0f && (selected & 0x0f) != (address[i] & 0x0f)) {
+                return false;
+            }
+            if ((selected & 0xf0) != 0xf0 && (selected & 0xf0) != (address[i] & 0xf0)) {
+                return false;
+            }
+        }
+        if ((selection[offset + 4] & selection[offset + 5]) != (byte) 0xff
+                && (selection[offset + 4] != address[4] || selection[offset + 5] != address[5])) {
+            return false;
+        }
+        for (int i = 6; i < 8; i++) {
+            if (selection[offset + i] != (byte) 0xff && selection[offset + i] != address[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,246 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * A virtual wireless M-Bus meter which synthesizes the telegrams transmitted to a simulated stick.
+ * <p>
+ * Every telegram carries a volume and a volume flow record whose values change from telegram to telegram. The
+ * telegrams are encoded in one of the {@link Format}s, encrypted telegrams are decoded with the key of the meter.
+ * </p>
+ */
+public class SimulatedWMBusMeter {
+
+    // the full frame of a compact meter is sent every this many telegrams
+    private static final int FULL_FRAME_INTERVAL = 8;
+
+    // DIF/VIF of the volume in liters and the volume flow in liters per hour
+    private static final byte[] RECORD_HEADERS = { 0x04, 0x13, 0x02, 0x3b };
+
+    private static final int CONTROL_FIELD = 0x44;
+    private static final int COMMUNICATION_CONTROL = 0x20;
+
+    private final SecondaryAddress secondaryAddress;
+    private final Format format;
+    private final byte[] key;
+
+    private int accessNumber;
+    private int sessionNumber;
+    private long volume;
+    private int flow;
+    private long numberOfTelegrams;
+
+    /**
+     * The encoding of the telegrams of a meter.
+     */
+    public enum Format {
+        /**
+         * Short header (CI 0x7A) without encryption.
+         */
+        PLAIN,
+        /**
+         * Short header (CI 0x7A) with AES-CBC encryption and the IV of mode 5.
+         */
+        AES_MODE_5,
+        /**
+         * Extended link layer (CI 0x8D) with AES-CTR encryption.
+         */
+        ELL_AES_CTR,
+        /**
+         * Extended link layer (CI 0x8D) without encryption, which sends compact frames (CI 0x79) carrying the values
+         * only. Every eighth telegram is a full frame (CI 0x78).
+         */
+        COMPACT
+    }
+
+    /**
+     * Creates a new simulated wireless meter.
+     *
+     * @param secondaryAddress
+     *            the link layer address of the meter, see {@link SecondaryAddress#newFromWMBusHeader(byte[], int)}.
+     * @param format
+     *            the encoding of the telegrams.
+     * @param key
+     *            the AES key of 16 bytes, only needed by encrypted formats.
+     */
+    public SimulatedWMBusMeter(SecondaryAddress secondaryAddress, Format format, byte[] key) {
+        if (secondaryAddress.isLongHeader()) {
+            throw new IllegalArgumentException("Secondary address must be a link layer address.");
+        }
+        if ((format == Format.AES_MODE_5 || format == Format.ELL_AES_CTR) && (key == null || key.length != 16)) {
+            throw new IllegalArgumentException("Encrypted formats need a key of 16 bytes.");
+        }
+        this.secondaryAddress = secondaryAddress;
+        this.format = format;
+        this.key = key == null ? null : key.clone();
+
+        // let the meters of a population start with different values
+        this.volume = (secondaryAddress.hashCode() & 0xffff) * 100L;
+        this.accessNumber = secondaryAddress.hashCode() & 0xff;
+    }
+
+    public SecondaryAddress getSecondaryAddress() {
+        return secondaryAddress;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the number of telegrams the meter has transmitted.
+     *
+     * @return the number of telegrams.
+     */
+    public synchronized long getNumberOfTelegrams() {
+        return numberOfTelegrams;
+    }
+
+    /**
+     * Synthesizes the next telegram of the meter.
+     *
+     * @return the telegram, starting with the length field.
+     */
+    public synchronized byte[] nextTelegram() {
+        accessNumber = (accessNumber + 1) & 0xff;
+        flow = (flow + 37) % 1000;
+        volume += flow;
+
+        byte[] records = new byte[10];
+        records[0] = RECORD_HEADERS[0];
+        records[1] = RECORD_HEADERS[1];
+        putLittleEndian(records, 2, volume, 4);
+        records[6] = RECORD_HEADERS[2];
+        records[7] = RECORD_HEADERS[3];
+        putLittleEndian(records, 8, flow, 2);
+
+        byte[] telegram;
+        switch (format) {
+        case AES_MODE_5:
+            telegram = encodeAesMode5(records);
+            break;
+        case ELL_AES_CTR:
+            telegram = encodeExtendedLinkLayer(0x78, records, true);
+            break;
+        case COMPACT:
+            if (numberOfTelegrams % FULL_FRAME_INTERVAL == 0) {
+                telegram = encodeExtendedLinkLayer(0x78, records, false);
+            }
+            else {
+                telegram = encodeExtendedLinkLayer(0x79, encodeCompactFrame(records), false);
+            }
+            break;
+        case PLAIN:
+        default:
+            telegram = encodeShortHeader(records, 0, records.length);
+            break;
+        }
+        numberOfTelegrams++;
+        return telegram;
+    }
+
+    private byte[] encodeShortHeader(byte[] payload, int configuration, int length) {
+        byte[] telegram = newTelegram(0x7a, 4 + length);
+        telegram[11] = (byte) accessNumber;
+        telegram[12] = 0x00;
+        telegram[13] = (byte) configuration;
+        telegram[14] = (byte) (configuration >> 8);
+        System.arraycopy(payload, 0, telegram, 15, length);
+        return telegram;
+    }
+
+    private byte[] encodeAesMode5(byte[] records) {
+        int numberOfBlocks = (2 + records.length + 15) / 16;
+        byte[] plain = new byte[numberOfBlocks * 16];
+        // decrypted payloads start with 0x2F2F and are filled up with 0x2F
+        Arrays.fill(plain, (byte) 0x2f);
+        System.arraycopy(records, 0, plain, 2, records.length);
+
+        byte[] iv = new byte[16];
+        System.arraycopy(secondaryAddress.asByteArray(), 0, iv, 0, 8);
+        Arrays.fill(iv, 8, 16, (byte) accessNumber);
+
+        byte[] encrypted = encrypt(false, iv, plain);
+        int configuration = numberOfBlocks << 4 | EncryptionMode.AES_CBC_IV.getId() << 8;
+        return encodeShortHeader(encrypted, configuration, encrypted.length);
+    }
+
+    /*
+     * The payload of the ELL starts with its CRC and the CI of the application layer.
+     */
+    private byte[] encodeExtendedLinkLayer(int ciField, byte[] data, boolean encrypted) {
+        byte[] payload = new byte[3 + data.length];
+        payload[2] = (byte) ciField;
+        System.arraycopy(data, 0, payload, 3, data.length);
+        byte[] crc = CRC16.calculateCrc16(payload, 2, payload.length - 2);
+        payload[0] = crc[0];
+        payload[1] = crc[1];
+
+        sessionNumber = (sessionNumber + 1) & 0x1fffffff;
+        byte[] session = new byte[4];
+        putLittleEndian(session, 0, sessionNumber, 4);
+        if (encrypted) {
+            session[3] |= EncryptionMode.AES_128.getId() << 5;
+
+            byte[] iv = new byte[16];
+            System.arraycopy(secondaryAddress.asByteArray(), 0, iv, 0, 8);
+            iv[8] = (byte) (COMMUNICATION_CONTROL & ~0x10);
+            System.arraycopy(session, 0, iv, 9, 4);
+            payload = encrypt(true, iv, payload);
+        }
+
+        byte[] telegram = newTelegram(0x8d, 6 + payload.length);
+        telegram[11] = (byte) COMMUNICATION_CONTROL;
+        telegram[12] = (byte) accessNumber;
+        System.arraycopy(session, 0, telegram, 13, 4);
+        System.arraycopy(payload, 0, telegram, 17, payload.length);
+        return telegram;
+    }
+
+    private static byte[] encodeCompactFrame(byte[] records) {
+        byte[] signature = CRC16.calculateCrc16(RECORD_HEADERS);
+        byte[] fullFrameCrc = CRC16.calculateCrc16(records);
+
+        // the format signature and the CRC of the full frame, followed by the values without their DIF/VIF
+        byte[] frame = new byte[4 + 6];
+        frame[0] = signature[0];
+        frame[1] = signature[1];
+        frame[2] = fullFrameCrc[0];
+        frame[3] = fullFrameCrc[1];
+        System.arraycopy(records, 2, frame, 4, 4);
+        System.arraycopy(records, 8, frame, 8, 2);
+        return frame;
+    }
+
+    private byte[] newTelegram(int ciField, int length) {
+        byte[] telegram = new byte[11 + length];
+        telegram[0] = (byte) (telegram.length - 1);
+        telegram[1] = CONTROL_FIELD;
+        System.arraycopy(secondaryAddress.asByteArray(), 0, telegram, 2, 8);
+        telegram[10] = (byte) ciField;
+        return telegram;
+    }
+
+    private byte[] encrypt(boolean counterMode, byte[] iv, byte[] plain) {
+        try {
+            AesCrypt aesCrypt = counterMode ? AesCrypt.newAesCtrCrypt(key, iv) : AesCrypt.newAesCrypt(key, iv);
+            return aesCrypt.encrypt(plain, plain.length);
+        } catch (DecodingException | GeneralSecurityException e) {
+            // AES is available on every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void putLittleEndian(byte[] buffer, int offset, long value, int length) {
+        for (int i = 0; i < length; i++) {
+            buffer[offset + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+}
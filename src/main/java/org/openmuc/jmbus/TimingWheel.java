@@ -0,0 +1,181 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus;
+
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel. Scheduling and cancelling a timeout is O(1), advancing the wheel by one tick costs the
+ * number of timeouts due plus occasionally moving the timeouts of one slot down to a lower level.
+ * <p>
+ * Every level has 64 slots, a slot of level {@code n} spans {@code 64^n} ticks. A timeout is kept in the lowest level
+ * whose current revolution contains its deadline. Not thread safe.
+ * </p>
+ */
+public class TimingWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 5;
+
+    /**
+     * Deadlines further away are cut to this number of ticks, they are checked again when they come into range.
+     */
+    public static final long MAX_DELAY = (long) SLOTS / 2 << (SLOT_BITS * (LEVELS - 1));
+
+    private final Timeout[][] wheels = new Timeout[LEVELS][SLOTS];
+    private long currentTick;
+
+    /**
+     * A timeout which can be scheduled in a timing wheel. Belongs to at most one slot at a time.
+     */
+    public static class Timeout {
+
+        private long deadline;
+        private Timeout prev;
+        private Timeout next;
+
+        /*
+         * Creates the head of a slot.
+         */
+        private static Timeout newSlot() {
+            Timeout slot = new Timeout();
+            slot.prev = slot;
+            slot.next = slot;
+            return slot;
+        }
+
+        /**
+         * Check if the timeout is scheduled.
+         *
+         * @return {@code true} if the timeout is scheduled and has neither expired nor been cancelled.
+         */
+        public boolean isScheduled() {
+            return next != null;
+        }
+
+        /**
+         * Get the tick at which the timeout expires.
+         *
+         * @return the deadline.
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        private void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = null;
+            next = null;
+        }
+    }
+
+    /**
+     * Creates a new timing wheel.
+     *
+     * @param startTick
+     *            the current tick.
+     */
+    public TimingWheel(long startTick) {
+        this.currentTick = startTick;
+        for (Timeout[] wheel : wheels) {
+            for (int i = 0; i < SLOTS; i++) {
+                wheel[i] = Timeout.newSlot();
+            }
+        }
+    }
+
+    /**
+     * Get the tick the wheel has been advanced to.
+     *
+     * @return the current tick.
+     */
+    public long getCurrentTick() {
+        return currentTick;
+    }
+
+    /**
+     * Schedules or reschedules a timeout.
+     *
+     * @param timeout
+     *            the timeout.
+     * @param deadline
+     *            the tick at which the timeout expires. Deadlines in the past expire with the next tick.
+     */
+    public void schedule(Timeout timeout, long deadline) {
+        if (timeout.isScheduled()) {
+            timeout.unlink();
+        }
+        timeout.deadline = Math.max(deadline, currentTick + 1);
+        insert(timeout);
+    }
+
+    /**
+     * Cancels a timeout. Does nothing if it is not scheduled.
+     *
+     * @param timeout
+     *            the timeout.
+     */
+    public void cancel(Timeout timeout) {
+        if (timeout.isScheduled()) {
+            timeout.unlink();
+        }
+    }
+
+    /**
+     * Advances the wheel by one tick.
+     *
+     * @param expired
+     *            the list to which the expired timeouts are added.
+     */
+    public void tick(List<Timeout> expired) {
+        currentTick++;
+
+        // move the timeouts of the slots which now start their revolution down, highest level first
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                Timeout slot = wheels[level][(int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK];
+                while (slot.next != slot) {
+                    Timeout timeout = slot.next;
+                    timeout.unlink();
+                    insert(timeout);
+                }
+            }
+        }
+
+        Timeout slot = wheels[0][(int) currentTick & SLOT_MASK];
+        while (slot.next != slot) {
+            Timeout timeout = slot.next;
+            timeout.unlink();
+            if (timeout.deadline <= currentTick) {
+                expired.add(timeout);
+            }
+            else {
+                // cut deadline, not due yet
+                insert(timeout);
+            }
+        }
+    }
+
+    private void insert(Timeout timeout) {
+        long deadline = Math.min(timeout.deadline, currentTick + MAX_DELAY);
+
+        int level = 0;
+        while (level < LEVELS - 1
+                && (deadline >>> (SLOT_BITS * (level + 1))) != (currentTick >>> (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+
+        Timeout slot = wheels[level][(int) (deadline >>> (SLOT_BITS * level)) & SLOT_MASK];
+        timeout.prev = slot.prev;
+        timeout.next = slot;
+        slot.prev.next = timeout;
+        slot.prev = timeout;
+    }
+
+}
@@ -0,0 +1,190 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers meters whose encrypted messages could not be decrypted, either because no key was registered for them or
+ * because the registered key was wrong.
+ * <p>
+ * Messages from a remembered meter are skipped by {@link VariableDataStructure#decode(UndecryptableMeterCache)} until
+ * the retry interval of the entry has elapsed. Call {@link #remove(SecondaryAddress)} after registering a new key to
+ * retry a meter immediately. A wireless M-Bus connection which has been built with the cache does so whenever a key is
+ * added or removed.
+ * </p>
+ */
+public class UndecryptableMeterCache {
+
+    private static final int DEFAULT_MAX_SIZE = 100000;
+
+    /**
+     * The reason a meter has been put into the cache.
+     */
+    public enum Reason {
+        /**
+         * No key was registered for the meter.
+         */
+        NO_KEY,
+        /**
+         * The registered key did not decrypt the message.
+         */
+        WRONG_KEY
+    }
+
+    private final ConcurrentHashMap<SecondaryAddress, CacheEntry> entries = new ConcurrentHashMap<>();
+
+    private final long noKeyRetryNanos;
+    private final long wrongKeyRetryNanos;
+    private final int maxSize;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param noKeyRetryInterval
+     *            the time in MILLIS after which a meter without key is decoded again.
+     * @param wrongKeyRetryInterval
+     *            the time in MILLIS after which a meter with a wrong key is decoded again.
+     */
+    public UndecryptableMeterCache(long noKeyRetryInterval, long wrongKeyRetryInterval) {
+        this(noKeyRetryInterval, wrongKeyRetryInterval, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param noKeyRetryInterval
+     *            the time in MILLIS after which a meter without key is decoded again.
+     * @param wrongKeyRetryInterval
+     *            the time in MILLIS after which a meter with a wrong key is decoded again.
+     * @param maxSize
+     *            the maximum number of remembered meters. If the cache is full, expired entries are purged and new
+     *            meters are not remembered until there is room again.
+     */
+    public UndecryptableMeterCache(long noKeyRetryInterval, long wrongKeyRetryInterval, int maxSize) {
+        if (noKeyRetryInterval < 0 || wrongKeyRetryInterval < 0) {
+            throw new IllegalArgumentException("Retry interval must be >= 0.");
+        }
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Maximum size must be > 0.");
+        }
+        this.noKeyRetryNanos = TimeUnit.MILLISECONDS.toNanos(noKeyRetryInterval);
+        this.wrongKeyRetryNanos = TimeUnit.MILLISECONDS.toNanos(wrongKeyRetryInterval);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the reason why the meter is currently skipped.
+     *
+     * @param address
+     *            the link layer secondary address of the meter.
+     * @return the reason or {@code null} if the meter is not cached or its retry interval has elapsed.
+     */
+    public Reason reasonFor(SecondaryAddress address) {
+        if (address == null) {
+            return null;
+        }
+        CacheEntry entry = entries.get(address);
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.isExpired(System.nanoTime())) {
+            entries.remove(address, entry);
+            return null;
+        }
+        return entry.reason;
+    }
+
+    /**
+     * Check if messages of the meter are currently skipped.
+     *
+     * @param address
+     *            the link layer secondary address of the meter.
+     * @return {@code true} if the meter is cached and the retry interval has not elapsed yet.
+     */
+    public boolean isUndecryptable(SecondaryAddress address) {
+        return reasonFor(address) != null;
+    }
+
+    /**
+     * Remembers a meter which could not be decrypted.
+     *
+     * @param address
+     *            the link layer secondary address of the meter.
+     * @param reason
+     *            the reason why decryption failed.
+     */
+    public void put(SecondaryAddress address, Reason reason) {
+        if (address == null) {
+            return;
+        }
+
+        if (entries.size() >= maxSize && !entries.containsKey(address)) {
+            purgeExpired();
+            if (entries.size() >= maxSize) {
+                return;
+            }
+        }
+
+        long retryNanos = reason == Reason.NO_KEY ? noKeyRetryNanos : wrongKeyRetryNanos;
+        entries.put(address, new CacheEntry(reason, System.nanoTime() + retryNanos));
+    }
+
+    /**
+     * Forgets the meter, e.g. after a new key has been registered for it.
+     *
+     * @param address
+     *            the link layer secondary address of the meter.
+     */
+    public void remove(SecondaryAddress address) {
+        entries.remove(address);
+    }
+
+    /**
+     * Forgets all meters.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Get the number of remembered meters, including expired ones not purged yet.
+     *
+     * @return the number of entries.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private void purgeExpired() {
+        long now = System.nanoTime();
+        Iterator<CacheEntry> iter = entries.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().isExpired(now)) {
+                iter.remove();
+            }
+        }
+    }
+
+    private static class CacheEntry {
+
+        private final Reason reason;
+        private final long expiry;
+
+        CacheEntry(Reason reason, long expiry) {
+            this.reason = reason;
+            this.expiry = expiry;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiry >= 0;
+        }
+    }
+
+}
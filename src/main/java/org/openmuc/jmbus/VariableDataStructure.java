@@ -17,6 +17,8 @@ import java.util.ListIterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.openmuc.jmbus.UndecryptableMeterCache.Reason;
+
 /**
  * Representation of the data transmitted in RESP-UD (M-Bus) and SND-NR (wM-Bus) messages.
  * 
@@ -24,6 +26,28 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class VariableDataStructure {
 
+    /**
+     * The outcome of {@link VariableDataStructure#decode(UndecryptableMeterCache)}.
+     */
+    public enum DecodingOutcome {
+        /**
+         * The structure has been decoded.
+         */
+        DECODED,
+        /**
+         * The meter is known to be undecryptable. Nothing has been decoded.
+         */
+        SKIPPED,
+        /**
+         * No key is registered for the meter. The meter has been added to the cache.
+         */
+        NO_KEY,
+        /**
+         * The registered key did not decrypt the message. The meter has been added to the cache.
+         */
+        WRONG_KEY
+    }
+
     private static final ConcurrentHashMap<SecondaryAddress, List<DataRecord>> deviceHistory = new ConcurrentHashMap<>();
 
     private final byte[] buffer;
@@ -50,6 +74,9 @@ public class VariableDataStructure {
 
     private boolean decoded = false;
 
+    private boolean silentKeyFailure = false;
+    private Reason keyFailure;
+
     private List<DataRecord> dataRecords;
 
     public VariableDataStructure(byte[] buffer, int offset, int length, SecondaryAddress linkLayerSecondaryAddress,
@@ -69,6 +96,7 @@ public class VariableDataStructure {
      */
     public void decode() throws DecodingException {
         if (!decoded) {
+            keyFailure = null;
             try {
                 int ciField = readUnsignedByte(buffer, offset);
 
@@ -86,10 +114,9 @@ public class VariableDataStructure {
                 case 0x8d: /* ELL */
                     decodeExtendedLinkLayer(buffer, offset + 1); // 6 bytes header + CRC
                     header = Arrays.copyOfRange(buffer, offset, offset + 7); // don't include CRC
-                    vdr = new byte[length - 7];
-                    System.arraycopy(buffer, offset + 7, vdr, 0, length - 7);
-                    if (encryptionMode.equals(EncryptionMode.AES_128)) {
-                        decryptMessage(getKey());
+                    vdr = Arrays.copyOfRange(buffer, offset + 7, offset + length);
+                    if (encryptionMode.equals(EncryptionMode.AES_128) && !decryptWithRegisteredKey()) {
+                        break;
                     }
 
                     if ((vdr[2] & 0xff) == 0x78) {
@@ -116,8 +143,43 @@ public class VariableDataStructure {
             } catch (RuntimeException e) {
                 throw new DecodingException(e);
             }
-            decoded = true;
+            decoded = keyFailure == null;
+        }
+    }
+
+    /**
+     * Decodes the structure like {@link #decode()}, but a missing or wrong key is reported through the returned
+     * outcome instead of a {@link DecodingException}. Meters contained in the cache are skipped without decoding
+     * anything. Meters which could not be decrypted are added to the cache.
+     * 
+     * @param cache
+     *            the cache of undecryptable meters.
+     * @return the outcome of the decoding.
+     * @throws DecodingException
+     *             if the structure could not be decoded for any other reason.
+     */
+    public DecodingOutcome decode(UndecryptableMeterCache cache) throws DecodingException {
+        if (decoded) {
+            return DecodingOutcome.DECODED;
+        }
+
+        if (cache.isUndecryptable(linkLayerSecondaryAddress)) {
+            return DecodingOutcome.SKIPPED;
+        }
+
+        silentKeyFailure = true;
+        try {
+            decode();
+        } finally {
+            silentKeyFailure = false;
+        }
+
+        if (keyFailure == null) {
+            return DecodingOutcome.DECODED;
         }
+
+        cache.put(linkLayerSecondaryAddress, keyFailure);
+        return keyFailure == Reason.NO_KEY ? DecodingOutcome.NO_KEY : DecodingOutcome.WRONG_KEY;
     }
 
     private void decodeWithShortHeader() throws DecodingException {
@@ -150,19 +212,22 @@ public class VariableDataStructure {
     }
 
     private void decryptAesCbcIv(byte[] buffer, int offset, int encryptedDataLength) throws DecodingException {
-        vdr = new byte[encryptedDataLength];
-
-        System.arraycopy(buffer, offset, vdr, 0, encryptedDataLength);
+        vdr = Arrays.copyOfRange(buffer, offset, offset + encryptedDataLength);
 
         byte[] key = keyMap.get(linkLayerSecondaryAddress);
         if (key == null) {
+            if (silenceKeyFailure(Reason.NO_KEY)) {
+                return;
+            }
             String msg = MessageFormat.format(
                     "Unable to decode encrypted payload. \nSecondary address key was not registered: \n{0}",
                     linkLayerSecondaryAddress);
             throw new DecodingException(msg);
         }
 
-        decodeDataRecords(decryptMessage(key), 0, encryptedDataLength);
+        if (decrypt(key)) {
+            decodeDataRecords(vdr, 0, encryptedDataLength);
+        }
     }
 
     private void decodeLongHeaderData() throws DecodingException {
@@ -173,15 +238,16 @@ public class VariableDataStructure {
 
         decodeShortHeader(buffer, offset + 1 + 8);
 
-        vdr = new byte[length - headerLength];
-        System.arraycopy(buffer, offset + headerLength, vdr, 0, length - headerLength);
+        vdr = Arrays.copyOfRange(buffer, offset + headerLength, offset + length);
 
         switch (encryptionMode) {
         case NONE:
             // nothing to do
             break;
         case AES_CBC_IV:
-            decryptMessage(getKey());
+            if (!decryptWithRegisteredKey()) {
+                return;
+            }
             break;
         case AES_128:
         case AES_CBC_IV_0:
@@ -244,7 +310,7 @@ public class VariableDataStructure {
         encryptionMode = EncryptionMode.getInstance(sessionNumber[3] >> 5);
         byte[] checksum = new byte[] { buffer[i++], buffer[i++] };
 
-        byte[] crc = CRC16.calculateCrc16(Arrays.copyOfRange(buffer, i, buffer.length - 1));
+        byte[] crc = CRC16.calculateCrc16(buffer, i, buffer.length - 1 - i);
         if (checksum[0] == crc[0] && checksum[1] == crc[1]) {
             encryptionMode = EncryptionMode.NONE;
         }
@@ -356,6 +422,17 @@ public class VariableDataStructure {
             throw new DecodingException("AES key for given address not specified.");
         }
 
+        decrypt(key);
+
+        return vdr;
+    }
+
+    private boolean decryptWithRegisteredKey() throws DecodingException {
+        byte[] key = getKey();
+        return key != null && decrypt(key);
+    }
+
+    private boolean decrypt(byte[] key) throws DecodingException {
         final int len = numberOfEncryptedBlocks * 16;
 
         if (len > vdr.length) {
@@ -364,37 +441,59 @@ public class VariableDataStructure {
 
         switch (encryptionMode) {
         case AES_CBC_IV:
-            decryptAesCbcIv(key, len);
-            break;
+            return decryptAesCbcIv(key, len);
         case AES_128:
-            decryptAes128(key, len);
-            break;
+            return decryptAes128(key, len);
         default:
             throw new DecodingException("Unsupported encryption mode: " + encryptionMode);
         }
-
-        return vdr;
     }
 
-    private void decryptAes128(byte[] key, final int len) throws DecodingException {
+    /*
+     * The vdr array is a private copy of the payload, so it is decrypted in place. On a wrong key it contains garbage
+     * afterwards, which is fine because it is copied from the message buffer again on the next decode.
+     */
+    private boolean decryptAes128(byte[] key, final int len) throws DecodingException {
         byte[] iv = createIvKamstrup();
-        byte[] result = AesCrypt.newAesCtrCrypt(key, iv).decrypt(vdr, len);
+        // the ELL does not specify the number of encrypted blocks, the whole payload is encrypted then
+        int decryptLength = len == 0 ? vdr.length : len;
+        AesCrypt.newAesCtrCrypt(key, iv).decrypt(vdr, 0, decryptLength, vdr, 0);
 
-        byte[] crc = CRC16.calculateCrc16(Arrays.copyOfRange(result, 2, result.length));
+        byte[] crc = CRC16.calculateCrc16(vdr, 2, decryptLength - 2);
 
-        if (result[0] != crc[0] || result[1] != crc[1]) {
-            throw new DecodingException(newDecyptionExceptionMsg());
+        if (vdr[0] != crc[0] || vdr[1] != crc[1]) {
+            return wrongKey();
         }
-        vdr = result;
+        return true;
     }
 
-    private void decryptAesCbcIv(byte[] key, final int len) throws DecodingException {
+    private boolean decryptAesCbcIv(byte[] key, final int len) throws DecodingException {
         byte[] iv = createIv();
-        byte[] result = AesCrypt.newAesCrypt(key, iv).decrypt(this.vdr, len);
-        if (!(result[0] == 0x2f && result[1] == 0x2f)) {
-            throw new DecodingException(newDecyptionExceptionMsg());
+        int decryptLength = len == 0 ? vdr.length : len;
+        AesCrypt.newAesCrypt(key, iv).decrypt(vdr, 0, decryptLength, vdr, 0);
+        if (!(vdr[0] == 0x2f && vdr[1] == 0x2f)) {
+            return wrongKey();
+        }
+        return true;
+    }
+
+    private boolean wrongKey() throws DecodingException {
+        if (silenceKeyFailure(Reason.WRONG_KEY)) {
+            return false;
         }
-        System.arraycopy(result, 0, vdr, 0, len);
+        throw new DecodingException(newDecyptionExceptionMsg());
+    }
+
+    /*
+     * Only records the failure if it has been requested by decode(UndecryptableMeterCache), so that no exception has to
+     * be created for meters we cannot decrypt anyway.
+     */
+    private boolean silenceKeyFailure(Reason reason) {
+        if (!silentKeyFailure) {
+            return false;
+        }
+        keyFailure = reason;
+        return true;
     }
 
     private String newDecyptionExceptionMsg() {
@@ -423,24 +522,21 @@ public class VariableDataStructure {
         return iv;
     }
 
-    private byte[] createIvKamstrup() throws DecodingException {
-        try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
+    private byte[] createIvKamstrup() {
+        byte[] iv = new byte[16];
 
-            os.write(linkLayerSecondaryAddress.asByteArray(), 0, 8);
-            /* set hop count to 0 in case a repeater is used */
-            os.write(communicationControl & ~(1 << 4));
-            os.write(sessionNumber);
-            os.write(new byte[3]); // 3 * 0x00
+        System.arraycopy(linkLayerSecondaryAddress.asByteArray(), 0, iv, 0, 8);
+        /* set hop count to 0 in case a repeater is used */
+        iv[8] = (byte) (communicationControl & ~(1 << 4));
+        System.arraycopy(sessionNumber, 0, iv, 9, 4);
+        // the last 3 bytes stay 0x00
 
-            return os.toByteArray();
-        } catch (IOException e) {
-            throw new DecodingException("Unable to create initial vector for decryption.", e);
-        }
+        return iv;
     }
 
     private byte[] getKey() throws DecodingException {
         byte[] key = keyMap.get(linkLayerSecondaryAddress);
-        if (key != null) {
+        if (key != null || silenceKeyFailure(Reason.NO_KEY)) {
             return key;
         }
 
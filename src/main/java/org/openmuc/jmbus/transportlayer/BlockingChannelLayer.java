@@ -0,0 +1,200 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Channel transport layer on top of blocking streams, which time out after a read timeout of the device.
+ * <p>
+ * Bytes which are available already are read without waiting. Otherwise the read timeout of the device is set to the
+ * time left until the deadline and one byte is read. The read timeout is only set again if it changes, which it
+ * rarely does as long as the deadlines are taken the same time ahead.
+ * </p>
+ */
+abstract class BlockingChannelLayer implements ChannelTransportLayer {
+
+    private static final int SCRATCH_SIZE = 256;
+
+    private volatile int timeout;
+
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+    private final byte[] readScratch = new byte[SCRATCH_SIZE];
+    private final byte[] writeScratch = new byte[SCRATCH_SIZE];
+    private int readTimeout = -1;
+
+    private final DataOutputStream os;
+    private final DataInputStream is;
+
+    BlockingChannelLayer(int timeout, boolean socket) {
+        this.timeout = timeout;
+        this.os = new DataOutputStream(new ChannelOutputStream(this));
+        this.is = new DataInputStream(new ChannelInputStream(this, socket));
+    }
+
+    /**
+     * Get the stream of the device to read from.
+     *
+     * @return the input stream or {@code null} if the device is not open.
+     */
+    abstract InputStream input();
+
+    /**
+     * Get the stream of the device to write to.
+     *
+     * @return the output stream or {@code null} if the device is not open.
+     */
+    abstract OutputStream output();
+
+    /**
+     * Sets the time a read of {@link #input()} may block.
+     *
+     * @param timeout
+     *            the timeout in MILLIS, greater than zero.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    abstract void setReadTimeout(int timeout) throws IOException;
+
+    /**
+     * Forgets the read timeout set last, to be called after the device has been opened.
+     */
+    void resetReadTimeout() {
+        synchronized (readLock) {
+            readTimeout = -1;
+        }
+    }
+
+    @Override
+    public DataOutputStream getOutputStream() {
+        return os;
+    }
+
+    @Override
+    public DataInputStream getInputStream() {
+        return is;
+    }
+
+    @Override
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long deadline) throws IOException {
+        synchronized (readLock) {
+            InputStream input = openInput();
+
+            int numRead = readAvailable(input, dst);
+            if (numRead != 0) {
+                return numRead;
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !dst.hasRemaining()) {
+                return 0;
+            }
+            // round up, the timeout must not elapse before the deadline
+            int newReadTimeout = (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining + 999999));
+            if (newReadTimeout != readTimeout) {
+                setReadTimeout(newReadTimeout);
+                readTimeout = newReadTimeout;
+            }
+
+            int b;
+            try {
+                b = input.read();
+            } catch (InterruptedIOException e) {
+                return 0;
+            }
+            if (b < 0) {
+                return -1;
+            }
+            dst.put((byte) b);
+
+            return 1 + Math.max(0, readAvailable(input, dst));
+        }
+    }
+
+    private int readAvailable(InputStream input, ByteBuffer dst) throws IOException {
+        int length = Math.min(input.available(), dst.remaining());
+        if (length <= 0) {
+            return 0;
+        }
+
+        if (dst.hasArray()) {
+            int numRead = input.read(dst.array(), dst.arrayOffset() + dst.position(), length);
+            if (numRead > 0) {
+                dst.position(dst.position() + numRead);
+            }
+            return numRead;
+        }
+
+        int numRead = input.read(readScratch, 0, Math.min(length, SCRATCH_SIZE));
+        if (numRead > 0) {
+            dst.put(readScratch, 0, numRead);
+        }
+        return numRead;
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        synchronized (writeLock) {
+            OutputStream output = output();
+            if (output == null) {
+                throw new IOException("Transport layer is not open.");
+            }
+
+            if (src.hasArray()) {
+                output.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+                src.position(src.limit());
+            }
+            else {
+                while (src.hasRemaining()) {
+                    int length = Math.min(src.remaining(), SCRATCH_SIZE);
+                    src.get(writeScratch, 0, length);
+                    output.write(writeScratch, 0, length);
+                }
+            }
+            output.flush();
+        }
+    }
+
+    @Override
+    public int available() {
+        InputStream input = input();
+        if (input == null) {
+            return 0;
+        }
+        try {
+            return input.available();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private InputStream openInput() throws IOException {
+        InputStream input = input();
+        if (input == null) {
+            throw new IOException("Transport layer is not open.");
+        }
+        return input;
+    }
+
+}
@@ -5,6 +5,7 @@
  */
 package org.openmuc.jmbus.transportlayer;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -18,6 +19,7 @@ import java.io.IOException;
 public abstract class Builder<C, B extends Builder<C, B>> {
 
     private int timeout;
+    private File captureFile;
 
     protected Builder() {
         this.timeout = 500;
@@ -39,6 +41,26 @@ public abstract class Builder<C, B extends Builder<C, B>> {
         return timeout;
     }
 
+    /**
+     * Records all bytes read and written by the connection to a capture file, which can be replayed later.
+     * 
+     * @param captureFile
+     *            the file to append the records to or {@code null} to record nothing.
+     * @return the builder itself.
+     * @see RecordingTransportLayer
+     */
+    public B setCaptureFile(File captureFile) {
+        this.captureFile = captureFile;
+        return self();
+    }
+
+    TransportLayer record(TransportLayer transportLayer) {
+        if (captureFile == null) {
+            return transportLayer;
+        }
+        return new RecordingTransportLayer(transportLayer, captureFile);
+    }
+
     @SuppressWarnings("unchecked")
     protected B self() {
         return (B) this;
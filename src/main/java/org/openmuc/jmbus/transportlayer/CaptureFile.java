@@ -0,0 +1,170 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The format of the capture files written by {@link RecordingTransportLayer} and read by
+ * {@link ReplayTransportLayer}.
+ * <p>
+ * A file starts with the magic number {@code "JMBC"} and a version byte. Every record consists of its type, the
+ * nanoseconds since the previous record, the number of bytes and the bytes. The numbers are stored as unsigned varints
+ * of 7 bits per byte, so a record of a few bytes takes only a few bytes more. A recording appended to an existing file
+ * continues its records, its first delta is the time since the recording has been opened.
+ * </p>
+ */
+class CaptureFile {
+
+    static final int READ = 0;
+    static final int WRITE = 1;
+
+    private static final int MAGIC = 0x4A4D4243;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 65536;
+
+    private CaptureFile() {
+        // hide the default constructor
+    }
+
+    /**
+     * Appends records to a capture file.
+     */
+    static class Writer implements AutoCloseable {
+
+        private final OutputStream os;
+        private long lastRecordTime;
+
+        Writer(File file) throws IOException {
+            boolean newFile = !file.exists() || file.length() == 0;
+            this.os = new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE);
+            if (newFile) {
+                DataOutputStream header = new DataOutputStream(os);
+                header.writeInt(MAGIC);
+                header.writeByte(VERSION);
+            }
+            this.lastRecordTime = System.nanoTime();
+        }
+
+        synchronized void write(int type, long time, byte[] b, int off, int len) throws IOException {
+            os.write(type);
+            writeVarLong(os, Math.max(0, time - lastRecordTime));
+            writeVarLong(os, len);
+            os.write(b, off, len);
+            lastRecordTime = time;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            os.close();
+        }
+    }
+
+    /**
+     * The records of a capture file.
+     */
+    static class Records {
+
+        int size;
+        int[] types = new int[64];
+        // nanoseconds since the start of the capture
+        long[] times = new long[64];
+        int[] offsets = new int[65];
+        byte[] data;
+
+        int length(int index) {
+            return offsets[index + 1] - offsets[index];
+        }
+
+        private void add(int type, long time, int offset) {
+            if (size + 1 == offsets.length) {
+                types = Arrays.copyOf(types, size * 2);
+                times = Arrays.copyOf(times, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2 + 1);
+            }
+            types[size] = type;
+            times[size] = time;
+            offsets[size] = offset;
+            size++;
+        }
+    }
+
+    static Records read(File file) throws IOException {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)) {
+            DataInputStream header = new DataInputStream(is);
+            if (header.readInt() != MAGIC) {
+                throw new IOException("Not a capture file: " + file);
+            }
+            int version = header.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported capture file version: " + version);
+            }
+
+            Records records = new Records();
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            long time = 0;
+
+            int type;
+            while ((type = is.read()) >= 0) {
+                if (type != READ && type != WRITE) {
+                    throw new IOException("Invalid record type in capture file: " + type);
+                }
+                time += readVarLong(is);
+                int length = (int) readVarLong(is);
+
+                records.add(type, time, data.size());
+                while (length > 0) {
+                    int numRead = is.read(buffer, 0, Math.min(length, buffer.length));
+                    if (numRead < 0) {
+                        throw new EOFException("Capture file ends within a record.");
+                    }
+                    data.write(buffer, 0, numRead);
+                    length -= numRead;
+                }
+            }
+            records.offsets[records.size] = data.size();
+            records.data = data.toByteArray();
+            return records;
+        }
+    }
+
+    private static void writeVarLong(OutputStream os, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            os.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        os.write((int) value);
+    }
+
+    private static long readVarLong(InputStream is) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = is.read();
+            if (b < 0) {
+                throw new EOFException("Capture file ends within a record.");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid number in capture file.");
+    }
+
+}
@@ -0,0 +1,93 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Input stream on top of {@link ChannelTransportLayer#read(ByteBuffer, long)}. A read times out after the timeout of
+ * the layer, a timeout of zero waits infinitely.
+ */
+class ChannelInputStream extends InputStream {
+
+    private final ChannelTransportLayer layer;
+    private final boolean socket;
+    private final byte[] single = new byte[1];
+    private final ByteBuffer singleBuffer = ByteBuffer.wrap(single);
+
+    /**
+     * Creates a new input stream.
+     *
+     * @param layer
+     *            the layer to read from.
+     * @param socket
+     *            {@code true} to throw a {@link SocketTimeoutException} on timeout like a socket would.
+     */
+    ChannelInputStream(ChannelTransportLayer layer, boolean socket) {
+        this.layer = layer;
+        this.socket = socket;
+    }
+
+    @Override
+    public int read() throws IOException {
+        synchronized (singleBuffer) {
+            singleBuffer.clear();
+            if (read(singleBuffer) < 0) {
+                return -1;
+            }
+            return single[0] & 0xff;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        return read(ByteBuffer.wrap(b, off, len));
+    }
+
+    private int read(ByteBuffer dst) throws IOException {
+        int timeout = layer.getTimeout();
+        while (true) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout == 0 ? 1000 : timeout);
+            int numRead = layer.read(dst, deadline);
+            if (numRead != 0) {
+                return numRead;
+            }
+            if (timeout != 0) {
+                throw socket ? new SocketTimeoutException("Read timed out.")
+                        : new InterruptedIOException("Read timed out.");
+            }
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skips the bytes which can be read without waiting only
+        int available = (int) Math.min(n, layer.available());
+        if (available <= 0) {
+            return 0;
+        }
+        return Math.max(0, layer.read(ByteBuffer.allocate(available), System.nanoTime()));
+    }
+
+    @Override
+    public int available() {
+        return layer.available();
+    }
+
+    @Override
+    public void close() {
+        layer.close();
+    }
+
+}
@@ -0,0 +1,48 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Output stream on top of {@link ChannelTransportLayer#write(ByteBuffer)}.
+ * <p>
+ * The stream is not buffered, every write is passed to the layer at once and usually costs a system call. Frames
+ * should therefore be written as a whole with {@link #write(byte[], int, int)} instead of byte by byte.
+ * </p>
+ */
+class ChannelOutputStream extends OutputStream {
+
+    private final ChannelTransportLayer layer;
+
+    // reused by write(int), guarded by this
+    private final byte[] singleByte = new byte[1];
+    private final ByteBuffer singleByteBuffer = ByteBuffer.wrap(singleByte);
+
+    ChannelOutputStream(ChannelTransportLayer layer) {
+        this.layer = layer;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        singleByteBuffer.clear();
+        layer.write(singleByteBuffer);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        layer.write(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public void close() {
+        layer.close();
+    }
+
+}
@@ -0,0 +1,54 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A transport layer which reads into and writes from byte buffers.
+ * <p>
+ * A read waits at most until a deadline, given as a value of {@link System#nanoTime()}. An elapsed deadline is
+ * reported by the return value instead of an exception, so a receiver may poll without throwing and without changing
+ * the timeout of the layer. The streams of {@link #getInputStream()} and {@link #getOutputStream()} keep working on
+ * top of these methods and time out after {@link #getTimeout()} like before.
+ * </p>
+ * Use {@link StreamChannelAdapter#adapt(TransportLayer)} to read from any transport layer through this interface.
+ */
+public interface ChannelTransportLayer extends TransportLayer {
+
+    /**
+     * Reads bytes into the buffer. Waits until at least one byte has been read, the end of the stream has been reached
+     * or the deadline has passed. Bytes which are available already are read even if the deadline has passed.
+     *
+     * @param dst
+     *            the buffer to read into.
+     * @param deadline
+     *            the value of {@link System#nanoTime()} until which to wait.
+     * @return the number of bytes read, {@code 0} if the deadline passed or {@code -1} at the end of the stream.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    int read(ByteBuffer dst, long deadline) throws IOException;
+
+    /**
+     * Writes all remaining bytes of the buffer.
+     *
+     * @param src
+     *            the buffer to write.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    void write(ByteBuffer src) throws IOException;
+
+    /**
+     * Get the number of bytes which can be read without waiting.
+     *
+     * @return the number of readable bytes, {@code 0} if none are known or the layer is closed.
+     */
+    int available();
+
+}
@@ -0,0 +1,305 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.text.MessageFormat;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCP transport layer based on a non-blocking {@link SocketChannel}.
+ * <p>
+ * Received bytes are read ahead into a direct buffer, so reading a frame byte by byte costs a few system calls instead
+ * of one per byte. A read which has to wait blocks on a selector until data arrives or its deadline has passed. The
+ * streams throw a {@link SocketTimeoutException} then, just like the socket of the blocking TCP layer.
+ * </p>
+ * <p>
+ * The layer may be closed while another thread is blocked in a read or a write, which fails with an
+ * {@link IOException} then.
+ * </p>
+ */
+class NioTcpLayer implements ChannelTransportLayer {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String hostAddress;
+    private final int port;
+    private final int connectionTimeout;
+    private final boolean tcpNoDelay;
+    private final boolean keepAlive;
+    private volatile int timeout;
+
+    private volatile SocketChannel channel;
+    // separate selectors, so that a writer never has to change the interest set of a blocked reader
+    private volatile Selector readSelector;
+    private volatile Selector writeSelector;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private final DataOutputStream os = new DataOutputStream(new ChannelOutputStream(this));
+    private final DataInputStream is = new DataInputStream(new ChannelInputStream(this, true));
+
+    NioTcpLayer(String hostAddress, int port, int connectionTimeout, int timeout, boolean tcpNoDelay,
+            boolean keepAlive) {
+        this.hostAddress = hostAddress;
+        this.port = port;
+        this.connectionTimeout = connectionTimeout;
+        this.timeout = timeout;
+        this.tcpNoDelay = tcpNoDelay;
+        this.keepAlive = keepAlive;
+    }
+
+    @Override
+    public void open() throws IOException {
+        InetAddress hostname = InetAddress.getByName(hostAddress);
+
+        try {
+            this.channel = SocketChannel.open();
+            this.channel.configureBlocking(false);
+            this.channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+            this.channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+
+            this.readSelector = Selector.open();
+            this.writeSelector = Selector.open();
+
+            connect(new InetSocketAddress(hostname, port));
+
+            this.channel.register(readSelector, SelectionKey.OP_READ);
+            this.channel.register(writeSelector, SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            close();
+            String msg = MessageFormat.format("Connecting to {0}:{1} failed.", hostname, port);
+            throw new IOException(msg, e);
+        }
+
+        readBuffer.clear().flip();
+
+        flushInputStream();
+    }
+
+    private void connect(InetSocketAddress socketAddress) throws IOException {
+        if (channel.connect(socketAddress)) {
+            return;
+        }
+
+        try (Selector connectSelector = Selector.open()) {
+            channel.register(connectSelector, SelectionKey.OP_CONNECT);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectionTimeout);
+            while (!channel.finishConnect()) {
+                if (connectionTimeout == 0) {
+                    connectSelector.select();
+                }
+                else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("Connect timed out.");
+                    }
+                    connectSelector.select(toMillis(remaining));
+                }
+                connectSelector.selectedKeys().clear();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        SocketChannel channel = this.channel;
+        if (channel == null) {
+            return;
+        }
+        this.channel = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore this here
+        }
+        // wakes up a blocked reader or writer
+        closeSelector(readSelector);
+        closeSelector(writeSelector);
+    }
+
+    private static void closeSelector(Selector selector) {
+        if (selector == null) {
+            return;
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore this here
+        }
+    }
+
+    @Override
+    public DataOutputStream getOutputStream() {
+        return os;
+    }
+
+    @Override
+    public DataInputStream getInputStream() {
+        return is;
+    }
+
+    @Override
+    public boolean isClosed() {
+        SocketChannel channel = this.channel;
+        return channel == null || !channel.isOpen();
+    }
+
+    @Override
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Flushes the input stream if it contains readable bytes
+     *
+     * @throws IOException
+     *             if an error occurs while reading the input stream.
+     */
+    private void flushInputStream() throws IOException {
+        try {
+            while (is.available() > 0) {
+                is.skip(is.available());
+            }
+        } catch (IOException e) {
+            close();
+            throw new IOException("Error flushing input stream from TCP connection.", e);
+        }
+    }
+
+    /*
+     * Reads what the channel has without blocking. Returns -1 at the end of the stream.
+     */
+    private int readAhead() throws IOException {
+        SocketChannel channel = openChannel();
+        readBuffer.compact();
+        try {
+            return channel.read(readBuffer);
+        } finally {
+            readBuffer.flip();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long deadline) throws IOException {
+        synchronized (readBuffer) {
+            if (!readBuffer.hasRemaining()) {
+                int numRead = fill(deadline);
+                if (numRead <= 0) {
+                    return numRead;
+                }
+            }
+
+            int numRead = Math.min(dst.remaining(), readBuffer.remaining());
+            int limit = readBuffer.limit();
+            readBuffer.limit(readBuffer.position() + numRead);
+            dst.put(readBuffer);
+            readBuffer.limit(limit);
+            return numRead;
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        synchronized (writeBuffer) {
+            while (src.hasRemaining()) {
+                int chunk = Math.min(src.remaining(), writeBuffer.capacity());
+                int limit = src.limit();
+                src.limit(src.position() + chunk);
+                writeBuffer.clear();
+                writeBuffer.put(src).flip();
+                src.limit(limit);
+
+                writeFully();
+            }
+        }
+    }
+
+    @Override
+    public int available() {
+        synchronized (readBuffer) {
+            if (!readBuffer.hasRemaining() && !isClosed()) {
+                try {
+                    readAhead();
+                } catch (IOException e) {
+                    // reported by the next read
+                }
+            }
+            return readBuffer.remaining();
+        }
+    }
+
+    /*
+     * Waits until at least one byte has been read. Returns -1 at the end of the stream and 0 after the deadline.
+     */
+    private int fill(long deadline) throws IOException {
+        while (true) {
+            int numRead = readAhead();
+            if (numRead != 0) {
+                return numRead;
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return 0;
+            }
+            select(readSelector, toMillis(remaining));
+        }
+    }
+
+    private void writeFully() throws IOException {
+        while (writeBuffer.hasRemaining()) {
+            if (openChannel().write(writeBuffer) == 0) {
+                // the send buffer is full
+                select(writeSelector, 0);
+            }
+        }
+    }
+
+    private SocketChannel openChannel() throws IOException {
+        SocketChannel channel = this.channel;
+        if (channel == null) {
+            throw new ClosedChannelException();
+        }
+        return channel;
+    }
+
+    /*
+     * Waits on the selector, 0 waits without timeout. The selector is closed when the layer is closed meanwhile.
+     */
+    private static void select(Selector selector, long timeout) throws IOException {
+        try {
+            selector.select(timeout);
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            throw new IOException("Transport layer has been closed.", e);
+        }
+    }
+
+    private static long toMillis(long nanos) {
+        // round up, a select timeout of 0 would block forever
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos + 999999));
+    }
+
+}
@@ -0,0 +1,32 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+import java.io.IOException;
+import java.util.EventListener;
+
+/**
+ * Is notified when a {@link ReconnectingTransportLayer} loses and restores its connection.
+ */
+public interface OutageListener extends EventListener {
+
+    /**
+     * Callback, when the connection has been lost. Reconnecting starts after this call.
+     *
+     * @param cause
+     *            the error which indicated the loss.
+     */
+    void connectionLost(IOException cause);
+
+    /**
+     * Callback, when the connection has been restored.
+     *
+     * @param outageDuration
+     *            the time in MILLIS from the loss of the connection until it was restored.
+     */
+    void connectionRestored(long outageDuration);
+
+}
@@ -0,0 +1,258 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport layer which reopens the layer it wraps when the connection is lost.
+ * <p>
+ * A read or write which fails, or reaches the end of the stream, closes the wrapped layer and reopens it until this
+ * succeeds. The attempts are delayed by an exponential backoff, every delay is chosen randomly between half and the
+ * full backoff, so that many clients do not reconnect in lockstep. After the layer has been reopened the
+ * {@link Initializer} runs, e.g. to configure a wireless M-Bus stick again. Then the read is continued, a failed write
+ * is repeated. The caller only notices the time the outage took.
+ * </p>
+ * <p>
+ * Opening the layer the first time is not repeated, an error is thrown as usual. {@link #close()} stops reconnecting.
+ * </p>
+ */
+public class ReconnectingTransportLayer implements ChannelTransportLayer {
+
+    private final ChannelTransportLayer transportLayer;
+    private final int initialBackoff;
+    private final int maxBackoff;
+    private final OutageListener listener;
+
+    private final DataOutputStream os = new DataOutputStream(new ChannelOutputStream(this));
+    private final DataInputStream is = new DataInputStream(new ChannelInputStream(this, false));
+
+    private final Object reconnectLock = new Object();
+    private final Object backoffLock = new Object();
+    private volatile boolean closed = true;
+    private volatile int generation;
+    private volatile Thread initializingThread;
+    private volatile Initializer initializer;
+
+    /**
+     * Prepares the transport layer after it has been reopened.
+     */
+    public interface Initializer {
+
+        /**
+         * Called after the transport layer has been reopened, by the thread which reconnects. A failure closes the
+         * layer again and the next attempt follows after the backoff.
+         *
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        void initialize() throws IOException;
+    }
+
+    /**
+     * Creates a new reconnecting transport layer.
+     *
+     * @param transportLayer
+     *            the transport layer to wrap.
+     * @param initialBackoff
+     *            the time in MILLIS before the first attempt to reconnect, greater than zero.
+     * @param maxBackoff
+     *            the maximum time in MILLIS between two attempts. The backoff doubles with every failed attempt up to
+     *            this time.
+     * @param listener
+     *            the listener notified about outages or {@code null}.
+     */
+    public ReconnectingTransportLayer(TransportLayer transportLayer, int initialBackoff, int maxBackoff,
+            OutageListener listener) {
+        if (initialBackoff <= 0) {
+            throw new IllegalArgumentException("Initial backoff must be > 0.");
+        }
+        if (maxBackoff < initialBackoff) {
+            throw new IllegalArgumentException("Maximum backoff must not be smaller than the initial backoff.");
+        }
+        this.transportLayer = StreamChannelAdapter.adapt(transportLayer);
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the initializer which runs after every reconnect.
+     *
+     * @param initializer
+     *            the initializer or {@code null} for none.
+     */
+    public void setInitializer(Initializer initializer) {
+        this.initializer = initializer;
+    }
+
+    @Override
+    public void open() throws IOException {
+        transportLayer.open();
+        closed = false;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (backoffLock) {
+            backoffLock.notifyAll();
+        }
+        transportLayer.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public DataOutputStream getOutputStream() {
+        return os;
+    }
+
+    @Override
+    public DataInputStream getInputStream() {
+        return is;
+    }
+
+    @Override
+    public void setTimeout(int timeout) throws IOException {
+        transportLayer.setTimeout(timeout);
+    }
+
+    @Override
+    public int getTimeout() throws IOException {
+        return transportLayer.getTimeout();
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long deadline) throws IOException {
+        while (true) {
+            checkOpen();
+            int observedGeneration = generation;
+            IOException cause;
+            try {
+                int numRead = transportLayer.read(dst, deadline);
+                if (numRead >= 0) {
+                    return numRead;
+                }
+                cause = new EOFException("End of stream reached.");
+            } catch (IOException e) {
+                cause = e;
+            }
+            handleFailure(cause, observedGeneration);
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        int position = src.position();
+        while (true) {
+            checkOpen();
+            int observedGeneration = generation;
+            try {
+                transportLayer.write(src);
+                return;
+            } catch (IOException e) {
+                handleFailure(e, observedGeneration);
+            }
+            // the bytes written before the failure went to the lost connection
+            src.position(position);
+        }
+    }
+
+    @Override
+    public int available() {
+        return closed ? 0 : transportLayer.available();
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Transport layer is closed.");
+        }
+    }
+
+    private void handleFailure(IOException cause, int observedGeneration) throws IOException {
+        if (closed || Thread.currentThread() == initializingThread) {
+            throw cause;
+        }
+        reconnect(cause, observedGeneration);
+    }
+
+    private void reconnect(IOException cause, int observedGeneration) throws IOException {
+        synchronized (reconnectLock) {
+            if (generation != observedGeneration) {
+                // another thread has reconnected meanwhile
+                return;
+            }
+
+            long lostTime = System.nanoTime();
+            if (listener != null) {
+                listener.connectionLost(cause);
+            }
+            transportLayer.close();
+
+            int backoff = initialBackoff;
+            while (!tryReconnect(backoff)) {
+                backoff = (int) Math.min(2L * backoff, maxBackoff);
+            }
+
+            generation++;
+            if (listener != null) {
+                listener.connectionRestored(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lostTime));
+            }
+        }
+    }
+
+    private boolean tryReconnect(int backoff) throws IOException {
+        sleep(backoff / 2 + ThreadLocalRandom.current().nextInt(backoff / 2 + 1));
+
+        initializingThread = Thread.currentThread();
+        try {
+            transportLayer.open();
+            if (closed) {
+                transportLayer.close();
+                checkOpen();
+            }
+            Initializer initializer = this.initializer;
+            if (initializer != null) {
+                initializer.initialize();
+            }
+            return true;
+        } catch (IOException e) {
+            transportLayer.close();
+            checkOpen();
+            return false;
+        } finally {
+            initializingThread = null;
+        }
+    }
+
+    private void sleep(int millis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        synchronized (backoffLock) {
+            long remaining;
+            while (!closed && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(backoffLock, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reconnecting.");
+                }
+            }
+        }
+        checkOpen();
+    }
+
+}
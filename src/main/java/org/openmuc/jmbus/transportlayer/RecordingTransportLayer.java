@@ -0,0 +1,142 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport layer which records all bytes read from and written to the layer it wraps.
+ * <p>
+ * Every read and write is appended to the capture file with the time it happened, in nanoseconds. A capture can be
+ * served again by a {@link ReplayTransportLayer}. The file is written through a buffer and is complete after
+ * {@link #close()}.
+ * </p>
+ */
+public class RecordingTransportLayer implements ChannelTransportLayer {
+
+    private final ChannelTransportLayer transportLayer;
+    private final File captureFile;
+
+    private final DataOutputStream os = new DataOutputStream(new ChannelOutputStream(this));
+    private final DataInputStream is = new DataInputStream(new ChannelInputStream(this, false));
+    private final byte[] scratch = new byte[256];
+
+    private volatile CaptureFile.Writer writer;
+
+    /**
+     * Creates a new recording transport layer.
+     *
+     * @param transportLayer
+     *            the transport layer to record.
+     * @param captureFile
+     *            the file to append the records to. It is created if it does not exist.
+     */
+    public RecordingTransportLayer(TransportLayer transportLayer, File captureFile) {
+        this.transportLayer = StreamChannelAdapter.adapt(transportLayer);
+        this.captureFile = captureFile;
+    }
+
+    @Override
+    public void open() throws IOException {
+        writer = new CaptureFile.Writer(captureFile);
+        try {
+            transportLayer.open();
+        } catch (IOException e) {
+            closeWriter();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        transportLayer.close();
+        closeWriter();
+    }
+
+    private void closeWriter() {
+        CaptureFile.Writer writer = this.writer;
+        this.writer = null;
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return transportLayer.isClosed();
+    }
+
+    @Override
+    public DataOutputStream getOutputStream() {
+        return os;
+    }
+
+    @Override
+    public DataInputStream getInputStream() {
+        return is;
+    }
+
+    @Override
+    public void setTimeout(int timeout) throws IOException {
+        transportLayer.setTimeout(timeout);
+    }
+
+    @Override
+    public int getTimeout() throws IOException {
+        return transportLayer.getTimeout();
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long deadline) throws IOException {
+        int numRead = transportLayer.read(dst, deadline);
+        if (numRead > 0) {
+            ByteBuffer received = dst.duplicate();
+            received.limit(received.position()).position(received.position() - numRead);
+            record(CaptureFile.READ, System.nanoTime(), received);
+        }
+        return numRead;
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        record(CaptureFile.WRITE, System.nanoTime(), src.duplicate());
+        transportLayer.write(src);
+    }
+
+    @Override
+    public int available() {
+        return transportLayer.available();
+    }
+
+    private void record(int type, long time, ByteBuffer bytes) throws IOException {
+        CaptureFile.Writer writer = this.writer;
+        if (writer == null || !bytes.hasRemaining()) {
+            return;
+        }
+
+        if (bytes.hasArray()) {
+            writer.write(type, time, bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            return;
+        }
+
+        synchronized (scratch) {
+            byte[] copy = bytes.remaining() <= scratch.length ? scratch : new byte[bytes.remaining()];
+            int length = bytes.remaining();
+            bytes.get(copy, 0, length);
+            writer.write(type, time, copy, 0, length);
+        }
+    }
+
+}
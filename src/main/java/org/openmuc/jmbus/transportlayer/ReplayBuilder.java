@@ -0,0 +1,50 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+import java.io.File;
+
+/**
+ * Connection builder for connections which replay a capture file.<br>
+ * The capture has been recorded by a connection built with {@link #setCaptureFile(File)}.
+ */
+public abstract class ReplayBuilder<T, S extends ReplayBuilder<T, S>> extends Builder<T, S> {
+
+    private final File replayFile;
+    private double speed = 1;
+
+    /**
+     * Constructor of the replay settings builder.
+     *
+     * @param replayFile
+     *            the capture file to replay.
+     */
+    protected ReplayBuilder(File replayFile) {
+        this.replayFile = replayFile;
+    }
+
+    /**
+     * Sets the factor the capture is sped up by. Default is {@code 1}, the original timing.
+     *
+     * @param speed
+     *            the speed, greater than zero, or {@link ReplayTransportLayer#MAX_SPEED} to replay as fast as
+     *            possible.
+     * @return the builder itself
+     */
+    public S setSpeed(double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Speed must be > 0.");
+        }
+        this.speed = speed;
+        return self();
+    }
+
+    @Override
+    protected TransportLayer buildTransportLayer() {
+        return new ReplayTransportLayer(replayFile, speed, getTimeout());
+    }
+
+}
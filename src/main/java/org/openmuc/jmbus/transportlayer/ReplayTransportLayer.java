@@ -0,0 +1,250 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport layer which serves the bytes of a capture file written by a {@link RecordingTransportLayer}.
+ * <p>
+ * The received bytes are served with the timing of the capture, divided by the speed. Bytes which were received after
+ * a write are held back until the client has written as many bytes again, and are timed relative to that write. This
+ * way the responses of a meter follow the requests of {@link org.openmuc.jmbus.MBusConnection} and the
+ * acknowledgements of a stick follow its configuration commands. The written bytes are not compared with the capture.
+ * </p>
+ * <p>
+ * After the last record the end of the stream is reached.
+ * </p>
+ */
+public class ReplayTransportLayer implements ChannelTransportLayer {
+
+    /**
+     * Serves the capture as fast as possible, without any delays.
+     */
+    public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+    private final File captureFile;
+    private final double speed;
+    private volatile int timeout;
+
+    private final DataOutputStream os = new DataOutputStream(new ChannelOutputStream(this));
+    private final DataInputStream is = new DataInputStream(new ChannelInputStream(this, false));
+
+    private final Object lock = new Object();
+    private boolean closed = true;
+    private CaptureFile.Records records;
+
+    // the next read record, its position and the number of writes before it
+    private int readIndex;
+    private int readPosition;
+    private int[] writesBefore;
+
+    // the next write record and the bytes of it written already
+    private int writeIndex;
+    private int writePosition;
+    private int writesDone;
+
+    // the record time of the write a read is timed relative to and when it happened
+    private long[] anchorRecordTimes;
+    private long[] anchorWallTimes;
+
+    /**
+     * Creates a new replay transport layer.
+     *
+     * @param captureFile
+     *            the capture file to serve.
+     * @param speed
+     *            the factor the capture is sped up by, {@code 1} for the original timing or {@link #MAX_SPEED}.
+     * @param timeout
+     *            the response timeout of the streams in MILLIS.
+     */
+    public ReplayTransportLayer(File captureFile, double speed, int timeout) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Speed must be > 0.");
+        }
+        this.captureFile = captureFile;
+        this.speed = speed;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void open() throws IOException {
+        CaptureFile.Records records = CaptureFile.read(captureFile);
+
+        int writes = 0;
+        int[] writesBefore = new int[records.size];
+        long[] anchorRecordTimes = new long[records.size + 1];
+        for (int i = 0; i < records.size; i++) {
+            writesBefore[i] = writes;
+            if (records.types[i] == CaptureFile.WRITE) {
+                anchorRecordTimes[++writes] = records.times[i];
+            }
+        }
+
+        synchronized (lock) {
+            this.records = records;
+            this.writesBefore = writesBefore;
+            this.anchorRecordTimes = anchorRecordTimes;
+            this.anchorWallTimes = new long[writes + 1];
+            this.anchorWallTimes[0] = System.nanoTime();
+            this.readIndex = nextRecord(0, CaptureFile.READ);
+            this.readPosition = 0;
+            this.writeIndex = nextRecord(0, CaptureFile.WRITE);
+            this.writePosition = 0;
+            this.writesDone = 0;
+            this.closed = false;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+
+    @Override
+    public DataOutputStream getOutputStream() {
+        return os;
+    }
+
+    @Override
+    public DataInputStream getInputStream() {
+        return is;
+    }
+
+    @Override
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long deadline) throws IOException {
+        synchronized (lock) {
+            while (true) {
+                checkOpen();
+                if (readIndex == records.size) {
+                    return -1;
+                }
+
+                long now = System.nanoTime();
+                int numRead = transferDue(dst, now);
+                if (numRead > 0 || !dst.hasRemaining()) {
+                    return numRead;
+                }
+
+                long wait = deadline - now;
+                if (wait <= 0) {
+                    return 0;
+                }
+                if (writesDone >= writesBefore[readIndex]) {
+                    // otherwise the next write of the client is awaited
+                    wait = Math.min(wait, dueTime(readIndex) - now);
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(lock, wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            while (src.hasRemaining() && writeIndex < records.size) {
+                int length = Math.min(src.remaining(), records.length(writeIndex) - writePosition);
+                src.position(src.position() + length);
+                writePosition += length;
+
+                if (writePosition == records.length(writeIndex)) {
+                    anchorWallTimes[++writesDone] = System.nanoTime();
+                    writeIndex = nextRecord(writeIndex + 1, CaptureFile.WRITE);
+                    writePosition = 0;
+                }
+            }
+            // bytes beyond the capture are dropped
+            src.position(src.limit());
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public int available() {
+        synchronized (lock) {
+            if (closed) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            int available = 0;
+            for (int i = readIndex; i < records.size && isDue(i, now); i = nextRecord(i + 1, CaptureFile.READ)) {
+                available += records.length(i) - (i == readIndex ? readPosition : 0);
+            }
+            return available;
+        }
+    }
+
+    private int transferDue(ByteBuffer dst, long now) {
+        int numRead = 0;
+        while (dst.hasRemaining() && readIndex < records.size && isDue(readIndex, now)) {
+            int length = Math.min(dst.remaining(), records.length(readIndex) - readPosition);
+            dst.put(records.data, records.offsets[readIndex] + readPosition, length);
+            readPosition += length;
+            numRead += length;
+
+            if (readPosition == records.length(readIndex)) {
+                readIndex = nextRecord(readIndex + 1, CaptureFile.READ);
+                readPosition = 0;
+            }
+        }
+        return numRead;
+    }
+
+    private boolean isDue(int index, long now) {
+        return writesDone >= writesBefore[index] && dueTime(index) - now <= 0;
+    }
+
+    private long dueTime(int index) {
+        int anchor = writesBefore[index];
+        long delay = records.times[index] - anchorRecordTimes[anchor];
+        return anchorWallTimes[anchor] + (long) (delay / speed);
+    }
+
+    private int nextRecord(int index, int type) {
+        while (index < records.size && records.types[index] != type) {
+            index++;
+        }
+        return index;
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Transport layer is closed.");
+        }
+    }
+
+}
@@ -108,7 +108,7 @@ public abstract class SerialBuilder<T, S extends SerialBuilder<T, S>> extends Bu
                 .setStopBits(stopBits)
                 .setParity(parity);
 
-        return new SerialLayer(getTimeout(), serialPortBuilder);
+        return record(new SerialLayer(getTimeout(), serialPortBuilder, baudrate));
     }
 
 }
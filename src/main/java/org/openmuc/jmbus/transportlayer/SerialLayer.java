@@ -5,43 +5,69 @@
  */
 package org.openmuc.jmbus.transportlayer;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import org.openmuc.jrxtx.SerialPort;
 import org.openmuc.jrxtx.SerialPortBuilder;
 
-class SerialLayer implements TransportLayer {
+class SerialLayer extends BlockingChannelLayer implements SerialTransportLayer {
     private final SerialPortBuilder serialPortBuilder;
-    private final int timeout;
+    private final int initialBaudRate;
 
-    private DataOutputStream os;
-    private DataInputStream is;
     private SerialPort serialPort;
+    private volatile InputStream is;
+    private volatile OutputStream os;
 
-    public SerialLayer(int timeout, SerialPortBuilder serialPortBuilder) {
+    public SerialLayer(int timeout, SerialPortBuilder serialPortBuilder, int baudRate) {
+        super(timeout, false);
         this.serialPortBuilder = serialPortBuilder;
-        this.timeout = timeout;
+        this.initialBaudRate = baudRate;
     }
 
     @Override
     public void open() throws IOException {
         serialPort = serialPortBuilder.build();
-        serialPort.setSerialPortTimeout(timeout);
+        resetReadTimeout();
+
+        os = serialPort.getOutputStream();
+        is = serialPort.getInputStream();
+    }
 
-        os = new DataOutputStream(serialPort.getOutputStream());
-        is = new DataInputStream(serialPort.getInputStream());
+    @Override
+    InputStream input() {
+        return is;
     }
 
     @Override
-    public DataOutputStream getOutputStream() {
+    OutputStream output() {
         return os;
     }
 
     @Override
-    public DataInputStream getInputStream() {
-        return is;
+    void setReadTimeout(int timeout) throws IOException {
+        serialPort.setSerialPortTimeout(timeout);
+    }
+
+    /*
+     * A closed port reports the baud rate it is opened with, which is the one of the builder again after a change.
+     */
+    @Override
+    public int getBaudRate() {
+        SerialPort serialPort = this.serialPort;
+        if (serialPort == null || serialPort.isClosed()) {
+            return initialBaudRate;
+        }
+        return serialPort.getBaudRate();
+    }
+
+    @Override
+    public void changeBaudRate(int baudRate) throws IOException {
+        if (serialPort == null || serialPort.isClosed()) {
+            throw new IOException("Serial port is not open.");
+        }
+        serialPort.setBaudRate(baudRate);
     }
 
     @Override
@@ -61,14 +87,4 @@ class SerialLayer implements TransportLayer {
         return serialPort == null;
     }
 
-    @Override
-    public void setTimeout(int timeout) throws IOException {
-        serialPort.setSerialPortTimeout(timeout);
-    }
-
-    @Override
-    public int getTimeout() {
-        return serialPort.getSerialPortTimeout();
-    }
-
 }
@@ -0,0 +1,36 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+import java.io.IOException;
+
+/**
+ * A transport layer to a serial line whose baud rate can be changed while it is open.
+ * <p>
+ * Bytes which have been written before the change have been sent at the previous baud rate, bytes which have not been
+ * read yet may be lost.
+ * </p>
+ */
+public interface SerialTransportLayer extends TransportLayer {
+
+    /**
+     * Returns the current baud rate of the line.
+     *
+     * @return the baud rate.
+     */
+    int getBaudRate();
+
+    /**
+     * Changes the baud rate of the line.
+     *
+     * @param baudRate
+     *            the new baud rate.
+     * @throws IOException
+     *             if the baud rate is not supported or could not be set.
+     */
+    void changeBaudRate(int baudRate) throws IOException;
+
+}
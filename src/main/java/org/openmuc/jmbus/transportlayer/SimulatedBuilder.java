@@ -0,0 +1,31 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+/**
+ * Connection builder for connections to simulated devices in the same process.
+ */
+public abstract class SimulatedBuilder<T, S extends SimulatedBuilder<T, S>> extends Builder<T, S> {
+
+    private final SimulatedTransportLayer transportLayer;
+
+    /**
+     * Constructor of the simulation settings builder.
+     *
+     * @param transportLayer
+     *            the simulation to connect to.
+     */
+    protected SimulatedBuilder(SimulatedTransportLayer transportLayer) {
+        this.transportLayer = transportLayer;
+    }
+
+    @Override
+    protected TransportLayer buildTransportLayer() {
+        transportLayer.setTimeout(getTimeout());
+        return record(transportLayer);
+    }
+
+}
@@ -0,0 +1,250 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport layer which talks to simulated devices in the same process instead of real hardware.
+ * <p>
+ * Bytes written to the layer are passed to {@link #received(byte[], int, int)}, the subclass answers with
+ * {@link #respond(byte[], long)}. A response is served once its due time has passed, responses are served in the order
+ * they were queued. A device which sends on its own, like a wireless M-Bus stick, queues its bytes in
+ * {@link #poll(long)}. All three methods are called while holding the lock of the layer.
+ * </p>
+ */
+public abstract class SimulatedTransportLayer implements ChannelTransportLayer {
+
+    private final DataOutputStream os = new DataOutputStream(new ChannelOutputStream(this));
+    private final DataInputStream is = new DataInputStream(new ChannelInputStream(this, false));
+
+    private final Object lock = new Object();
+    private final Queue<Response> responses = new ArrayDeque<>();
+    private volatile int timeout = 500;
+    private boolean closed = true;
+    private long lastDueTime;
+
+    private static class Response {
+        private final byte[] data;
+        private final long dueTime;
+        private int position;
+
+        Response(byte[] data, long dueTime) {
+            this.data = data;
+            this.dueTime = dueTime;
+        }
+    }
+
+    /**
+     * Called for every chunk of bytes written to the layer.
+     *
+     * @param b
+     *            the buffer holding the bytes.
+     * @param off
+     *            the offset of the bytes.
+     * @param len
+     *            the number of bytes.
+     */
+    protected abstract void received(byte[] b, int off, int len);
+
+    /**
+     * Queues bytes to be read from the layer.
+     *
+     * @param data
+     *            the bytes, which must not be modified afterwards.
+     * @param dueTime
+     *            the {@link System#nanoTime()} from which on the bytes can be read. A response is never served before
+     *            the responses queued earlier.
+     */
+    protected final void respond(byte[] data, long dueTime) {
+        synchronized (lock) {
+            if (closed || data.length == 0) {
+                return;
+            }
+            if (!responses.isEmpty() && dueTime - lastDueTime < 0) {
+                dueTime = lastDueTime;
+            }
+            lastDueTime = dueTime;
+            responses.add(new Response(data, dueTime));
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Called before bytes are served, so that the simulated device can queue what it has sent until now. Does nothing
+     * by default.
+     *
+     * @param now
+     *            the current {@link System#nanoTime()}.
+     * @return the time in nanoseconds until the device sends next, or a negative value if it does not send on its own.
+     */
+    protected long poll(long now) {
+        return -1;
+    }
+
+    /**
+     * Called when the layer is opened, before any bytes are exchanged. Does nothing by default.
+     *
+     * @throws IOException
+     *             if the simulated device cannot be opened.
+     */
+    protected void opened() throws IOException {
+        // nothing to prepare by default
+    }
+
+    @Override
+    public void open() throws IOException {
+        synchronized (lock) {
+            responses.clear();
+            closed = false;
+            try {
+                opened();
+            } catch (IOException e) {
+                closed = true;
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            responses.clear();
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+
+    @Override
+    public DataOutputStream getOutputStream() {
+        return os;
+    }
+
+    @Override
+    public DataInputStream getInputStream() {
+        return is;
+    }
+
+    @Override
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long deadline) throws IOException {
+        synchronized (lock) {
+            while (true) {
+                checkOpen();
+
+                long now = System.nanoTime();
+                long nextPoll = poll(now);
+                int numRead = transferDue(dst, now);
+                if (numRead > 0 || !dst.hasRemaining()) {
+                    return numRead;
+                }
+
+                long wait = deadline - now;
+                if (wait <= 0) {
+                    return 0;
+                }
+                if (nextPoll >= 0) {
+                    wait = Math.min(wait, nextPoll);
+                }
+                Response next = responses.peek();
+                if (next != null) {
+                    wait = Math.min(wait, next.dueTime - now);
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(lock, wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            if (!src.hasRemaining()) {
+                return;
+            }
+            if (src.hasArray()) {
+                received(src.array(), src.arrayOffset() + src.position(), src.remaining());
+                src.position(src.limit());
+            }
+            else {
+                byte[] copy = new byte[src.remaining()];
+                src.get(copy);
+                received(copy, 0, copy.length);
+            }
+            // the device may have started to send on its own, a waiting reader has to poll again
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public int available() {
+        synchronized (lock) {
+            if (closed) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            poll(now);
+            int available = 0;
+            for (Response response : responses) {
+                if (response.dueTime - now > 0) {
+                    break;
+                }
+                available += response.data.length - response.position;
+            }
+            return available;
+        }
+    }
+
+    private int transferDue(ByteBuffer dst, long now) {
+        int numRead = 0;
+        Response response;
+        while (dst.hasRemaining() && (response = responses.peek()) != null && response.dueTime - now <= 0) {
+            int length = Math.min(dst.remaining(), response.data.length - response.position);
+            dst.put(response.data, response.position, length);
+            response.position += length;
+            numRead += length;
+
+            if (response.position == response.data.length) {
+                responses.remove();
+            }
+        }
+        return numRead;
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Transport layer is closed.");
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Adapts a transport layer which only provides streams to the {@link ChannelTransportLayer} interface.
+ * <p>
+ * The timeout of the adapted layer is used as read timeout of its input stream, the adapter keeps the response
+ * timeout of its own streams separately. Use the streams of the adapter instead of those of the adapted layer.
+ * </p>
+ */
+public final class StreamChannelAdapter extends BlockingChannelLayer {
+
+    private static final int DEFAULT_TIMEOUT = 500;
+
+    private final TransportLayer transportLayer;
+
+    private StreamChannelAdapter(TransportLayer transportLayer) {
+        super(timeoutOf(transportLayer), false);
+        this.transportLayer = transportLayer;
+    }
+
+    /**
+     * Get the channel interface of a transport layer.
+     *
+     * @param transportLayer
+     *            the transport layer.
+     * @return the transport layer itself if it implements {@link ChannelTransportLayer}, an adapter otherwise.
+     */
+    public static ChannelTransportLayer adapt(TransportLayer transportLayer) {
+        if (transportLayer instanceof ChannelTransportLayer) {
+            return (ChannelTransportLayer) transportLayer;
+        }
+        return new StreamChannelAdapter(transportLayer);
+    }
+
+    private static int timeoutOf(TransportLayer transportLayer) {
+        try {
+            return transportLayer.getTimeout();
+        } catch (IOException e) {
+            return DEFAULT_TIMEOUT;
+        }
+    }
+
+    @Override
+    public void open() throws IOException {
+        transportLayer.open();
+        resetReadTimeout();
+    }
+
+    @Override
+    public void close() {
+        transportLayer.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return transportLayer.isClosed();
+    }
+
+    @Override
+    InputStream input() {
+        return transportLayer.getInputStream();
+    }
+
+    @Override
+    OutputStream output() {
+        return transportLayer.getOutputStream();
+    }
+
+    @Override
+    void setReadTimeout(int timeout) throws IOException {
+        transportLayer.setTimeout(timeout);
+    }
+
+}
@@ -14,6 +14,9 @@ public abstract class TcpBuilder<T, S extends TcpBuilder<T, S>> extends Builder<
     private String hostAddress;
     private int port;
     private int connectionTimeout = 10000; // 10 s
+    private boolean tcpNoDelay;
+    private boolean keepAlive;
+    private boolean useNio;
 
     /**
      * Constructor of the TCP/IP Settings Builder, for connecting M-Bus devices over TCP/IP.
@@ -66,8 +69,48 @@ public abstract class TcpBuilder<T, S extends TcpBuilder<T, S>> extends Builder<
         return self();
     }
 
+    /**
+     * Enables or disables TCP_NODELAY, which sends short frames without waiting for further data. Disabled by default.
+     * 
+     * @param tcpNoDelay
+     *            {@code true} to disable Nagle's algorithm.
+     * @return the builder itself
+     */
+    public S setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return self();
+    }
+
+    /**
+     * Enables or disables TCP keep-alive, which detects dead connections to idle gateways. Disabled by default.
+     * 
+     * @param keepAlive
+     *            {@code true} to enable SO_KEEPALIVE.
+     * @return the builder itself
+     */
+    public S setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        return self();
+    }
+
+    /**
+     * Selects the transport layer based on a non-blocking NIO socket channel. It reads ahead into a direct buffer
+     * instead of reading every byte with a system call of its own. Disabled by default.
+     * 
+     * @param useNio
+     *            {@code true} to use the NIO transport layer.
+     * @return the builder itself
+     */
+    public S setUseNio(boolean useNio) {
+        this.useNio = useNio;
+        return self();
+    }
+
     @Override
     protected TransportLayer buildTransportLayer() {
-        return new TcpLayer(hostAddress, port, connectionTimeout, getTimeout());
+        if (useNio) {
+            return record(new NioTcpLayer(hostAddress, port, connectionTimeout, getTimeout(), tcpNoDelay, keepAlive));
+        }
+        return record(new TcpLayer(hostAddress, port, connectionTimeout, getTimeout(), tcpNoDelay, keepAlive));
     }
 }
@@ -5,30 +5,34 @@
  */
 package org.openmuc.jmbus.transportlayer;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.text.MessageFormat;
 
-class TcpLayer implements TransportLayer {
+class TcpLayer extends BlockingChannelLayer {
     private final String hostAddress;
     private final int port;
-    private final int timeout;
     private final int connectionTimeout;
+    private final boolean tcpNoDelay;
+    private final boolean keepAlive;
 
     private Socket client;
-    private DataOutputStream os;
-    private DataInputStream is;
+    private volatile OutputStream os;
+    private volatile InputStream is;
 
-    TcpLayer(String hostAddress, int port, int connectionTimeout, int timeout) {
+    TcpLayer(String hostAddress, int port, int connectionTimeout, int timeout, boolean tcpNoDelay,
+            boolean keepAlive) {
+        super(timeout, true);
         this.hostAddress = hostAddress;
         this.port = port;
-        this.timeout = timeout;
         this.connectionTimeout = connectionTimeout;
+        this.tcpNoDelay = tcpNoDelay;
+        this.keepAlive = keepAlive;
     }
 
     @Override
@@ -38,20 +42,22 @@ class TcpLayer implements TransportLayer {
         try {
             SocketAddress socketAddress = new InetSocketAddress(hostname, port);
             this.client = new Socket();
+            this.client.setTcpNoDelay(tcpNoDelay);
+            this.client.setKeepAlive(keepAlive);
             this.client.connect(socketAddress, connectionTimeout);
-            this.client.setSoTimeout(timeout);
         } catch (IOException e) {
             String msg = MessageFormat.format("Connecting to {0}:{1} failed.", hostname, port);
             throw new IOException(msg, e);
         }
 
+        resetReadTimeout();
         initialiseIOStreams();
     }
 
     private void initialiseIOStreams() throws IOException {
         try {
-            this.os = new DataOutputStream(client.getOutputStream());
-            this.is = new DataInputStream(client.getInputStream());
+            this.os = client.getOutputStream();
+            this.is = client.getInputStream();
         } catch (IOException e) {
             close();
             throw new IOException("Error getting output or input stream from TCP connection.", e);
@@ -73,28 +79,24 @@ class TcpLayer implements TransportLayer {
     }
 
     @Override
-    public DataOutputStream getOutputStream() {
-        return os;
-    }
-
-    @Override
-    public DataInputStream getInputStream() {
+    InputStream input() {
         return is;
     }
 
     @Override
-    public boolean isClosed() {
-        return client.isClosed();
+    OutputStream output() {
+        return os;
     }
 
     @Override
-    public void setTimeout(int timeout) throws IOException {
+    void setReadTimeout(int timeout) throws IOException {
         client.setSoTimeout(timeout);
     }
 
     @Override
-    public int getTimeout() throws IOException {
-        return client.getSoTimeout();
+    public boolean isClosed() {
+        Socket client = this.client;
+        return client == null || client.isClosed();
     }
 
     /**
@@ -106,7 +108,7 @@ class TcpLayer implements TransportLayer {
     private void flushInputStream() throws IOException {
         try {
             while (is.available() > 0) {
-                is.readFully(new byte[is.available()]);
+                is.skip(is.available());
             }
         } catch (IOException e) {
             close();
@@ -9,26 +9,47 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import org.openmuc.jmbus.DecodingException;
 import org.openmuc.jmbus.SecondaryAddress;
+import org.openmuc.jmbus.UndecryptableMeterCache;
+import org.openmuc.jmbus.transportlayer.ChannelTransportLayer;
+import org.openmuc.jmbus.transportlayer.ReconnectingTransportLayer;
+import org.openmuc.jmbus.transportlayer.StreamChannelAdapter;
 import org.openmuc.jmbus.transportlayer.TransportLayer;
 
 abstract class AbstractWMBusConnection implements WMBusConnection {
 
     private static final int ACK = 0x3E;
+    private static final int MAX_NOISE_LENGTH = 500;
 
-    protected static final int BUFFER_LENGTH = 1000;
     protected static final int MESSAGE_FRAGEMENT_TIMEOUT = 1000;
 
-    private TransportLayer transportLayer;
+    private ChannelTransportLayer transportLayer;
 
     private final WMBusMode mode;
     private final WMBusListener listener;
 
+    private int queueCapacity = MessageDispatcher.DEFAULT_QUEUE_CAPACITY;
+    private OverflowPolicy overflowPolicy = MessageDispatcher.DEFAULT_OVERFLOW_POLICY;
+    private WMBusBatchListener batchListener;
+    private int maxBatchSize;
+    private int maxBatchLatency;
+    private int listenerThreads = 1;
+    private MessageDispatcher dispatcher;
+    private volatile AddressFilter addressFilter;
+    private ReceptionStatistics receptionStatistics;
+    private MeterLivenessTracker livenessTracker;
+    private RetransmissionFilter retransmissionFilter;
+    private TelegramBufferPool bufferPool;
+    private UndecryptableMeterCache undecryptableMeterCache;
+
     final Map<SecondaryAddress, byte[]> keyMap = new HashMap<>();
 
     private volatile boolean closed;
@@ -37,14 +58,15 @@ abstract class AbstractWMBusConnection implements WMBusConnection {
     protected AbstractWMBusConnection(WMBusMode mode, WMBusListener listener, TransportLayer tl) {
         this.listener = listener;
         this.mode = mode;
-        this.transportLayer = tl;
+        this.transportLayer = StreamChannelAdapter.adapt(tl);
 
         this.closed = true;
         this.receiverService = Executors.newSingleThreadExecutor();
     }
 
     @Override
-    public final void close() {
+    public final synchronized void close() {
+        // the receiver closes the connection when it stops, maybe at the same time as the user
         if (this.transportLayer == null || this.closed) {
             // nothing to do
             return;
@@ -52,6 +74,7 @@ abstract class AbstractWMBusConnection implements WMBusConnection {
 
         try {
             this.receiverService.shutdown();
+            this.dispatcher.shutdown();
             this.transportLayer.close();
         } finally {
             this.transportLayer = null;
@@ -62,33 +85,204 @@ abstract class AbstractWMBusConnection implements WMBusConnection {
     @Override
     public final void addKey(SecondaryAddress address, byte[] key) {
         this.keyMap.put(address, key);
+        // the meter may be decryptable now
+        if (undecryptableMeterCache != null) {
+            undecryptableMeterCache.remove(address);
+        }
     }
 
     @Override
     public final void removeKey(SecondaryAddress address) {
         this.keyMap.remove(address);
+        if (undecryptableMeterCache != null) {
+            undecryptableMeterCache.remove(address);
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return dispatcher == null ? 0 : dispatcher.getQueueDepth();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return dispatcher == null ? 0 : dispatcher.getDroppedCount();
+    }
+
+    @Override
+    public void setAddressFilter(AddressFilter addressFilter) {
+        this.addressFilter = addressFilter;
+    }
+
+    /*
+     * Returns whether the messages of the connection are delivered to the listener.
+     */
+    boolean deliversTo(WMBusListener candidate) {
+        return batchListener == null && listener == candidate;
+    }
+
+    void setReceptionStatistics(ReceptionStatistics receptionStatistics) {
+        this.receptionStatistics = receptionStatistics;
+    }
+
+    void setLivenessTracker(MeterLivenessTracker livenessTracker) {
+        this.livenessTracker = livenessTracker;
+    }
+
+    void setRetransmissionFilter(RetransmissionFilter retransmissionFilter) {
+        this.retransmissionFilter = retransmissionFilter;
+    }
+
+    void setBufferPool(TelegramBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    void setUndecryptableMeterCache(UndecryptableMeterCache undecryptableMeterCache) {
+        this.undecryptableMeterCache = undecryptableMeterCache;
+    }
+
+    protected TelegramBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Get a buffer for a frame or telegram, recycled if the connection pools buffers.
+     * 
+     * @param length
+     *            the length of the buffer.
+     * @return the buffer.
+     */
+    protected byte[] newBuffer(int length) {
+        return bufferPool == null ? new byte[length] : bufferPool.acquire(length);
+    }
+
+    /**
+     * Returns a buffer which is no longer used to the pool, if the connection pools buffers.
+     * 
+     * @param buffer
+     *            the buffer.
+     */
+    protected void recycle(byte[] buffer) {
+        if (bufferPool != null) {
+            bufferPool.recycle(buffer);
+        }
+    }
+
+    /**
+     * Filters and decodes a received telegram and hands it over to the listener.
+     * 
+     * @param buffer
+     *            the telegram, starting with the length field. Owned by the connection afterwards.
+     * @param signalStrengthInDBm
+     *            the RSSI of the telegram or {@code null} if unknown.
+     * @param receiveTime
+     *            the value of {@link System#nanoTime()} when the first byte of the telegram has been read.
+     * @param hardwareTimestamp
+     *            the time stamp attached by the stick or {@code null} if none.
+     * @param receiver
+     *            the receiver which received the telegram.
+     */
+    protected void handleTelegram(byte[] buffer, Integer signalStrengthInDBm, long receiveTime, Long hardwareTimestamp,
+            MessageReceiver receiver) {
+        AddressFilter filter = this.addressFilter;
+        if (filter != null && !filter.acceptsTelegram(buffer)) {
+            recycle(buffer);
+            return;
+        }
+        if (retransmissionFilter != null && retransmissionFilter.isRetransmission(buffer)) {
+            if (receptionStatistics != null) {
+                receptionStatistics.recordDuplicate(buffer);
+            }
+            recycle(buffer);
+            return;
+        }
+
+        WMBusMessage message;
+        try {
+            message = WMBusMessage.decode(buffer, signalStrengthInDBm, receiveTime, hardwareTimestamp, keyMap,
+                    bufferPool);
+        } catch (DecodingException e) {
+            if (receptionStatistics != null) {
+                receptionStatistics.recordDecodingFailure(buffer);
+            }
+            receiver.notifyDiscarded(buffer);
+            return;
+        }
+
+        message.setUndecryptableMeterCache(undecryptableMeterCache);
+        message.setReceptionStatistics(receptionStatistics);
+        if (receptionStatistics != null) {
+            receptionStatistics.record(message);
+        }
+        if (livenessTracker != null) {
+            livenessTracker.messageReceived(message);
+        }
+        receiver.notifyNewMessage(message);
+    }
+
+    void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    void setListenerThreads(int listenerThreads) {
+        this.listenerThreads = listenerThreads;
+    }
+
+    void setBatchListener(WMBusBatchListener batchListener, int maxBatchSize, int maxBatchLatency) {
+        this.batchListener = batchListener;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchLatency = maxBatchLatency;
     }
 
     public final void open() throws IOException {
         if (!closed) {
             return;
         }
+        // built first, so that invalid settings fail before the transport layer is opened
+        MessageDispatcher newDispatcher = newMessageDispatcher();
         try {
             transportLayer.open();
 
             initializeWirelessTransceiver(mode);
 
-        } catch (IOException e) {
+            if (transportLayer instanceof ReconnectingTransportLayer) {
+                // the stick has to be configured again after every reconnect
+                ReconnectingTransportLayer reconnectingLayer = (ReconnectingTransportLayer) transportLayer;
+                reconnectingLayer.setInitializer(new ReconnectingTransportLayer.Initializer() {
+                    @Override
+                    public void initialize() throws IOException {
+                        initializeWirelessTransceiver(mode);
+                    }
+                });
+            }
+
+        } catch (IOException | RuntimeException e) {
             transportLayer.close();
+            newDispatcher.shutdown();
 
             throw e;
         }
-        this.receiverService.execute(newMessageReceiver(this.transportLayer, this.listener));
+        this.dispatcher = newDispatcher;
+        this.dispatcher.start();
 
+        // the receiver stops as soon as it sees the connection closed
         this.closed = false;
+        this.receiverService.execute(newMessageReceiver(this.transportLayer, this.dispatcher));
     }
 
-    protected abstract MessageReceiver newMessageReceiver(TransportLayer transportLayer, WMBusListener listener);
+    private MessageDispatcher newMessageDispatcher() {
+        if (this.batchListener != null) {
+            return new MessageDispatcher(this.batchListener, this.maxBatchSize, this.maxBatchLatency,
+                    this.listenerThreads, this.queueCapacity, this.overflowPolicy);
+        }
+        return new MessageDispatcher(this.listener, this.listenerThreads, this.queueCapacity, this.overflowPolicy);
+    }
+
+    protected abstract MessageReceiver newMessageReceiver(TransportLayer transportLayer, MessageDispatcher dispatcher);
 
     protected abstract void initializeWirelessTransceiver(WMBusMode mode) throws IOException;
 
@@ -105,29 +299,32 @@ abstract class AbstractWMBusConnection implements WMBusConnection {
     }
 
     protected long discardNoise() throws IOException {
-        DataInputStream inputStream = getInputStream();
-
-        if (inputStream.available() == 0) {
+        if (transportLayer.available() == 0) {
             return 0;
         }
 
-        transportLayer.setTimeout(MESSAGE_FRAGEMENT_TIMEOUT);
-        try {
-            return inputStream.skip(500);
-
-        } catch (InterruptedIOException e) {
-            // ignore
-            return 0;
-        }
+        ByteBuffer noise = ByteBuffer.allocate(MAX_NOISE_LENGTH);
+        return Math.max(0, transportLayer.read(noise, fragmentDeadline()));
     }
 
     protected void waitForAck() throws IOException {
-        transportLayer.setTimeout(MESSAGE_FRAGEMENT_TIMEOUT);
+        ByteBuffer ack = ByteBuffer.allocate(1);
 
-        int b = getInputStream().read();
+        int numRead = transportLayer.read(ack, fragmentDeadline());
+        if (numRead == 0) {
+            throw new InterruptedIOException("Did not receive ACK in time.");
+        }
+        if (numRead < 0) {
+            throw new IOException("Did not receive ACK. End of stream reached.");
+        }
+        int b = ack.get(0) & 0xff;
         if (b != ACK) {
             throw new IOException(String.format("Did not receive ACK. Received 0x%02X instead.", b));
         }
     }
 
+    private static long fragmentDeadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MESSAGE_FRAGEMENT_TIMEOUT);
+    }
+
 }
@@ -0,0 +1,208 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import java.util.BitSet;
+import java.util.Locale;
+
+import org.openmuc.jmbus.DeviceType;
+import org.openmuc.jmbus.SecondaryAddress;
+
+/**
+ * Filters received telegrams by their link layer address before they are decoded. Telegrams which are not accepted
+ * are dropped silently by the connection.
+ * <p>
+ * A telegram is accepted if none of the deny lists contains its address, manufacturer or device type and every non
+ * empty allow list contains it. The filter tests the raw address bytes of the telegram, no object is created for
+ * rejected telegrams.
+ * </p>
+ * <p>
+ * Secondary addresses have to be in the byte order of the wireless M-Bus link layer, e.g. as returned by
+ * {@link WMBusMessage#getSecondaryAddress()} or {@link SecondaryAddress#newFromWMBusHeader(byte[], int)}.
+ * </p>
+ *
+ * @see WMBusConnection#setAddressFilter(AddressFilter)
+ */
+public class AddressFilter {
+
+    private final LongHashSet allowedAddresses;
+    private final LongHashSet deniedAddresses;
+    private final BitSet allowedManufacturers;
+    private final BitSet deniedManufacturers;
+    private final BitSet allowedDeviceTypes;
+    private final BitSet deniedDeviceTypes;
+
+    private AddressFilter(Builder builder) {
+        this.allowedAddresses = new LongHashSet(builder.allowedAddresses);
+        this.deniedAddresses = new LongHashSet(builder.deniedAddresses);
+        this.allowedManufacturers = (BitSet) builder.allowedManufacturers.clone();
+        this.deniedManufacturers = (BitSet) builder.deniedManufacturers.clone();
+        this.allowedDeviceTypes = (BitSet) builder.allowedDeviceTypes.clone();
+        this.deniedDeviceTypes = (BitSet) builder.deniedDeviceTypes.clone();
+    }
+
+    /**
+     * Create a new builder for an address filter.
+     * 
+     * @return a new builder.
+     */
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Check if the filter accepts the given address.
+     * 
+     * @param address
+     *            the link layer secondary address.
+     * @return {@code true} if telegrams from this address are accepted.
+     */
+    public boolean accepts(SecondaryAddress address) {
+        return accepts(WMBusMessage.packAddress(address.asByteArray(), 0));
+    }
+
+    /*
+     * The buffer starts with the length field, followed by the control field and the address.
+     */
+    boolean acceptsTelegram(byte[] buffer) {
+        if (buffer.length < 10) {
+            // too short to be a telegram, let the decoder discard it
+            return true;
+        }
+        return accepts(WMBusMessage.packAddress(buffer, 2));
+    }
+
+    boolean accepts(long address) {
+        int manufacturer = (int) (address & 0xffff);
+        int deviceType = (int) (address >>> 56);
+
+        if (deniedAddresses.contains(address) || deniedManufacturers.get(manufacturer)
+                || deniedDeviceTypes.get(deviceType)) {
+            return false;
+        }
+
+        return (allowedAddresses.isEmpty() || allowedAddresses.contains(address))
+                && (allowedManufacturers.isEmpty() || allowedManufacturers.get(manufacturer))
+                && (allowedDeviceTypes.isEmpty() || allowedDeviceTypes.get(deviceType));
+    }
+
+    /**
+     * Builder for an {@link AddressFilter}. The built filter is immutable, changes of the builder afterwards do not
+     * affect it.
+     */
+    public static class Builder {
+
+        private final LongHashSet allowedAddresses = new LongHashSet(16);
+        private final LongHashSet deniedAddresses = new LongHashSet(16);
+        private final BitSet allowedManufacturers = new BitSet();
+        private final BitSet deniedManufacturers = new BitSet();
+        private final BitSet allowedDeviceTypes = new BitSet();
+        private final BitSet deniedDeviceTypes = new BitSet();
+
+        private Builder() {
+        }
+
+        /**
+         * Allows telegrams of a meter.
+         * 
+         * @param address
+         *            the link layer secondary address of the meter.
+         * @return the builder itself.
+         */
+        public Builder allowAddress(SecondaryAddress address) {
+            allowedAddresses.add(WMBusMessage.packAddress(address.asByteArray(), 0));
+            return this;
+        }
+
+        /**
+         * Denies telegrams of a meter.
+         * 
+         * @param address
+         *            the link layer secondary address of the meter.
+         * @return the builder itself.
+         */
+        public Builder denyAddress(SecondaryAddress address) {
+            deniedAddresses.add(WMBusMessage.packAddress(address.asByteArray(), 0));
+            return this;
+        }
+
+        /**
+         * Allows telegrams of a manufacturer.
+         * 
+         * @param manufacturerId
+         *            the three letter manufacturer ID, e.g. {@code "KAM"}.
+         * @return the builder itself.
+         * @throws IllegalArgumentException
+         *             if the manufacturer ID does not consist of three letters A to Z.
+         */
+        public Builder allowManufacturer(String manufacturerId) {
+            allowedManufacturers.set(encodeManufacturerId(manufacturerId));
+            return this;
+        }
+
+        /**
+         * Denies telegrams of a manufacturer.
+         * 
+         * @param manufacturerId
+         *            the three letter manufacturer ID, e.g. {@code "KAM"}.
+         * @return the builder itself.
+         * @throws IllegalArgumentException
+         *             if the manufacturer ID does not consist of three letters A to Z.
+         */
+        public Builder denyManufacturer(String manufacturerId) {
+            deniedManufacturers.set(encodeManufacturerId(manufacturerId));
+            return this;
+        }
+
+        /**
+         * Allows telegrams of a device type.
+         * 
+         * @param deviceType
+         *            the device type, e.g. {@link DeviceType#WATER_METER}.
+         * @return the builder itself.
+         */
+        public Builder allowDeviceType(DeviceType deviceType) {
+            allowedDeviceTypes.set(deviceType.getId());
+            return this;
+        }
+
+        /**
+         * Denies telegrams of a device type.
+         * 
+         * @param deviceType
+         *            the device type, e.g. {@link DeviceType#WATER_METER}.
+         * @return the builder itself.
+         */
+        public Builder denyDeviceType(DeviceType deviceType) {
+            deniedDeviceTypes.set(deviceType.getId());
+            return this;
+        }
+
+        /**
+         * Builds the address filter.
+         * 
+         * @return a new address filter.
+         */
+        public AddressFilter build() {
+            return new AddressFilter(this);
+        }
+
+        private static int encodeManufacturerId(String manufacturerId) {
+            if (manufacturerId.length() != 3) {
+                throw new IllegalArgumentException("Manufacturer ID must have three letters: " + manufacturerId);
+            }
+
+            char[] chars = manufacturerId.toUpperCase(Locale.ROOT).toCharArray();
+            for (char c : chars) {
+                if (c < 'A' || c > 'Z') {
+                    throw new IllegalArgumentException("Manufacturer ID must have three letters: " + manufacturerId);
+                }
+            }
+            return ((chars[0] - 64) << 10) | ((chars[1] - 64) << 5) | (chars[2] - 64);
+        }
+    }
+
+}
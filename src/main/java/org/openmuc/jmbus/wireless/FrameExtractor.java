@@ -0,0 +1,304 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openmuc.jmbus.transportlayer.ChannelTransportLayer;
+import org.openmuc.jmbus.transportlayer.StreamChannelAdapter;
+import org.openmuc.jmbus.transportlayer.TransportLayer;
+
+/**
+ * Extracts the frames of a wireless M-Bus stick from the input stream of the transport layer.
+ * <p>
+ * Received bytes are read in chunks into a ring buffer and the frame boundaries are searched in memory. Subclasses
+ * define the framing of the stick through {@link #frameLength()}. Bytes which do not belong to a frame are reported
+ * through {@link #discarded(byte[])}.
+ * </p>
+ * <p>
+ * Every read waits until the fragment timeout has passed at most, so the fragment timeout is the poll interval. A frame
+ * which is not completed within the fragment timeout is discarded, based on timestamps rather than on read timeouts.
+ * </p>
+ * <p>
+ * Every chunk is stamped with {@link System#nanoTime()} when its first byte has been read, a frame gets the stamp of
+ * the chunk containing its first byte, see {@link #getFrameArrival()}.
+ * </p>
+ */
+abstract class FrameExtractor {
+
+    /**
+     * Returned by {@link #frameLength()} if the first buffered byte does not start a frame.
+     */
+    static final int NOT_A_FRAME = -1;
+
+    /**
+     * Returned by {@link #frameLength()} if more bytes are needed to determine the length of the frame.
+     */
+    static final int INCOMPLETE = 0;
+
+    private static final int CAPACITY = 4096;
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_DISCARD_LENGTH = 100;
+    private static final int MAX_CHUNKS = 64;
+
+    private final ChannelTransportLayer transportLayer;
+    private final TelegramBufferPool bufferPool;
+    private final long fragmentTimeoutNanos;
+
+    private final byte[] buffer = new byte[CAPACITY];
+    private final ByteBuffer bufferView = ByteBuffer.wrap(buffer);
+    private int head;
+    private int count;
+
+    private final byte[] discardBuffer = new byte[MAX_DISCARD_LENGTH];
+    private int discardCount;
+
+    // arrival times of the buffered chunks, by the position of their first byte in the stream
+    private final long[] chunkPositions = new long[MAX_CHUNKS];
+    private final long[] chunkArrivals = new long[MAX_CHUNKS];
+    private int chunkHead;
+    private int chunkCount;
+    private long position;
+    private long frameArrival;
+
+    private long incompleteSince;
+    private boolean incomplete;
+
+    /**
+     * Creates a new frame extractor.
+     *
+     * @param transportLayer
+     *            the transport layer to read from.
+     * @param fragmentTimeout
+     *            the time in MILLIS a started frame may take to be completed.
+     */
+    FrameExtractor(TransportLayer transportLayer, int fragmentTimeout) {
+        this(transportLayer, fragmentTimeout, null);
+    }
+
+    /**
+     * Creates a new frame extractor which reads the frames into recycled buffers.
+     *
+     * @param transportLayer
+     *            the transport layer to read from.
+     * @param fragmentTimeout
+     *            the time in MILLIS a started frame may take to be completed.
+     * @param bufferPool
+     *            the pool providing the frame buffers or {@code null} to allocate them.
+     */
+    FrameExtractor(TransportLayer transportLayer, int fragmentTimeout, TelegramBufferPool bufferPool) {
+        this.transportLayer = StreamChannelAdapter.adapt(transportLayer);
+        this.bufferPool = bufferPool;
+        this.fragmentTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(fragmentTimeout);
+    }
+
+    /**
+     * Determines the length of the frame starting at the first buffered byte. Use {@link #buffered()} and
+     * {@link #peek(int)} to inspect the buffered bytes.
+     *
+     * @return the length of the frame, {@link #NOT_A_FRAME} if the first byte does not start a frame or
+     *         {@link #INCOMPLETE} if more bytes are needed.
+     */
+    protected abstract int frameLength();
+
+    /**
+     * Called with bytes which do not belong to a frame.
+     *
+     * @param bytes
+     *            the discarded bytes.
+     */
+    protected abstract void discarded(byte[] bytes);
+
+    /**
+     * Get the number of buffered bytes.
+     *
+     * @return the number of buffered bytes.
+     */
+    protected final int buffered() {
+        return count;
+    }
+
+    /**
+     * Get a buffered byte without removing it.
+     *
+     * @param index
+     *            the index relative to the first buffered byte, must be less than {@link #buffered()}.
+     * @return the byte as unsigned value.
+     */
+    protected final int peek(int index) {
+        return buffer[(head + index) & MASK] & 0xff;
+    }
+
+    /**
+     * Get the arrival time of the first byte of the frame last returned by {@link #readFrame()}.
+     *
+     * @return the value of {@link System#nanoTime()} after the first byte has been read.
+     */
+    long getFrameArrival() {
+        return frameArrival;
+    }
+
+    /**
+     * Reads the next frame. Blocks at most for about the fragment timeout.
+     *
+     * @return the next frame or {@code null} if no complete frame has been received in time.
+     * @throws IOException
+     *             if reading from the transport layer failed.
+     */
+    byte[] readFrame() throws IOException {
+        byte[] frame = nextBufferedFrame();
+        if (frame != null) {
+            return frame;
+        }
+
+        // nothing more to come soon, report what has been thrown away so far
+        flushDiscarded();
+        if (fill() == 0) {
+            checkFragmentTimeout();
+            return null;
+        }
+
+        return nextBufferedFrame();
+    }
+
+    private byte[] nextBufferedFrame() {
+        while (count > 0) {
+            int length = frameLength();
+
+            if (length == NOT_A_FRAME || length > CAPACITY) {
+                discard(1);
+                continue;
+            }
+
+            if (length == INCOMPLETE || length > count) {
+                if (!incomplete) {
+                    incomplete = true;
+                    incompleteSince = System.nanoTime();
+                }
+                else {
+                    checkFragmentTimeout();
+                }
+                return null;
+            }
+
+            flushDiscarded();
+            return remove(length);
+        }
+        return null;
+    }
+
+    private void checkFragmentTimeout() {
+        if (incomplete && System.nanoTime() - incompleteSince >= fragmentTimeoutNanos) {
+            discard(count);
+            flushDiscarded();
+        }
+    }
+
+    /*
+     * Waits for the first bytes only, further bytes are read as far as they are available.
+     */
+    private int fill() throws IOException {
+        int free = CAPACITY - count;
+        if (free == 0) {
+            // cannot happen as long as frames are shorter than the buffer, make room anyway
+            discard(1);
+            free = 1;
+        }
+
+        int numRead = readIntoBuffer(free, System.nanoTime() + fragmentTimeoutNanos);
+        if (numRead == 0) {
+            // poll interval elapsed
+            return 0;
+        }
+        addChunk(System.nanoTime());
+        count += numRead;
+
+        if (numRead < free && ((head + count) & MASK) == 0) {
+            // the end of the ring has been reached, continue at its start without waiting
+            int length = readIntoBuffer(free - numRead, System.nanoTime());
+            count += length;
+            numRead += length;
+        }
+        return numRead;
+    }
+
+    private int readIntoBuffer(int free, long deadline) throws IOException {
+        int tail = (head + count) & MASK;
+        bufferView.limit(Math.min(tail + free, CAPACITY)).position(tail);
+
+        int numRead = transportLayer.read(bufferView, deadline);
+        if (numRead < 0) {
+            throw new EOFException("End of stream reached.");
+        }
+        return numRead;
+    }
+
+    private void addChunk(long arrival) {
+        if (chunkCount == MAX_CHUNKS) {
+            // the bytes are attributed to the previous chunk, which arrived earlier
+            return;
+        }
+        int i = (chunkHead + chunkCount++) % MAX_CHUNKS;
+        chunkPositions[i] = position + count;
+        chunkArrivals[i] = arrival;
+    }
+
+    private byte[] remove(int length) {
+        frameArrival = chunkArrivals[chunkHead];
+        byte[] frame = bufferPool == null ? new byte[length] : bufferPool.acquire(length);
+        copy(frame, 0, length);
+        skip(length);
+        return frame;
+    }
+
+    private void discard(int length) {
+        while (length > 0) {
+            if (discardCount == MAX_DISCARD_LENGTH) {
+                flushDiscarded();
+            }
+            int n = Math.min(length, MAX_DISCARD_LENGTH - discardCount);
+            copy(discardBuffer, discardCount, n);
+            discardCount += n;
+            skip(n);
+            length -= n;
+        }
+    }
+
+    private void flushDiscarded() {
+        if (discardCount > 0) {
+            byte[] bytes = Arrays.copyOf(discardBuffer, discardCount);
+            discardCount = 0;
+            discarded(bytes);
+        }
+    }
+
+    private void copy(byte[] dest, int destPos, int length) {
+        int firstPart = Math.min(length, CAPACITY - head);
+        System.arraycopy(buffer, head, dest, destPos, firstPart);
+        System.arraycopy(buffer, 0, dest, destPos + firstPart, length - firstPart);
+    }
+
+    private void skip(int length) {
+        head = (head + length) & MASK;
+        count -= length;
+        position += length;
+        incomplete = false;
+
+        // drop the chunks whose bytes have all been consumed
+        while (chunkCount > 1 && chunkPositions[(chunkHead + 1) % MAX_CHUNKS] <= position) {
+            chunkHead = (chunkHead + 1) % MAX_CHUNKS;
+            chunkCount--;
+        }
+        if (count == 0) {
+            chunkCount = 0;
+        }
+    }
+
+}
@@ -0,0 +1,289 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands received messages from the receiver thread over to the listener thread through a bounded {@link RingBuffer}.
+ * <p>
+ * Messages and discarded bytes are stored in the buffer as they are, so no wrapper object is created per message.
+ * </p>
+ * <p>
+ * If a {@link WMBusBatchListener} is used, messages are collected until the batch is full, the oldest message of the
+ * batch has waited for the maximum latency or another event has to be delivered.
+ * </p>
+ * <p>
+ * With more than one listener thread, every thread has a buffer of its own and messages are sharded by the link layer
+ * address. Messages of one meter keep their order while different meters are delivered in parallel. Discarded bytes
+ * are delivered by the first thread. The stopped listening cause is delivered after all threads have delivered the
+ * messages received before.
+ * </p>
+ */
+class MessageDispatcher {
+
+    static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.BLOCK;
+
+    private final WMBusListener listener;
+    private final WMBusBatchListener batchListener;
+    private final int maxBatchSize;
+    private final long maxBatchLatencyNanos;
+
+    private final List<RingBuffer<Object>> shards;
+    private final ExecutorService executor;
+
+    public MessageDispatcher(WMBusListener listener, int queueCapacity, OverflowPolicy overflowPolicy) {
+        this(listener, null, 1, 0, 1, queueCapacity, overflowPolicy);
+    }
+
+    public MessageDispatcher(WMBusListener listener, int listenerThreads, int queueCapacity,
+            OverflowPolicy overflowPolicy) {
+        this(listener, null, 1, 0, listenerThreads, queueCapacity, overflowPolicy);
+    }
+
+    public MessageDispatcher(WMBusBatchListener batchListener, int maxBatchSize, int maxBatchLatency,
+            int queueCapacity, OverflowPolicy overflowPolicy) {
+        this(null, batchListener, maxBatchSize, maxBatchLatency, 1, queueCapacity, overflowPolicy);
+    }
+
+    public MessageDispatcher(WMBusBatchListener batchListener, int maxBatchSize, int maxBatchLatency,
+            int listenerThreads, int queueCapacity, OverflowPolicy overflowPolicy) {
+        this(null, batchListener, maxBatchSize, maxBatchLatency, listenerThreads, queueCapacity, overflowPolicy);
+    }
+
+    private MessageDispatcher(WMBusListener listener, WMBusBatchListener batchListener, int maxBatchSize,
+            int maxBatchLatency, int listenerThreads, int queueCapacity, OverflowPolicy overflowPolicy) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Maximum batch size must be > 0.");
+        }
+        if (listenerThreads <= 0) {
+            throw new IllegalArgumentException("Number of listener threads must be > 0.");
+        }
+        this.listener = listener;
+        this.batchListener = batchListener;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxBatchLatency);
+
+        List<RingBuffer<Object>> ringBuffers = new ArrayList<>(listenerThreads);
+        for (int i = 0; i < listenerThreads; i++) {
+            ringBuffers.add(new RingBuffer<>(queueCapacity, overflowPolicy));
+        }
+        this.shards = Collections.unmodifiableList(ringBuffers);
+        this.executor = Executors.newFixedThreadPool(listenerThreads);
+    }
+
+    public void start() {
+        for (RingBuffer<Object> ringBuffer : shards) {
+            this.executor.execute(new Shard(ringBuffer));
+        }
+    }
+
+    /**
+     * Delivers the queued messages and stops the listener threads afterwards.
+     */
+    public void shutdown() {
+        for (RingBuffer<Object> ringBuffer : shards) {
+            ringBuffer.close();
+        }
+        this.executor.shutdown();
+    }
+
+    public void newMessage(WMBusMessage message) {
+        enqueue(shardFor(message), message, false);
+    }
+
+    public void discardedBytes(byte[] bytes) {
+        enqueue(shards.get(0), bytes, false);
+    }
+
+    public void stoppedListening(IOException cause) {
+        // must not be dropped, the listener would never learn that the connection is dead
+        StoppedListening event = new StoppedListening(cause, shards.size());
+        for (RingBuffer<Object> ringBuffer : shards) {
+            enqueue(ringBuffer, event, true);
+        }
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (RingBuffer<Object> ringBuffer : shards) {
+            depth += ringBuffer.size();
+        }
+        return depth;
+    }
+
+    public long getDroppedCount() {
+        long droppedCount = 0;
+        for (RingBuffer<Object> ringBuffer : shards) {
+            droppedCount += ringBuffer.getDroppedCount();
+        }
+        return droppedCount;
+    }
+
+    private RingBuffer<Object> shardFor(WMBusMessage message) {
+        if (shards.size() == 1) {
+            return shards.get(0);
+        }
+        // the address bytes are not evenly distributed, so the bits are mixed first
+        long hash = message.getPackedAddress() * 0x9E3779B97F4A7C15L;
+        return shards.get((int) ((hash >>> 32) % shards.size()));
+    }
+
+    private static void enqueue(RingBuffer<Object> ringBuffer, Object event, boolean block) {
+        try {
+            if (block) {
+                ringBuffer.put(event, OverflowPolicy.BLOCK);
+            }
+            else {
+                ringBuffer.put(event);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Shard implements Runnable {
+
+        private final RingBuffer<Object> ringBuffer;
+
+        Shard(RingBuffer<Object> ringBuffer) {
+            this.ringBuffer = ringBuffer;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (batchListener == null) {
+                    runSingle();
+                }
+                else {
+                    runBatched();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void runSingle() throws InterruptedException {
+            Object event;
+            while ((event = ringBuffer.take()) != null) {
+                try {
+                    dispatch(event);
+                } catch (RuntimeException e) {
+                    handleListenerException(e);
+                }
+            }
+        }
+
+        private void runBatched() throws InterruptedException {
+            List<WMBusMessage> batch = new ArrayList<>(maxBatchSize);
+            long deadline = 0;
+
+            while (true) {
+                Object event;
+                if (batch.isEmpty()) {
+                    event = ringBuffer.take();
+                    if (event == null) {
+                        return;
+                    }
+                    deadline = System.nanoTime() + maxBatchLatencyNanos;
+                }
+                else {
+                    event = ringBuffer.poll(deadline - System.nanoTime());
+                }
+
+                if (event instanceof WMBusMessage) {
+                    batch.add((WMBusMessage) event);
+                    if (batch.size() < maxBatchSize) {
+                        continue;
+                    }
+                }
+
+                // the batch is full, it timed out or another event has to be delivered in order
+                if (!batch.isEmpty()) {
+                    deliver(batch);
+                    batch = new ArrayList<>(maxBatchSize);
+                }
+
+                if (event != null && !(event instanceof WMBusMessage)) {
+                    try {
+                        dispatch(event);
+                    } catch (RuntimeException e) {
+                        handleListenerException(e);
+                    }
+                }
+            }
+        }
+    }
+
+    private void deliver(List<WMBusMessage> batch) {
+        try {
+            batchListener.newMessages(batch);
+        } catch (RuntimeException e) {
+            handleListenerException(e);
+        }
+    }
+
+    private void dispatch(Object event) {
+        if (event instanceof WMBusMessage) {
+            listener.newMessage((WMBusMessage) event);
+        }
+        else if (event instanceof byte[]) {
+            deliverDiscardedBytes((byte[]) event);
+        }
+        else if (event instanceof StoppedListening) {
+            StoppedListening stoppedListening = (StoppedListening) event;
+            // the last thread reaching the event delivers it
+            if (stoppedListening.remainingShards.decrementAndGet() == 0) {
+                deliverStoppedListening(stoppedListening.cause);
+            }
+        }
+    }
+
+    private void deliverDiscardedBytes(byte[] bytes) {
+        if (batchListener == null) {
+            listener.discardedBytes(bytes);
+        }
+        else {
+            batchListener.discardedBytes(bytes);
+        }
+    }
+
+    private void deliverStoppedListening(IOException cause) {
+        if (batchListener == null) {
+            listener.stoppedListening(cause);
+        }
+        else {
+            batchListener.stoppedListening(cause);
+        }
+    }
+
+    private static void handleListenerException(RuntimeException e) {
+        // a failing listener must not stop the delivery of the following messages
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+    }
+
+    private static class StoppedListening {
+
+        private final IOException cause;
+        private final AtomicInteger remainingShards;
+
+        StoppedListening(IOException cause, int shards) {
+            this.cause = cause;
+            this.remainingShards = new AtomicInteger(shards);
+        }
+    }
+
+}
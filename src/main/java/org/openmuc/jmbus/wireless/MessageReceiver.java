@@ -6,48 +6,28 @@
 package org.openmuc.jmbus.wireless;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 abstract class MessageReceiver implements Runnable {
 
-    private final ExecutorService executor;
-    private final WMBusListener listener;
+    private final MessageDispatcher dispatcher;
 
-    public MessageReceiver(WMBusListener listener) {
-        this.listener = listener;
-        this.executor = Executors.newSingleThreadExecutor();
+    public MessageReceiver(MessageDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
     }
 
     protected void shutdown() {
-        this.executor.shutdown();
+        this.dispatcher.shutdown();
     }
 
-    protected void notifyStoppedListening(final IOException ioException) {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                listener.stoppedListening(ioException);
-            }
-        });
+    protected void notifyStoppedListening(IOException ioException) {
+        dispatcher.stoppedListening(ioException);
     }
 
-    protected void notifyNewMessage(final WMBusMessage wmBusMessage) {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                listener.newMessage(wmBusMessage);
-            }
-        });
-
+    protected void notifyNewMessage(WMBusMessage wmBusMessage) {
+        dispatcher.newMessage(wmBusMessage);
     }
 
-    protected void notifyDiscarded(final byte[] discardedBytes) {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                listener.discardedBytes(discardedBytes);
-            }
-        });
+    protected void notifyDiscarded(byte[] discardedBytes) {
+        dispatcher.discardedBytes(discardedBytes);
     }
 }
@@ -0,0 +1,266 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openmuc.jmbus.SecondaryAddress;
+import org.openmuc.jmbus.TimingWheel;
+
+/**
+ * Detects meters which stopped transmitting.
+ * <p>
+ * The tracker learns the transmission interval of every meter from the arrival times of its messages. A meter is
+ * reported missing if the given number of transmissions in a row has not been received, plus half an interval to
+ * allow for jitter. Until the interval of a meter is known, the initial timeout applies.
+ * </p>
+ * <p>
+ * The expiry of every meter is scheduled in a hierarchical timing wheel, so a received message and a tick of the
+ * wheel cost O(1) independent of the number of meters. The listener is called by the timer thread of the tracker and
+ * by the threads feeding messages, it must be thread safe.
+ * </p>
+ *
+ * <pre>
+ * MeterLivenessTracker tracker = new MeterLivenessTracker(missingMeterListener, 3, 3600000);
+ * WMBusConnectionSettings settings = new WMBusConnectionSettings().setLivenessTracker(tracker);
+ * new WMBusSerialBuilder(WMBusManufacturer.AMBER, listener, "/dev/ttyUSB0").setSettings(settings).build();
+ * </pre>
+ */
+public class MeterLivenessTracker implements AutoCloseable {
+
+    private static final int DEFAULT_TICK = 1000;
+
+    /**
+     * Messages following each other faster are copies of the same telegram, e.g. received by several sticks.
+     */
+    private static final long MIN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final MissingMeterListener listener;
+    private final int missedTransmissions;
+    private final long initialTimeoutNanos;
+    private final long tickNanos;
+    private final long startNanos;
+
+    // guarded by this
+    private final LongObjectHashMap<Meter> meters = new LongObjectHashMap<>(1024);
+    private final TimingWheel wheel;
+
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Creates a new tracker with a tick of one second.
+     *
+     * @param listener
+     *            the listener receiving the events.
+     * @param missedTransmissions
+     *            the number of transmissions in a row a meter may miss before it is reported missing.
+     * @param initialTimeout
+     *            the time in MILLIS after which a meter is reported missing as long as its interval is unknown.
+     */
+    public MeterLivenessTracker(MissingMeterListener listener, int missedTransmissions, int initialTimeout) {
+        this(listener, missedTransmissions, initialTimeout, DEFAULT_TICK);
+    }
+
+    /**
+     * Creates a new tracker.
+     *
+     * @param listener
+     *            the listener receiving the events.
+     * @param missedTransmissions
+     *            the number of transmissions in a row a meter may miss before it is reported missing.
+     * @param initialTimeout
+     *            the time in MILLIS after which a meter is reported missing as long as its interval is unknown.
+     * @param tick
+     *            the resolution in MILLIS of the timer.
+     */
+    public MeterLivenessTracker(MissingMeterListener listener, int missedTransmissions, int initialTimeout,
+            int tick) {
+        this(listener, missedTransmissions, initialTimeout, tick, System.nanoTime(),
+                Executors.newSingleThreadScheduledExecutor());
+
+        timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    advance(System.nanoTime());
+                } catch (RuntimeException e) {
+                    // a failing listener must not stop the timer
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                }
+            }
+        }, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    MeterLivenessTracker(MissingMeterListener listener, int missedTransmissions, int initialTimeout, int tick,
+            long startNanos, ScheduledExecutorService timer) {
+        if (missedTransmissions <= 0) {
+            throw new IllegalArgumentException("Number of missed transmissions must be > 0.");
+        }
+        if (tick <= 0) {
+            throw new IllegalArgumentException("Tick must be > 0.");
+        }
+        this.listener = listener;
+        this.missedTransmissions = missedTransmissions;
+        this.initialTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(initialTimeout);
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+        this.startNanos = startNanos;
+        this.wheel = new TimingWheel(0);
+        this.timer = timer;
+    }
+
+    /**
+     * Records a received message of a meter.
+     *
+     * @param message
+     *            the received message.
+     */
+    public void messageReceived(WMBusMessage message) {
+        messageReceived(message.getPackedAddress(), System.nanoTime(), System.currentTimeMillis());
+    }
+
+    /**
+     * Stops tracking a meter, e.g. because it has been dismounted.
+     *
+     * @param address
+     *            the link layer secondary address of the meter.
+     */
+    public synchronized void remove(SecondaryAddress address) {
+        Meter meter = meters.remove(WMBusMessage.packAddress(address.asByteArray(), 0));
+        if (meter != null) {
+            wheel.cancel(meter);
+        }
+    }
+
+    /**
+     * Check if a meter is currently missing.
+     *
+     * @param address
+     *            the link layer secondary address of the meter.
+     * @return {@code true} if the meter has been reported missing and has not transmitted since.
+     */
+    public synchronized boolean isMissing(SecondaryAddress address) {
+        Meter meter = meters.get(WMBusMessage.packAddress(address.asByteArray(), 0));
+        return meter != null && meter.missing;
+    }
+
+    /**
+     * Get the learned transmission interval of a meter.
+     *
+     * @param address
+     *            the link layer secondary address of the meter.
+     * @return the interval in MILLIS or -1 if it is not known yet.
+     */
+    public synchronized long getTransmissionInterval(SecondaryAddress address) {
+        Meter meter = meters.get(WMBusMessage.packAddress(address.asByteArray(), 0));
+        if (meter == null || meter.intervalNanos == 0) {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(meter.intervalNanos);
+    }
+
+    /**
+     * Get the number of tracked meters.
+     *
+     * @return the number of meters.
+     */
+    public synchronized int size() {
+        return meters.size();
+    }
+
+    /**
+     * Stops the timer. Missing meters are not reported afterwards.
+     */
+    @Override
+    public void close() {
+        if (timer != null) {
+            timer.shutdown();
+        }
+    }
+
+    void messageReceived(long address, long nowNanos, long nowMillis) {
+        long previousLastSeen;
+        synchronized (this) {
+            Meter meter = meters.get(address);
+            if (meter == null) {
+                meter = new Meter(address);
+                meters.put(address, meter);
+            }
+            else if (!meter.missing) {
+                learnInterval(meter, nowNanos - meter.lastSeenNanos);
+            }
+
+            previousLastSeen = meter.missing ? meter.lastSeenMillis : -1;
+            meter.missing = false;
+            meter.lastSeenNanos = nowNanos;
+            meter.lastSeenMillis = nowMillis;
+
+            long timeout = meter.intervalNanos == 0 ? initialTimeoutNanos
+                    : meter.intervalNanos * missedTransmissions + meter.intervalNanos / 2;
+            // round up, the meter must not be reported before its deadline
+            wheel.schedule(meter, (nowNanos - startNanos + timeout + tickNanos - 1) / tickNanos);
+        }
+
+        if (previousLastSeen >= 0) {
+            listener.meterReturned(WMBusMessage.unpackAddress(address), previousLastSeen);
+        }
+    }
+
+    void advance(long nowNanos) {
+        List<TimingWheel.Timeout> expired = new ArrayList<>();
+        List<Meter> missing = new ArrayList<>();
+
+        synchronized (this) {
+            long targetTick = (nowNanos - startNanos) / tickNanos;
+            while (wheel.getCurrentTick() < targetTick) {
+                wheel.tick(expired);
+            }
+
+            for (TimingWheel.Timeout timeout : expired) {
+                Meter meter = (Meter) timeout;
+                meter.missing = true;
+                missing.add(meter);
+            }
+        }
+
+        for (Meter meter : missing) {
+            listener.meterMissing(WMBusMessage.unpackAddress(meter.address), meter.lastSeenMillis);
+        }
+    }
+
+    private static void learnInterval(Meter meter, long sampleNanos) {
+        if (sampleNanos < MIN_INTERVAL_NANOS) {
+            return;
+        }
+
+        if (meter.intervalNanos == 0) {
+            meter.intervalNanos = sampleNanos;
+            return;
+        }
+
+        // lost telegrams must not inflate the interval quickly
+        long sample = Math.min(sampleNanos, 2 * meter.intervalNanos);
+        meter.intervalNanos += (sample - meter.intervalNanos) / 8;
+    }
+
+    private static class Meter extends TimingWheel.Timeout {
+
+        private final long address;
+        private long lastSeenNanos;
+        private long lastSeenMillis;
+        private long intervalNanos;
+        private boolean missing;
+
+        Meter(long address) {
+            this.address = address;
+        }
+    }
+
+}
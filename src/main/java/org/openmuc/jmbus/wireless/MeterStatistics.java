@@ -0,0 +1,185 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import org.openmuc.jmbus.SecondaryAddress;
+
+/**
+ * Snapshot of the reception statistics of a single meter.
+ *
+ * @see ReceptionStatistics
+ */
+public class MeterStatistics {
+
+    private final SecondaryAddress secondaryAddress;
+    private final long messageCount;
+    private final long lastSeen;
+    private final long lastInterval;
+    private final long averageInterval;
+    private final Integer minRssi;
+    private final Double averageRssi;
+    private final Integer maxRssi;
+    private final long lostCount;
+    private final long duplicateCount;
+    private final long decodingFailureCount;
+    private final long decryptionFailureCount;
+
+    MeterStatistics(SecondaryAddress secondaryAddress, long messageCount, long lastSeen, long lastInterval,
+            long averageInterval, Integer minRssi, Double averageRssi, Integer maxRssi, long lostCount,
+            long duplicateCount, long decodingFailureCount, long decryptionFailureCount) {
+        this.secondaryAddress = secondaryAddress;
+        this.messageCount = messageCount;
+        this.lastSeen = lastSeen;
+        this.lastInterval = lastInterval;
+        this.averageInterval = averageInterval;
+        this.minRssi = minRssi;
+        this.averageRssi = averageRssi;
+        this.maxRssi = maxRssi;
+        this.lostCount = lostCount;
+        this.duplicateCount = duplicateCount;
+        this.decodingFailureCount = decodingFailureCount;
+        this.decryptionFailureCount = decryptionFailureCount;
+    }
+
+    /**
+     * Get the link layer secondary address of the meter.
+     *
+     * @return the secondary address.
+     */
+    public SecondaryAddress getSecondaryAddress() {
+        return secondaryAddress;
+    }
+
+    /**
+     * Get the number of received messages, not counting duplicates.
+     *
+     * @return the number of messages.
+     */
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * Get the time the last message has been received.
+     *
+     * @return the time in MILLIS since epoch or 0 if no message has been received.
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Get the time between the last two messages.
+     *
+     * @return the interval in MILLIS or 0 if less than two messages have been received.
+     */
+    public long getLastInterval() {
+        return lastInterval;
+    }
+
+    /**
+     * Get the average time between two messages.
+     *
+     * @return the average interval in MILLIS or 0 if less than two messages have been received.
+     */
+    public long getAverageInterval() {
+        return averageInterval;
+    }
+
+    /**
+     * Get the lowest RSSI.
+     *
+     * @return the RSSI in dBm or {@code null} if no message with RSSI has been received.
+     */
+    public Integer getMinRssi() {
+        return minRssi;
+    }
+
+    /**
+     * Get the average RSSI.
+     *
+     * @return the RSSI in dBm or {@code null} if no message with RSSI has been received.
+     */
+    public Double getAverageRssi() {
+        return averageRssi;
+    }
+
+    /**
+     * Get the highest RSSI.
+     *
+     * @return the RSSI in dBm or {@code null} if no message with RSSI has been received.
+     */
+    public Integer getMaxRssi() {
+        return maxRssi;
+    }
+
+    /**
+     * Get the number of telegrams which have not been received, derived from gaps in the access number.
+     *
+     * @return the number of lost telegrams.
+     */
+    public long getLostCount() {
+        return lostCount;
+    }
+
+    /**
+     * Get the number of messages which have been received more than once.
+     *
+     * @return the number of duplicates.
+     */
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    /**
+     * Get the number of messages which could not be decoded.
+     *
+     * @return the number of decoding failures.
+     */
+    public long getDecodingFailureCount() {
+        return decodingFailureCount;
+    }
+
+    /**
+     * Get the number of messages which could not be decrypted.
+     *
+     * @return the number of decryption failures.
+     */
+    public long getDecryptionFailureCount() {
+        return decryptionFailureCount;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append("Secondary Address -> ")
+                .append(secondaryAddress)
+                .append("\nmessages: ")
+                .append(messageCount)
+                .append(", lost: ")
+                .append(lostCount)
+                .append(", duplicates: ")
+                .append(duplicateCount)
+                .append(", decoding failures: ")
+                .append(decodingFailureCount)
+                .append(", decryption failures: ")
+                .append(decryptionFailureCount)
+                .append("\nlast seen: ")
+                .append(lastSeen)
+                .append(", last interval: ")
+                .append(lastInterval)
+                .append("ms, average interval: ")
+                .append(averageInterval)
+                .append("ms\nRSSI min/avg/max: ")
+                .append(minRssi)
+                .append('/')
+                .append(averageRssi)
+                .append('/')
+                .append(maxRssi)
+                .append("dBm")
+                .toString();
+    }
+
+}
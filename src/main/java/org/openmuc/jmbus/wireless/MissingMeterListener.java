@@ -0,0 +1,37 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import java.util.EventListener;
+
+import org.openmuc.jmbus.SecondaryAddress;
+
+/**
+ * Receives the events of a {@link MeterLivenessTracker}.
+ */
+public interface MissingMeterListener extends EventListener {
+
+    /**
+     * Callback, when a meter has not transmitted for longer than expected.
+     * 
+     * @param address
+     *            the link layer secondary address of the meter.
+     * @param lastSeen
+     *            the time in MILLIS since epoch the last message of the meter has been received.
+     */
+    void meterMissing(SecondaryAddress address, long lastSeen);
+
+    /**
+     * Callback, when a missing meter transmits again.
+     * 
+     * @param address
+     *            the link layer secondary address of the meter.
+     * @param lastSeen
+     *            the time in MILLIS since epoch the last message before the outage has been received.
+     */
+    void meterReturned(SecondaryAddress address, long lastSeen);
+
+}
@@ -0,0 +1,25 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+/**
+ * Defines what happens to received messages if the listener does not keep up and the receive queue is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * The receiver waits until the listener has taken a message from the queue. Nothing is lost inside the library,
+     * but the stick may drop telegrams while the receiver is waiting.
+     */
+    BLOCK,
+    /**
+     * The oldest queued message is dropped to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * The new message is dropped.
+     */
+    DROP_NEWEST;
+}
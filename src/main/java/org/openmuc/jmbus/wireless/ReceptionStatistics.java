@@ -0,0 +1,336 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openmuc.jmbus.SecondaryAddress;
+
+/**
+ * Collects reception statistics per meter: number of messages, arrival times, RSSI, lost telegrams derived from gaps
+ * in the access number, duplicates as well as decoding and decryption failures.
+ * <p>
+ * Meters are identified by their link layer secondary address. The statistics are kept in open addressing tables
+ * keyed by the packed address, which are split into stripes with a lock of their own. Connections sharing one
+ * instance, e.g. the members of a {@link WMBusReceiverGroup}, rarely contend. A telegram received by several of them
+ * is counted once as message and otherwise as duplicate.
+ * </p>
+ * <p>
+ * The connection records telegrams it cannot decode up to the header. Failures to decode or decrypt the variable data
+ * structure are recorded by {@link WMBusMessage#decodeVariableDataResponse()}. Listeners which decode through
+ * {@link WMBusMessage#getVariableDataResponse()} instead have to report them with
+ * {@link #recordDecodingFailure(WMBusMessage)} and {@link #recordDecryptionFailure(WMBusMessage)}. Without an
+ * undecryptable meter cache a missing or wrong key cannot be told apart and counts as decoding failure.
+ * </p>
+ *
+ * @see WMBusConnectionSettings#setReceptionStatistics(ReceptionStatistics)
+ */
+public class ReceptionStatistics {
+
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    public ReceptionStatistics() {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Records a received message.
+     * <p>
+     * A message with the same access number as the previous message of the meter is counted as duplicate. Skipped
+     * access numbers are counted as lost telegrams.
+     * </p>
+     *
+     * @param message
+     *            the received message.
+     */
+    public void record(WMBusMessage message) {
+        long address = message.getPackedAddress();
+        int accessNumber = message.getAccessNumber();
+        Integer rssi = message.getRssi();
+        long now = System.currentTimeMillis();
+
+        Stripe stripe = stripeFor(address);
+        synchronized (stripe) {
+            stripe.getOrCreate(address).record(now, accessNumber, rssi);
+        }
+    }
+
+    /**
+     * Records a message which has been dropped as duplicate, e.g. because it was received by several connections.
+     *
+     * @param message
+     *            the duplicate message.
+     */
+    public void recordDuplicate(WMBusMessage message) {
+        recordDuplicate(message.getPackedAddress());
+    }
+
+    /*
+     * The buffer starts with the length field, followed by the control field and the address.
+     */
+    void recordDuplicate(byte[] buffer) {
+        if (buffer.length >= 10) {
+            recordDuplicate(WMBusMessage.packAddress(buffer, 2));
+        }
+    }
+
+    private void recordDuplicate(long address) {
+        Stripe stripe = stripeFor(address);
+        synchronized (stripe) {
+            stripe.getOrCreate(address).duplicateCount++;
+        }
+    }
+
+    /**
+     * Records a message whose variable data structure could not be decoded.
+     *
+     * @param message
+     *            the message.
+     */
+    public void recordDecodingFailure(WMBusMessage message) {
+        recordDecodingFailure(message.getPackedAddress());
+    }
+
+    /**
+     * Records a message which could not be decrypted.
+     *
+     * @param message
+     *            the message.
+     */
+    public void recordDecryptionFailure(WMBusMessage message) {
+        long address = message.getPackedAddress();
+        Stripe stripe = stripeFor(address);
+        synchronized (stripe) {
+            stripe.getOrCreate(address).decryptionFailureCount++;
+        }
+    }
+
+    /*
+     * The buffer starts with the length field, followed by the control field and the address.
+     */
+    void recordDecodingFailure(byte[] buffer) {
+        if (buffer.length >= 10) {
+            recordDecodingFailure(WMBusMessage.packAddress(buffer, 2));
+        }
+    }
+
+    private void recordDecodingFailure(long address) {
+        Stripe stripe = stripeFor(address);
+        synchronized (stripe) {
+            stripe.getOrCreate(address).decodingFailureCount++;
+        }
+    }
+
+    /**
+     * Get the statistics of a meter.
+     * <p>
+     * The decoding and decryption failure counts only include the variable data structures decoded with
+     * {@link WMBusMessage#decodeVariableDataResponse()} or reported by the listener.
+     * </p>
+     *
+     * @param address
+     *            the link layer secondary address of the meter.
+     * @return a snapshot of the statistics or {@code null} if nothing has been recorded for the meter.
+     */
+    public MeterStatistics getStatistics(SecondaryAddress address) {
+        long packedAddress = WMBusMessage.packAddress(address.asByteArray(), 0);
+        Stripe stripe = stripeFor(packedAddress);
+        synchronized (stripe) {
+            Entry entry = stripe.get(packedAddress);
+            return entry == null ? null : entry.snapshot();
+        }
+    }
+
+    /**
+     * Get the statistics of all meters.
+     *
+     * @return snapshots of the statistics of all meters in no particular order.
+     */
+    public List<MeterStatistics> snapshot() {
+        List<MeterStatistics> snapshots = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Entry entry : stripe.entries) {
+                    if (entry != null) {
+                        snapshots.add(entry.snapshot());
+                    }
+                }
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Get the number of meters with statistics.
+     *
+     * @return the number of meters.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Removes the statistics of all meters.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    private Stripe stripeFor(long address) {
+        // the upper bits of the index select the stripe, the lower bits the slot within the stripe
+        return stripes[LongHashSet.indexFor(address, -1) >>> 28];
+    }
+
+    /**
+     * Open addressing table with linear probing, guarded by its own monitor.
+     */
+    private static class Stripe {
+
+        private static final int INITIAL_CAPACITY = 16;
+
+        private Entry[] entries = new Entry[INITIAL_CAPACITY];
+        private int size;
+
+        Entry get(long address) {
+            int mask = entries.length - 1;
+            int i = LongHashSet.indexFor(address, mask);
+            Entry entry;
+            while ((entry = entries[i]) != null) {
+                if (entry.address == address) {
+                    return entry;
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        Entry getOrCreate(long address) {
+            Entry entry = get(address);
+            if (entry != null) {
+                return entry;
+            }
+
+            entry = new Entry(address);
+            insert(entries, entry);
+            if (++size * 2 > entries.length) {
+                resize();
+            }
+            return entry;
+        }
+
+        void clear() {
+            entries = new Entry[INITIAL_CAPACITY];
+            size = 0;
+        }
+
+        private void resize() {
+            Entry[] newEntries = new Entry[entries.length * 2];
+            for (Entry entry : entries) {
+                if (entry != null) {
+                    insert(newEntries, entry);
+                }
+            }
+            entries = newEntries;
+        }
+
+        private static void insert(Entry[] table, Entry entry) {
+            int mask = table.length - 1;
+            int i = LongHashSet.indexFor(entry.address, mask);
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = entry;
+        }
+    }
+
+    /**
+     * The statistics of a single meter, guarded by the monitor of its stripe.
+     */
+    private static class Entry {
+
+        private final long address;
+
+        private long messageCount;
+        private long firstSeen;
+        private long lastSeen;
+        private long lastInterval;
+
+        private int rssiCount;
+        private long rssiSum;
+        private int minRssi;
+        private int maxRssi;
+
+        private int lastAccessNumber = -1;
+        private long lostCount;
+        private long duplicateCount;
+        private long decodingFailureCount;
+        private long decryptionFailureCount;
+
+        Entry(long address) {
+            this.address = address;
+        }
+
+        void record(long now, int accessNumber, Integer rssi) {
+            if (accessNumber >= 0 && accessNumber == lastAccessNumber) {
+                duplicateCount++;
+                return;
+            }
+
+            if (accessNumber >= 0 && lastAccessNumber >= 0) {
+                // the access number is incremented with every telegram and wraps around after 255
+                lostCount += (accessNumber - lastAccessNumber - 1) & 0xff;
+            }
+            lastAccessNumber = accessNumber;
+
+            if (messageCount == 0) {
+                firstSeen = now;
+            }
+            else {
+                lastInterval = now - lastSeen;
+            }
+            lastSeen = now;
+            messageCount++;
+
+            if (rssi != null) {
+                if (rssiCount == 0 || rssi < minRssi) {
+                    minRssi = rssi;
+                }
+                if (rssiCount == 0 || rssi > maxRssi) {
+                    maxRssi = rssi;
+                }
+                rssiSum += rssi;
+                rssiCount++;
+            }
+        }
+
+        MeterStatistics snapshot() {
+            long averageInterval = messageCount > 1 ? (lastSeen - firstSeen) / (messageCount - 1) : 0;
+            Integer min = rssiCount > 0 ? minRssi : null;
+            Integer max = rssiCount > 0 ? maxRssi : null;
+            Double average = rssiCount > 0 ? (double) rssiSum / rssiCount : null;
+
+            return new MeterStatistics(WMBusMessage.unpackAddress(address), messageCount, lastSeen, lastInterval,
+                    averageInterval, min, average, max, lostCount, duplicateCount, decodingFailureCount,
+                    decryptionFailureCount);
+        }
+    }
+
+}
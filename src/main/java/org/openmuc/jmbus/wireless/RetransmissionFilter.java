@@ -0,0 +1,129 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import java.util.zip.CRC32;
+
+/**
+ * Drops telegrams which a meter transmits several times.
+ * <p>
+ * For every meter the access number and a CRC of the payload of the last telegram are kept. A telegram with the same
+ * access number and the same payload as the previous telegram of the meter is a retransmission and is dropped before
+ * it is decoded, decrypted and handed over to the listener. Telegrams without an access number are never dropped.
+ * </p>
+ * <p>
+ * The state of a meter takes 16 bytes in an open addressing table keyed by the packed link layer secondary address.
+ * One instance may be shared by several connections, then a telegram received by several of them is passed on once.
+ * </p>
+ *
+ * @see WMBusConnectionSettings#setRetransmissionFilter(RetransmissionFilter)
+ */
+public class RetransmissionFilter {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Marks used slots, so that an all zero state is distinguishable from an empty slot.
+     */
+    private static final long USED = 1L << 40;
+
+    // guarded by this
+    private long[] addresses = new long[INITIAL_CAPACITY];
+    private long[] states = new long[INITIAL_CAPACITY];
+    private int size;
+    private long suppressedCount;
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Get the number of telegrams which have been dropped as retransmissions.
+     *
+     * @return the number of dropped telegrams.
+     */
+    public synchronized long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    /**
+     * Get the number of meters with a known last telegram.
+     *
+     * @return the number of meters.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Forgets the last telegrams of all meters.
+     */
+    public synchronized void clear() {
+        addresses = new long[INITIAL_CAPACITY];
+        states = new long[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    /*
+     * The buffer starts with the length field, followed by the control field and the address. Buffers which are too
+     * short are left to the decoder.
+     */
+    synchronized boolean isRetransmission(byte[] buffer) {
+        int length = buffer[0] & 0xff;
+        if (length > buffer.length - 1 || length < WMBusMessage.CI_INDEX) {
+            return false;
+        }
+
+        int accessNumberIndex = WMBusMessage.accessNumberIndex(buffer[WMBusMessage.CI_INDEX] & 0xff);
+        if (accessNumberIndex < 0 || accessNumberIndex > length) {
+            return false;
+        }
+
+        crc.reset();
+        crc.update(buffer, WMBusMessage.CI_INDEX, length + 1 - WMBusMessage.CI_INDEX);
+        long state = USED | (long) (buffer[accessNumberIndex] & 0xff) << 32 | crc.getValue();
+
+        long address = WMBusMessage.packAddress(buffer, 2);
+        int mask = addresses.length - 1;
+        int i = LongHashSet.indexFor(address, mask);
+        while (states[i] != 0) {
+            if (addresses[i] == address) {
+                if (states[i] == state) {
+                    suppressedCount++;
+                    return true;
+                }
+                states[i] = state;
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+
+        addresses[i] = address;
+        states[i] = state;
+        if (++size * 2 > addresses.length) {
+            resize();
+        }
+        return false;
+    }
+
+    private void resize() {
+        long[] oldAddresses = addresses;
+        long[] oldStates = states;
+        addresses = new long[oldAddresses.length * 2];
+        states = new long[oldStates.length * 2];
+
+        int mask = addresses.length - 1;
+        for (int j = 0; j < oldStates.length; j++) {
+            if (oldStates[j] != 0) {
+                int i = LongHashSet.indexFor(oldAddresses[j], mask);
+                while (states[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                addresses[i] = oldAddresses[j];
+                states[i] = oldStates[j];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded single lock ring buffer with a preallocated slot array. What happens if the buffer is full is defined by an
+ * {@link OverflowPolicy}.
+ */
+class RingBuffer<E> {
+
+    private final Object[] items;
+    private final OverflowPolicy overflowPolicy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private int takeIndex;
+    private int putIndex;
+    private int count;
+    private long droppedCount;
+    private boolean closed;
+
+    public RingBuffer(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be > 0.");
+        }
+        this.items = new Object[capacity];
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Inserts an element according to the overflow policy of the buffer.
+     * 
+     * @param element
+     *            the element to insert.
+     * @return {@code true} if the element has been inserted.
+     * @throws InterruptedException
+     *             if interrupted while waiting for space.
+     */
+    public boolean put(E element) throws InterruptedException {
+        return put(element, overflowPolicy);
+    }
+
+    /**
+     * Inserts an element according to the given overflow policy.
+     * 
+     * @param element
+     *            the element to insert.
+     * @param policy
+     *            the policy to apply if the buffer is full.
+     * @return {@code true} if the element has been inserted.
+     * @throws InterruptedException
+     *             if interrupted while waiting for space.
+     */
+    public boolean put(E element, OverflowPolicy policy) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (closed) {
+                return false;
+            }
+
+            if (count == items.length) {
+                switch (policy) {
+                case DROP_NEWEST:
+                    droppedCount++;
+                    return false;
+                case DROP_OLDEST:
+                    dequeue();
+                    droppedCount++;
+                    break;
+                case BLOCK:
+                default:
+                    while (count == items.length) {
+                        notFull.await();
+                        if (closed) {
+                            return false;
+                        }
+                    }
+                    break;
+                }
+            }
+
+            enqueue(element);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the oldest element, waiting if the buffer is empty.
+     * 
+     * @return the element or {@code null} if the buffer has been closed and is empty.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the oldest element, waiting at most the given time if the buffer is empty.
+     * 
+     * @param timeoutNanos
+     *            the maximum time to wait in NANOS.
+     * @return the element or {@code null} if the time elapsed or the buffer has been closed and is empty.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public E poll(long timeoutNanos) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (closed || timeoutNanos <= 0) {
+                    return null;
+                }
+                timeoutNanos = notEmpty.awaitNanos(timeoutNanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the oldest element without waiting.
+     * 
+     * @return the element or {@code null} if the buffer is empty.
+     */
+    public E poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the buffer. Elements already in the buffer can still be taken, new elements are rejected.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(E element) {
+        items[putIndex] = element;
+        if (++putIndex == items.length) {
+            putIndex = 0;
+        }
+        count++;
+        notEmpty.signal();
+    }
+
+    private E dequeue() {
+        @SuppressWarnings("unchecked")
+        E element = (E) items[takeIndex];
+        // release the reference, so the message can be collected
+        items[takeIndex] = null;
+        if (++takeIndex == items.length) {
+            takeIndex = 0;
+        }
+        count--;
+        notFull.signal();
+        return element;
+    }
+
+}
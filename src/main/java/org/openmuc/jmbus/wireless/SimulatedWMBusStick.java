@@ -0,0 +1,248 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openmuc.jmbus.SimulatedWMBusMeter;
+import org.openmuc.jmbus.transportlayer.SimulatedTransportLayer;
+import org.openmuc.jmbus.wireless.WMBusConnection.WMBusManufacturer;
+
+/**
+ * Transport layer to a simulated wireless M-Bus stick, which receives the telegrams of any number of
+ * {@link SimulatedWMBusMeter}s in the same process without any hardware.
+ * <p>
+ * The stick is meant to stress test the receivers and the decoding at many times the real traffic. A connection to it
+ * is built with {@link WMBusConnection.WMBusSimulatedBuilder}. The stick speaks the serial protocol of the given
+ * manufacturer: it accepts the configuration commands of the connection, acknowledges them where the connection waits
+ * for it, and starts to forward telegrams once it has been configured. Every telegram is framed like the stick does,
+ * with an RSSI and for IMST a time stamp attached.
+ * </p>
+ * <p>
+ * The meters transmit in turn, the times between two telegrams are exponentially distributed around the telegram
+ * rate. Faults are injected at random: noise before a telegram, telegrams which are cut off and telegrams which are
+ * received twice, e.g. through a repeater.
+ * </p>
+ */
+public class SimulatedWMBusStick extends SimulatedTransportLayer {
+
+    // telegrams which are overdue by more are dropped, nobody has been reading
+    private static final int MAX_BURST = 1000;
+    private static final int MAX_NOISE_LENGTH = 16;
+
+    // signal strengths in dBm
+    private static final int MIN_RSSI = -100;
+    private static final int RSSI_RANGE = 50;
+
+    private final StickProtocol protocol;
+    private final List<SimulatedWMBusMeter> meters = new ArrayList<>();
+    private final Random random;
+
+    private double telegramRate = 1;
+    private double noiseRate;
+    private double truncationRate;
+    private double duplicateRate;
+
+    private boolean transmitting;
+    private long openTime;
+    private long nextTelegramTime;
+    private int nextMeter;
+    private long numberOfTelegrams;
+
+    /**
+     * Creates a new simulated stick without meters.
+     *
+     * @param manufacturer
+     *            the manufacturer of the stick, whose protocol is spoken.
+     */
+    public SimulatedWMBusStick(WMBusManufacturer manufacturer) {
+        this(manufacturer, new Random());
+    }
+
+    /**
+     * Creates a new simulated stick without meters whose timing and faults are reproducible.
+     *
+     * @param manufacturer
+     *            the manufacturer of the stick, whose protocol is spoken.
+     * @param seed
+     *            the seed of the random timing and faults.
+     */
+    public SimulatedWMBusStick(WMBusManufacturer manufacturer, long seed) {
+        this(manufacturer, new Random(seed));
+    }
+
+    private SimulatedWMBusStick(WMBusManufacturer manufacturer, Random random) {
+        this.protocol = new StickProtocol(manufacturer);
+        this.random = random;
+    }
+
+    public WMBusManufacturer getManufacturer() {
+        return protocol.getManufacturer();
+    }
+
+    /**
+     * Adds a meter whose telegrams the stick receives.
+     *
+     * @param meter
+     *            the meter.
+     * @return the stick itself.
+     */
+    public synchronized SimulatedWMBusStick addMeter(SimulatedWMBusMeter meter) {
+        meters.add(meter);
+        return this;
+    }
+
+    /**
+     * Removes a meter.
+     *
+     * @param meter
+     *            the meter.
+     * @return {@code true} if the stick received the meter.
+     */
+    public synchronized boolean removeMeter(SimulatedWMBusMeter meter) {
+        return meters.remove(meter);
+    }
+
+    public synchronized List<SimulatedWMBusMeter> getMeters() {
+        return new ArrayList<>(meters);
+    }
+
+    /**
+     * Sets the number of telegrams per second received from all meters together. Default is {@code 1}.
+     *
+     * @param telegramRate
+     *            the telegrams per second, greater than zero.
+     * @return the stick itself.
+     */
+    public synchronized SimulatedWMBusStick setTelegramRate(double telegramRate) {
+        if (!(telegramRate > 0)) {
+            throw new IllegalArgumentException("Telegram rate must be > 0.");
+        }
+        this.telegramRate = telegramRate;
+        return this;
+    }
+
+    /**
+     * Sets the probability that random bytes are received before a telegram. Default is {@code 0}.
+     *
+     * @param noiseRate
+     *            the probability between 0 and 1.
+     * @return the stick itself.
+     */
+    public synchronized SimulatedWMBusStick setNoiseRate(double noiseRate) {
+        this.noiseRate = checkProbability(noiseRate);
+        return this;
+    }
+
+    /**
+     * Sets the probability that a telegram is cut off. Default is {@code 0}.
+     *
+     * @param truncationRate
+     *            the probability between 0 and 1.
+     * @return the stick itself.
+     */
+    public synchronized SimulatedWMBusStick setTruncationRate(double truncationRate) {
+        this.truncationRate = checkProbability(truncationRate);
+        return this;
+    }
+
+    /**
+     * Sets the probability that a telegram is received twice. Default is {@code 0}.
+     *
+     * @param duplicateRate
+     *            the probability between 0 and 1.
+     * @return the stick itself.
+     */
+    public synchronized SimulatedWMBusStick setDuplicateRate(double duplicateRate) {
+        this.duplicateRate = checkProbability(duplicateRate);
+        return this;
+    }
+
+    private static double checkProbability(double probability) {
+        if (!(probability >= 0 && probability <= 1)) {
+            throw new IllegalArgumentException("Probability must be between 0 and 1.");
+        }
+        return probability;
+    }
+
+    /**
+     * Returns the number of telegrams the stick has forwarded, not counting duplicates.
+     *
+     * @return the number of telegrams.
+     */
+    public synchronized long getNumberOfTelegrams() {
+        return numberOfTelegrams;
+    }
+
+    @Override
+    protected synchronized void opened() {
+        protocol.reset();
+        transmitting = false;
+        openTime = System.nanoTime();
+    }
+
+    @Override
+    protected synchronized void received(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            byte[] answer = protocol.received(b[i] & 0xff);
+            if (answer != null) {
+                respond(answer, System.nanoTime());
+            }
+        }
+        if (protocol.isForwarding() && !transmitting) {
+            nextTelegramTime = System.nanoTime() + nextInterval();
+        }
+        transmitting = protocol.isForwarding();
+    }
+
+    @Override
+    protected synchronized long poll(long now) {
+        if (!transmitting || meters.isEmpty()) {
+            return -1;
+        }
+
+        int burst = 0;
+        while (nextTelegramTime - now <= 0) {
+            if (++burst > MAX_BURST) {
+                nextTelegramTime = now + nextInterval();
+                break;
+            }
+            transmit(meters.get(nextMeter++ % meters.size()), nextTelegramTime);
+            nextTelegramTime += nextInterval();
+        }
+        nextMeter %= meters.size();
+        return nextTelegramTime - now;
+    }
+
+    private long nextInterval() {
+        double seconds = -Math.log(1 - random.nextDouble()) / telegramRate;
+        return (long) (seconds * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private void transmit(SimulatedWMBusMeter meter, long time) {
+        int rssi = MIN_RSSI + random.nextInt(RSSI_RANGE);
+        byte[] frame = protocol.frame(meter.nextTelegram(), rssi, TimeUnit.NANOSECONDS.toMillis(time - openTime));
+        numberOfTelegrams++;
+
+        if (random.nextDouble() < noiseRate) {
+            byte[] noise = new byte[1 + random.nextInt(MAX_NOISE_LENGTH)];
+            random.nextBytes(noise);
+            respond(noise, time);
+        }
+        if (random.nextDouble() < truncationRate) {
+            frame = Arrays.copyOf(frame, 1 + random.nextInt(frame.length - 1));
+        }
+        respond(frame, time);
+        if (random.nextDouble() < duplicateRate) {
+            respond(frame, time);
+        }
+    }
+
+}
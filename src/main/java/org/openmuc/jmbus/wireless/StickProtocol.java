@@ -0,0 +1,219 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import java.util.Arrays;
+
+import org.openmuc.jmbus.wireless.WMBusConnection.WMBusManufacturer;
+
+/**
+ * The serial protocol of a wireless M-Bus stick, seen from the stick.
+ * <p>
+ * Accepts the configuration commands the connections of this package send, acknowledges them where the connection
+ * waits for it, and frames telegrams like the stick does. Telegrams are forwarded once the stick has been configured.
+ * </p>
+ */
+class StickProtocol {
+
+    private static final int ACK = 0x3e;
+
+    private static final int AMBER_CMD_START = 0xff;
+    private static final int AMBER_CMD_SET_REQ = 0x09;
+    private static final int AMBER_RSSI_OFFSET = 74;
+
+    private static final int RADIO_CRAFTS_ENTER_CONFIG = 0x00;
+    private static final int RADIO_CRAFTS_MEMORY_CONFIG = 0x4d;
+    private static final int RADIO_CRAFTS_MEMORY_END = 0xff;
+    private static final int RADIO_CRAFTS_EXIT_CONFIG = 0x58;
+
+    // signal strength of telegrams without one
+    private static final int DEFAULT_RSSI = -80;
+
+    private enum ConfigState {
+        NONE,
+        CONFIG,
+        MEMORY
+    }
+
+    private final WMBusManufacturer manufacturer;
+
+    private final byte[] command = new byte[256 + WMBusConnectionImst.Const.HCI_HEADER_LENGTH];
+    private int commandPosition;
+    private ConfigState configState = ConfigState.NONE;
+    private boolean forwarding;
+
+    StickProtocol(WMBusManufacturer manufacturer) {
+        this.manufacturer = manufacturer;
+    }
+
+    WMBusManufacturer getManufacturer() {
+        return manufacturer;
+    }
+
+    /**
+     * Returns to the state after power up, nothing configured.
+     */
+    void reset() {
+        commandPosition = 0;
+        configState = ConfigState.NONE;
+        forwarding = false;
+    }
+
+    /**
+     * Returns whether the stick has been configured and forwards the received telegrams.
+     */
+    boolean isForwarding() {
+        return forwarding;
+    }
+
+    /**
+     * Handles a byte sent by the connection.
+     *
+     * @return the answer of the stick or {@code null} if there is none.
+     */
+    byte[] received(int b) {
+        switch (manufacturer) {
+        case AMBER:
+            return receivedAmber(b);
+        case IMST:
+            return receivedImst(b);
+        case RADIO_CRAFTS:
+        default:
+            return receivedRadioCrafts(b);
+        }
+    }
+
+    /*
+     * Commands are 0xFF, the command, the length, the data and an XOR checksum. A set request is confirmed.
+     */
+    private byte[] receivedAmber(int b) {
+        if (commandPosition == 0 && b != AMBER_CMD_START) {
+            return null;
+        }
+        command[commandPosition++] = (byte) b;
+        if (commandPosition < 3 || commandPosition < (command[2] & 0xff) + 4) {
+            return null;
+        }
+        commandPosition = 0;
+        forwarding = true;
+        if ((command[1] & 0xff) != AMBER_CMD_SET_REQ) {
+            return null;
+        }
+
+        byte[] confirmation = { (byte) AMBER_CMD_START, (byte) (AMBER_CMD_SET_REQ | 0x80), 0x01, 0x00, 0x00 };
+        for (int i = 0; i < 4; i++) {
+            confirmation[4] ^= confirmation[i];
+        }
+        return confirmation;
+    }
+
+    /*
+     * HCI messages are 0xA5, control field and endpoint, message ID, length and payload. They are not answered, the
+     * connection does not wait for a response.
+     */
+    private byte[] receivedImst(int b) {
+        if (commandPosition == 0 && b != (WMBusConnectionImst.Const.START_OF_FRAME & 0xff)) {
+            return null;
+        }
+        command[commandPosition++] = (byte) b;
+        if (commandPosition < WMBusConnectionImst.Const.HCI_HEADER_LENGTH
+                || commandPosition < WMBusConnectionImst.Const.HCI_HEADER_LENGTH + (command[3] & 0xff)) {
+            return null;
+        }
+        commandPosition = 0;
+        if (command[2] == WMBusConnectionImst.Const.DEVMGMT_MSG_SET_CONFIG_REQ) {
+            forwarding = true;
+        }
+        return null;
+    }
+
+    /*
+     * The stick is configured byte by byte. The config mode, the memory configuration and its end are acknowledged,
+     * leaving the config mode is not.
+     */
+    private byte[] receivedRadioCrafts(int b) {
+        switch (configState) {
+        case NONE:
+            if (b != RADIO_CRAFTS_ENTER_CONFIG) {
+                return null;
+            }
+            configState = ConfigState.CONFIG;
+            forwarding = false;
+            return new byte[] { ACK };
+        case CONFIG:
+            if (b == RADIO_CRAFTS_MEMORY_CONFIG) {
+                configState = ConfigState.MEMORY;
+            }
+            else if (b == RADIO_CRAFTS_EXIT_CONFIG) {
+                configState = ConfigState.NONE;
+                forwarding = true;
+                return null;
+            }
+            return new byte[] { ACK };
+        case MEMORY:
+        default:
+            if (b != RADIO_CRAFTS_MEMORY_END) {
+                return null;
+            }
+            configState = ConfigState.CONFIG;
+            return new byte[] { ACK };
+        }
+    }
+
+    /**
+     * Frames a telegram like the stick does.
+     *
+     * @param telegram
+     *            the telegram, starting with its length field.
+     * @param signalStrengthInDBm
+     *            the RSSI attached to the telegram or {@code null} for a typical value.
+     * @param timeStamp
+     *            the time stamp attached by IMST sticks.
+     * @return the frame.
+     */
+    byte[] frame(byte[] telegram, Integer signalStrengthInDBm, long timeStamp) {
+        int rssi = signalStrengthInDBm == null ? DEFAULT_RSSI : signalStrengthInDBm;
+        int length = telegram[0] & 0xff;
+
+        if (manufacturer == WMBusManufacturer.IMST) {
+            // header, the telegram without its length field, time stamp and RSSI
+            byte[] frame = new byte[WMBusConnectionImst.Const.HCI_HEADER_LENGTH + length + 5];
+            int controlField = WMBusConnectionImst.Const.TIMESTAMP_ATTACHED | WMBusConnectionImst.Const.RSSI_ATTACHED;
+            frame[0] = WMBusConnectionImst.Const.START_OF_FRAME;
+            frame[1] = (byte) (controlField << 4 | WMBusConnectionImst.Const.RADIOLINK_ID);
+            frame[2] = WMBusConnectionImst.Const.RADIOLINK_MSG_WMBUSMSG_IND;
+            frame[3] = (byte) length;
+            System.arraycopy(telegram, 1, frame, 4, length);
+            for (int i = 0; i < 4; i++) {
+                frame[4 + length + i] = (byte) (timeStamp >> (24 - 8 * i));
+            }
+            // inverse of the linear mapping of the receiver
+            frame[frame.length - 1] = (byte) clamp(Math.round((rssi + 100.0 + 4000.0 / 150.0) * 150.0 / 80.0), 0, 255);
+            return frame;
+        }
+
+        // the length field counts the RSSI appended to the telegram
+        byte[] frame = Arrays.copyOf(telegram, length + 2);
+        frame[0] = (byte) (length + 1);
+        if (manufacturer == WMBusManufacturer.AMBER) {
+            // two's complement in half dB steps
+            frame[frame.length - 1] = (byte) (clamp(rssi, -138, -11) + AMBER_RSSI_OFFSET << 1);
+        }
+        else {
+            frame[frame.length - 1] = (byte) clamp(-2 * rssi, 0, 255);
+        }
+        return frame;
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+}
@@ -0,0 +1,88 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+/**
+ * Recycles the buffers of received frames and telegrams.
+ * <p>
+ * Buffers are pooled by their exact length, so every buffer has the length of the frame it holds, just like a newly
+ * allocated one. The telegrams of a deployment come in a few lengths only, so most frames are read into a recycled
+ * buffer. A buffer returns to the pool when the message holding it is released, see {@link WMBusMessage#release()}.
+ * Buffers of messages which are never released are garbage collected as usual.
+ * </p>
+ *
+ * @see WMBusConnectionSettings#setBufferPool(TelegramBufferPool)
+ */
+public class TelegramBufferPool {
+
+    private static final int DEFAULT_BUFFERS_PER_LENGTH = 16;
+
+    /**
+     * Longer buffers are allocated and dropped as usual. Covers the longest frames of all supported sticks.
+     */
+    private static final int MAX_LENGTH = 512;
+
+    private final int buffersPerLength;
+
+    // guarded by this
+    private final byte[][][] freeBuffers = new byte[MAX_LENGTH + 1][][];
+    private final int[] freeCounts = new int[MAX_LENGTH + 1];
+    private long allocatedCount;
+
+    /**
+     * Creates a new pool keeping up to 16 free buffers of every length.
+     */
+    public TelegramBufferPool() {
+        this(DEFAULT_BUFFERS_PER_LENGTH);
+    }
+
+    /**
+     * Creates a new pool.
+     *
+     * @param buffersPerLength
+     *            the maximum number of free buffers of the same length the pool keeps.
+     */
+    public TelegramBufferPool(int buffersPerLength) {
+        if (buffersPerLength <= 0) {
+            throw new IllegalArgumentException("Number of buffers per length must be > 0.");
+        }
+        this.buffersPerLength = buffersPerLength;
+    }
+
+    /**
+     * Get the number of buffers which had to be allocated because the pool had no free buffer of the requested length.
+     *
+     * @return the number of allocated buffers.
+     */
+    public synchronized long getAllocatedCount() {
+        return allocatedCount;
+    }
+
+    synchronized byte[] acquire(int length) {
+        if (length <= MAX_LENGTH && freeCounts[length] > 0) {
+            byte[][] buffers = freeBuffers[length];
+            byte[] buffer = buffers[--freeCounts[length]];
+            buffers[freeCounts[length]] = null;
+            return buffer;
+        }
+
+        allocatedCount++;
+        return new byte[length];
+    }
+
+    synchronized void recycle(byte[] buffer) {
+        int length = buffer.length;
+        if (length > MAX_LENGTH || freeCounts[length] == buffersPerLength) {
+            return;
+        }
+
+        if (freeBuffers[length] == null) {
+            freeBuffers[length] = new byte[buffersPerLength][];
+        }
+        freeBuffers[length][freeCounts[length]++] = buffer;
+    }
+
+}
@@ -0,0 +1,45 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import java.io.IOException;
+import java.util.EventListener;
+import java.util.List;
+
+/**
+ * The wireless M-Bus listener interface receiving messages in batches. A batch is delivered if it reaches the maximum
+ * batch size or if its oldest message has waited for the maximum batch latency.
+ * 
+ * @see WMBusConnectionSettings#setBatchListener(WMBusBatchListener, int, int)
+ */
+public interface WMBusBatchListener extends EventListener {
+
+    /**
+     * Received new wireless M-Bus messages.
+     * 
+     * @param messages
+     *            the messages in the order they have been received. The list is not used by the connection afterwards
+     *            and may be kept by the listener.
+     */
+    void newMessages(List<WMBusMessage> messages);
+
+    /**
+     * Callback, when noisy data has been discarded. Messages received before the data are delivered first.
+     * 
+     * @param bytes
+     *            the data which has been discarded.
+     */
+    void discardedBytes(byte[] bytes);
+
+    /**
+     * Callback, if the connection has been interrupted. Messages received before are delivered first.
+     * 
+     * @param cause
+     *            the cause of the interruption.
+     */
+    void stoppedListening(IOException cause);
+
+}
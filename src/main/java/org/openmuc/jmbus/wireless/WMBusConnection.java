@@ -5,11 +5,16 @@
  */
 package org.openmuc.jmbus.wireless;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.MessageFormat;
 
 import org.openmuc.jmbus.SecondaryAddress;
+import org.openmuc.jmbus.transportlayer.OutageListener;
+import org.openmuc.jmbus.transportlayer.ReconnectingTransportLayer;
+import org.openmuc.jmbus.transportlayer.ReplayBuilder;
 import org.openmuc.jmbus.transportlayer.SerialBuilder;
+import org.openmuc.jmbus.transportlayer.SimulatedBuilder;
 import org.openmuc.jmbus.transportlayer.TcpBuilder;
 import org.openmuc.jmbus.transportlayer.TransportLayer;
 import org.openmuc.jrxtx.DataBits;
@@ -52,6 +57,33 @@ public interface WMBusConnection extends AutoCloseable {
      */
     void removeKey(SecondaryAddress address);
 
+    /**
+     * Get the number of received messages and events which are waiting to be delivered to the listener.
+     * 
+     * @return the current depth of the receive queue.
+     * 
+     * @see WMBusConnectionSettings#setQueueCapacity(int)
+     */
+    int getQueueDepth();
+
+    /**
+     * Get the number of received messages and events which have been dropped because the receive queue was full.
+     * 
+     * @return the number of dropped messages and events.
+     * 
+     * @see WMBusConnectionSettings#setOverflowPolicy(OverflowPolicy)
+     */
+    long getDroppedCount();
+
+    /**
+     * Sets a filter which drops received telegrams by their link layer address before they are decoded. The filter
+     * can be replaced while the connection is open.
+     * 
+     * @param filter
+     *            the address filter or {@code null} to accept all telegrams.
+     */
+    void setAddressFilter(AddressFilter filter);
+
     class WMBusSerialBuilder extends SerialBuilder<WMBusConnection, WMBusSerialBuilder> {
 
         private final Builder builder;
@@ -92,6 +124,36 @@ public interface WMBusConnection extends AutoCloseable {
             return self();
         }
 
+        /**
+         * Sets the settings of the receive path, e.g. the queue capacity, the listener threads and the filters.
+         * 
+         * @param settings
+         *            the settings, which are read when the connection is built.
+         * @return the builder itself.
+         */
+        public WMBusSerialBuilder setSettings(WMBusConnectionSettings settings) {
+            builder.setSettings(settings);
+            return self();
+        }
+
+        /**
+         * Lets the connection reopen the transport layer when it is lost. The stick is initialized again afterwards,
+         * the listeners stay registered and receive the telegrams after the outage like before.
+         * 
+         * @param initialBackoff
+         *            the time in MILLIS before the first attempt to reconnect, greater than zero.
+         * @param maxBackoff
+         *            the maximum time in MILLIS between two attempts.
+         * @param outageListener
+         *            the listener notified about outages and their durations or {@code null}.
+         * @return the builder itself.
+         * @see ReconnectingTransportLayer
+         */
+        public WMBusSerialBuilder setReconnect(int initialBackoff, int maxBackoff, OutageListener outageListener) {
+            builder.setReconnect(initialBackoff, maxBackoff, outageListener);
+            return self();
+        }
+
         @Override
         public WMBusConnection build() throws IOException {
             return builder.build(buildTransportLayer());
@@ -124,6 +186,127 @@ public interface WMBusConnection extends AutoCloseable {
             return self();
         }
 
+        /**
+         * Sets the settings of the receive path, e.g. the queue capacity, the listener threads and the filters.
+         * 
+         * @param settings
+         *            the settings, which are read when the connection is built.
+         * @return the builder itself.
+         */
+        public WMBusTcpBuilder setSettings(WMBusConnectionSettings settings) {
+            builder.setSettings(settings);
+            return self();
+        }
+
+        /**
+         * Lets the connection reopen the transport layer when it is lost. The stick is initialized again afterwards,
+         * the listeners stay registered and receive the telegrams after the outage like before.
+         * 
+         * @param initialBackoff
+         *            the time in MILLIS before the first attempt to reconnect, greater than zero.
+         * @param maxBackoff
+         *            the maximum time in MILLIS between two attempts.
+         * @param outageListener
+         *            the listener notified about outages and their durations or {@code null}.
+         * @return the builder itself.
+         * @see ReconnectingTransportLayer
+         */
+        public WMBusTcpBuilder setReconnect(int initialBackoff, int maxBackoff, OutageListener outageListener) {
+            builder.setReconnect(initialBackoff, maxBackoff, outageListener);
+            return self();
+        }
+
+        @Override
+        public WMBusConnection build() throws IOException {
+            return builder.build(buildTransportLayer());
+        }
+
+    }
+
+    /**
+     * Builds a connection which replays a capture file instead of talking to a stick. The manufacturer must be the
+     * one of the stick the capture has been recorded with.
+     * 
+     * @see WMBusSerialBuilder#setCaptureFile(java.io.File)
+     */
+    class WMBusReplayBuilder extends ReplayBuilder<WMBusConnection, WMBusReplayBuilder> {
+
+        private final Builder builder;
+
+        public WMBusReplayBuilder(WMBusManufacturer wmBusManufacturer, WMBusListener listener, File replayFile) {
+            super(replayFile);
+            builder = new Builder(wmBusManufacturer, listener);
+        }
+
+        public WMBusReplayBuilder setMode(WMBusMode mode) {
+            builder.mode = mode;
+            return self();
+        }
+
+        public WMBusReplayBuilder setWmBusManufacturer(WMBusManufacturer wmBusManufacturer) {
+            builder.wmBusManufacturer = wmBusManufacturer;
+            return self();
+        }
+
+        public WMBusReplayBuilder setListener(WMBusListener connectionListener) {
+            builder.listener = connectionListener;
+            return self();
+        }
+
+        /**
+         * Sets the settings of the receive path, e.g. the queue capacity, the listener threads and the filters.
+         * 
+         * @param settings
+         *            the settings, which are read when the connection is built.
+         * @return the builder itself.
+         */
+        public WMBusReplayBuilder setSettings(WMBusConnectionSettings settings) {
+            builder.setSettings(settings);
+            return self();
+        }
+
+        @Override
+        public WMBusConnection build() throws IOException {
+            return builder.build(buildTransportLayer());
+        }
+
+    }
+
+    /**
+     * Builds a connection to a simulated stick in the same process instead of real hardware. The manufacturer is the
+     * one of the simulated stick.
+     */
+    class WMBusSimulatedBuilder extends SimulatedBuilder<WMBusConnection, WMBusSimulatedBuilder> {
+
+        private final Builder builder;
+
+        public WMBusSimulatedBuilder(SimulatedWMBusStick stick, WMBusListener listener) {
+            super(stick);
+            builder = new Builder(stick.getManufacturer(), listener);
+        }
+
+        public WMBusSimulatedBuilder setMode(WMBusMode mode) {
+            builder.mode = mode;
+            return self();
+        }
+
+        public WMBusSimulatedBuilder setListener(WMBusListener connectionListener) {
+            builder.listener = connectionListener;
+            return self();
+        }
+
+        /**
+         * Sets the settings of the receive path, e.g. the queue capacity, the listener threads and the filters.
+         * 
+         * @param settings
+         *            the settings, which are read when the connection is built.
+         * @return the builder itself.
+         */
+        public WMBusSimulatedBuilder setSettings(WMBusConnectionSettings settings) {
+            builder.setSettings(settings);
+            return self();
+        }
+
         @Override
         public WMBusConnection build() throws IOException {
             return builder.build(buildTransportLayer());
@@ -136,14 +319,43 @@ public interface WMBusConnection extends AutoCloseable {
         private WMBusManufacturer wmBusManufacturer;
         private WMBusMode mode;
         private WMBusListener listener;
+        private WMBusConnectionSettings settings;
+        private int reconnectInitialBackoff;
+        private int reconnectMaxBackoff;
+        private OutageListener outageListener;
 
         Builder(WMBusManufacturer wmBusManufacturer, WMBusListener listener) {
             this.listener = listener;
             this.wmBusManufacturer = wmBusManufacturer;
             this.mode = WMBusMode.T;
+            this.settings = new WMBusConnectionSettings();
+        }
+
+        void setSettings(WMBusConnectionSettings settings) {
+            if (settings == null) {
+                throw new IllegalArgumentException("Settings must not be null.");
+            }
+            this.settings = settings;
+        }
+
+        void setReconnect(int initialBackoff, int maxBackoff, OutageListener outageListener) {
+            if (initialBackoff <= 0) {
+                throw new IllegalArgumentException("Initial backoff must be > 0.");
+            }
+            if (maxBackoff < initialBackoff) {
+                throw new IllegalArgumentException("Maximum backoff must not be smaller than the initial backoff.");
+            }
+            this.reconnectInitialBackoff = initialBackoff;
+            this.reconnectMaxBackoff = maxBackoff;
+            this.outageListener = outageListener;
         }
 
         WMBusConnection build(TransportLayer transportLayer) throws IOException {
+            if (this.reconnectInitialBackoff > 0) {
+                transportLayer = new ReconnectingTransportLayer(transportLayer, this.reconnectInitialBackoff,
+                        this.reconnectMaxBackoff, this.outageListener);
+            }
+
             AbstractWMBusConnection wmBusConnection;
             switch (this.wmBusManufacturer) {
             case AMBER:
@@ -160,6 +372,7 @@ public interface WMBusConnection extends AutoCloseable {
                 throw new RuntimeException("Unknown Manufacturer.");
             }
 
+            this.settings.applyTo(wmBusConnection);
             wmBusConnection.open();
             return wmBusConnection;
         }
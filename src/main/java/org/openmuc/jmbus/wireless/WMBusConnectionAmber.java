@@ -5,15 +5,11 @@
  */
 package org.openmuc.jmbus.wireless;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.text.MessageFormat;
-import java.util.Arrays;
 
-import org.openmuc.jmbus.DecodingException;
 import org.openmuc.jmbus.transportlayer.TransportLayer;
 
 /**
@@ -26,11 +22,11 @@ class WMBusConnectionAmber extends AbstractWMBusConnection {
         private static final int MBUS_BL_CONTROL = 0x44;
 
         private int discardCount = 0;
-        private final TransportLayer transportLayer;
+        private final FrameExtractor frameExtractor;
 
-        public MessageReceiverImpl(TransportLayer transportLayer, WMBusListener listener) {
-            super(listener);
-            this.transportLayer = transportLayer;
+        public MessageReceiverImpl(TransportLayer transportLayer, MessageDispatcher dispatcher) {
+            super(dispatcher);
+            this.frameExtractor = new AmberFrameExtractor(transportLayer);
         }
 
         @Override
@@ -56,75 +52,31 @@ class WMBusConnectionAmber extends AbstractWMBusConnection {
         }
 
         private void task() throws IOException {
-
-            ByteBuffer discardBuffer = ByteBuffer.allocate(100);
-
-            int b0, b1;
-            DataInputStream is = getInputStream();
-            while (true) {
-                try {
-                    this.transportLayer.setTimeout(0);
-                    b0 = is.read();
-                    this.transportLayer.setTimeout(MESSAGE_FRAGEMENT_TIMEOUT);
-                    b1 = is.read();
-
-                    if (b0 == 0xff && b1 == 0x03) {
-                        // it's optional if UART_CMD_Out_Enable is enabled on amber module
-                        // then you will get also CRC at the end of message frame
-                        continue;
-                    }
-
-                    if ((b1 ^ MBUS_BL_CONTROL) == 0) {
-                        // we found beginning of mBUS frame, in the b0 will be the length of message
-                        break;
-                    }
-
-                    if (discardBuffer.capacity() - discardBuffer.position() < 2) {
-                        discard(discardBuffer.array(), 0, discardBuffer.position());
-                        discardBuffer.clear();
-                    }
-                    discardBuffer.put((byte) b0);
-                    discardBuffer.put((byte) b1);
-                } catch (InterruptedIOException e) {
-                    continue;
-                }
+            byte[] frame = frameExtractor.readFrame();
+            if (frame == null) {
+                return;
             }
 
-            int length = (b0 & 0xff) + 1; // +1 because length don't count the length byte itself
-            byte[] data = new byte[length];
-
-            data[0] = (byte) b0;
-            data[1] = (byte) b1;
-
-            int readLength = length - 2; // we already have first two bytes
-            int actualLength = is.read(data, 2, readLength);
-
-            if (readLength != actualLength) {
-                discard(data, 0, actualLength);
+            if ((frame[0] & 0xff) != 0xff || (frame[1] & 0xff) == MBUS_BL_CONTROL) {
+                // parse data without CRC check
+                notifyListener(frame);
                 return;
             }
 
-            if (is.available() > 0) {
-                // if there is one more bit it will be CRC, it's optional
-                byte crc = is.readByte();
-                byte countedCRC = (byte) (0xFF ^ 0x03);
-                for (byte element : data) {
-                    countedCRC = (byte) (countedCRC ^ element);
-                }
-                if (crc == countedCRC) {
-                    notifyListener(data);
-                }
-                else {
-                    notifyDiscarded(data);
-                }
+            // it's optional if UART_CMD_Out_Enable is enabled on amber module
+            // then you will get the frame as command with a CRC at the end
+            byte countedCRC = 0;
+            for (byte element : frame) {
+                countedCRC = (byte) (countedCRC ^ element);
             }
-            else {
-                // parse data without CRC check
+            byte[] data = newBuffer(frame.length - 3);
+            System.arraycopy(frame, 2, data, 0, data.length);
+            recycle(frame);
+            if (countedCRC == 0) {
                 notifyListener(data);
             }
-
-            if (discardBuffer.position() > 0) {
-                discard(discardBuffer.array(), 0, discardBuffer.position());
+            else {
+                notifyDiscarded(data);
             }
         }
 
@@ -141,16 +93,11 @@ class WMBusConnectionAmber extends AbstractWMBusConnection {
 
             data[0] = (byte) (data[0] - 1);
 
-            try {
-                super.notifyNewMessage(WMBusMessage.decode(data, signalStrengthInDBm, keyMap));
-            } catch (DecodingException e) {
-                super.notifyDiscarded(data);
-            }
+            handleTelegram(data, signalStrengthInDBm, frameExtractor.getFrameArrival(), null, this);
         }
 
-        private void discard(byte[] data, int offset, int length) {
+        private void discard(byte[] discardedBytes) {
             discardCount++;
-            final byte[] discardedBytes = Arrays.copyOfRange(data, offset, offset + length);
 
             super.notifyDiscarded(discardedBytes);
 
@@ -164,6 +111,42 @@ class WMBusConnectionAmber extends AbstractWMBusConnection {
             }
         }
 
+        private class AmberFrameExtractor extends FrameExtractor {
+
+            private static final int CMD_START = 0xff;
+            private static final int CMD_DATA_IND = 0x03;
+
+            AmberFrameExtractor(TransportLayer transportLayer) {
+                super(transportLayer, MESSAGE_FRAGEMENT_TIMEOUT, getBufferPool());
+            }
+
+            @Override
+            protected int frameLength() {
+                if (buffered() < 2) {
+                    return INCOMPLETE;
+                }
+
+                if (peek(0) == CMD_START && peek(1) == CMD_DATA_IND) {
+                    // 0xFF 0x03, the wireless M-Bus frame and the CRC
+                    if (buffered() < 4) {
+                        return INCOMPLETE;
+                    }
+                    return peek(3) == MBUS_BL_CONTROL ? peek(2) + 4 : NOT_A_FRAME;
+                }
+
+                if (peek(1) == MBUS_BL_CONTROL) {
+                    // we found beginning of mBUS frame, +1 because length doesn't count the length byte itself
+                    return peek(0) + 1;
+                }
+                return NOT_A_FRAME;
+            }
+
+            @Override
+            protected void discarded(byte[] bytes) {
+                discard(bytes);
+            }
+        }
+
     }
 
     public WMBusConnectionAmber(WMBusMode mode, WMBusListener listener, TransportLayer tl) {
@@ -171,8 +154,8 @@ class WMBusConnectionAmber extends AbstractWMBusConnection {
     }
 
     @Override
-    protected MessageReceiver newMessageReceiver(TransportLayer transportLayer, WMBusListener listener) {
-        return new MessageReceiverImpl(transportLayer, listener);
+    protected MessageReceiver newMessageReceiver(TransportLayer transportLayer, MessageDispatcher dispatcher) {
+        return new MessageReceiverImpl(transportLayer, dispatcher);
     }
 
     /**
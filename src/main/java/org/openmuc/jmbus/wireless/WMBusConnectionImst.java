@@ -5,14 +5,10 @@
  */
 package org.openmuc.jmbus.wireless;
 
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.text.MessageFormat;
-import java.util.Arrays;
 
-import org.openmuc.jmbus.DecodingException;
 import org.openmuc.jmbus.HexUtils;
 import org.openmuc.jmbus.transportlayer.TransportLayer;
 
@@ -24,11 +20,11 @@ class WMBusConnectionImst extends AbstractWMBusConnection {
     private class MessageReceiverImpl extends MessageReceiver {
 
         private static final byte MBUS_BL_CONTROL = 0x44;
-        private final TransportLayer transportLayer;
+        private final FrameExtractor frameExtractor;
 
-        public MessageReceiverImpl(TransportLayer transportLayer, WMBusListener listener) {
-            super(listener);
-            this.transportLayer = transportLayer;
+        public MessageReceiverImpl(TransportLayer transportLayer, MessageDispatcher dispatcher) {
+            super(dispatcher);
+            this.frameExtractor = new HciFrameExtractor(transportLayer);
         }
 
         @Override
@@ -36,13 +32,7 @@ class WMBusConnectionImst extends AbstractWMBusConnection {
             try {
 
                 while (!isClosed()) {
-                    try {
-                        task();
-                    } catch (InterruptedIOException e) {
-                        // ignore a timeout..
-                    } catch (HciMessageException e) {
-                        super.notifyDiscarded(e.getData());
-                    }
+                    task();
                 }
 
             } catch (IOException e) {
@@ -59,36 +49,65 @@ class WMBusConnectionImst extends AbstractWMBusConnection {
 
         private void task() throws IOException {
             HciMessage hciMessage = readHciMsg();
+            if (hciMessage == null) {
+                return;
+            }
 
             final byte[] wmbusMessage = hciMessage.getPayload();
             final int signalStrengthInDBm = hciMessage.getRSSI();
-            try {
-                super.notifyNewMessage(WMBusMessage.decode(wmbusMessage, signalStrengthInDBm, keyMap));
-            } catch (DecodingException e) {
-                super.notifyDiscarded(wmbusMessage);
-            }
+            handleTelegram(wmbusMessage, signalStrengthInDBm, frameExtractor.getFrameArrival(),
+                    hciMessage.getTimeStamp(), this);
         }
 
         private HciMessage readHciMsg() throws IOException {
-            while (true) {
-                HciMessage hciMessage = HciMessage.decode(this.transportLayer);
+            byte[] frame = frameExtractor.readFrame();
+            if (frame == null) {
+                return null;
+            }
 
-                if (hciMessage.getPayload().length <= 1) {
-                    continue;
-                }
+            HciMessage hciMessage = HciMessage.decode(frame, newBuffer((frame[3] & 0xff) + 1));
+            recycle(frame);
 
-                if (hciMessage.getPayload()[1] == MBUS_BL_CONTROL) {
-                    return hciMessage;
-                }
-                else {
-                    discard(hciMessage);
-                }
+            if (hciMessage.getPayload().length <= 1) {
+                recycle(hciMessage.getPayload());
+                return null;
+            }
+
+            if (hciMessage.getPayload()[1] == MBUS_BL_CONTROL) {
+                return hciMessage;
+            }
+            else {
+                discard(hciMessage);
+                return null;
             }
         }
 
         private void discard(HciMessage hciMessage) {
             super.notifyDiscarded(hciMessage.payload);
         }
+
+        private class HciFrameExtractor extends FrameExtractor {
+
+            HciFrameExtractor(TransportLayer transportLayer) {
+                super(transportLayer, MESSAGE_FRAGEMENT_TIMEOUT, getBufferPool());
+            }
+
+            @Override
+            protected int frameLength() {
+                if (peek(0) != (Const.START_OF_FRAME & 0xff)) {
+                    return NOT_A_FRAME;
+                }
+                if (buffered() < Const.HCI_HEADER_LENGTH) {
+                    return INCOMPLETE;
+                }
+                return HciMessage.frameLength(peek(1) >> 4, peek(3));
+            }
+
+            @Override
+            protected void discarded(byte[] bytes) {
+                notifyDiscarded(bytes);
+            }
+        }
     }
 
     public WMBusConnectionImst(WMBusMode mode, WMBusListener listener, TransportLayer tl) {
@@ -96,8 +115,8 @@ class WMBusConnectionImst extends AbstractWMBusConnection {
     }
 
     @Override
-    protected MessageReceiver newMessageReceiver(TransportLayer transportLayer, WMBusListener listener) {
-        return new MessageReceiverImpl(transportLayer, listener);
+    protected MessageReceiver newMessageReceiver(TransportLayer transportLayer, MessageDispatcher dispatcher) {
+        return new MessageReceiverImpl(transportLayer, dispatcher);
     }
 
     @Override
@@ -292,64 +311,61 @@ class WMBusConnectionImst extends AbstractWMBusConnection {
             this.fCS = fCS;
         }
 
-        public static HciMessage decode(TransportLayer transportLayer) throws IOException {
-            DataInputStream is = transportLayer.getInputStream();
-            byte b0;
-            byte b1;
-
-            transportLayer.setTimeout(0);
-            b0 = is.readByte();
-            if (b0 != Const.START_OF_FRAME) {
-                String msg = String.format("First byte does not start with %02X.", Const.START_OF_FRAME);
-                throw new IOException(msg);
+        /**
+         * Get the length of a complete HCI message including the start of frame.
+         */
+        static int frameLength(int controlField, int payloadLength) {
+            int length = Const.HCI_HEADER_LENGTH + payloadLength;
+            if ((controlField & Const.TIMESTAMP_ATTACHED) == Const.TIMESTAMP_ATTACHED) {
+                length += 4;
+            }
+            if ((controlField & Const.RSSI_ATTACHED) == Const.RSSI_ATTACHED) {
+                length += 1;
+            }
+            if ((controlField & Const.CRC16_ATTACHED) == Const.CRC16_ATTACHED) {
+                length += 2;
             }
+            return length;
+        }
 
-            transportLayer.setTimeout(MESSAGE_FRAGEMENT_TIMEOUT);
-            // this may time out.
-            b1 = is.readByte();
+        /**
+         * Decodes a complete HCI message as returned by the frame extractor, starting with the start of frame. The
+         * payload is copied into the given buffer behind its length, so the buffer must be one byte longer than the
+         * payload.
+         */
+        public static HciMessage decode(byte[] frame, byte[] payload) {
+            ByteBuffer buffer = ByteBuffer.wrap(frame, 1, frame.length - 1);
 
+            byte b1 = buffer.get();
             byte controlField = (byte) ((b1 >> 4) & 0x0F);
             byte endpointId = (byte) (b1 & 0x0F);
 
-            byte msgId = is.readByte();
-            int length = is.readUnsignedByte();
+            byte msgId = buffer.get();
+            int length = buffer.get() & 0xff;
 
-            byte[] payload = readPayload(is, length);
+            payload[0] = (byte) length;
+            buffer.get(payload, 1, length);
 
             int timeStamp = 0;
             if ((controlField & Const.TIMESTAMP_ATTACHED) == Const.TIMESTAMP_ATTACHED) {
-                timeStamp = is.readInt();
+                timeStamp = buffer.getInt();
             }
 
             int rSSI = 0;
             if ((controlField & Const.RSSI_ATTACHED) == Const.RSSI_ATTACHED) {
                 double b = -100.0 - (4000.0 / 150.0);
                 double m = 80.0 / 150.0;
-                rSSI = (int) (m * is.readUnsignedByte() + b);
+                rSSI = (int) (m * (buffer.get() & 0xff) + b);
             }
 
             int fCS = 0;
             if ((controlField & Const.CRC16_ATTACHED) == Const.CRC16_ATTACHED) {
-                fCS = is.readUnsignedShort();
+                fCS = buffer.getShort() & 0xffff;
             }
 
             return new HciMessage(controlField, endpointId, msgId, length, payload, timeStamp, rSSI, fCS);
         }
 
-        private static byte[] readPayload(DataInputStream is, final int length) throws IOException {
-            byte[] payload = new byte[length + 1];
-            payload[0] = (byte) length;
-
-            int readLength = is.read(payload, 1, length);
-
-            if (readLength != length) {
-                byte[] data = Arrays.copyOfRange(payload, 1, 1 + readLength);
-                throw new HciMessageException(data);
-            }
-
-            return payload;
-        }
-
         @Override
         public String toString() {
             return new StringBuilder().append("Control Field: ")
@@ -383,6 +399,16 @@ class WMBusConnectionImst extends AbstractWMBusConnection {
             return rSSI;
         }
 
+        /**
+         * The RTC time stamp as unsigned value or {@code null} if none is attached.
+         */
+        public Long getTimeStamp() {
+            if ((controlField & Const.TIMESTAMP_ATTACHED) != Const.TIMESTAMP_ATTACHED) {
+                return null;
+            }
+            return timeStamp & 0xffffffffL;
+        }
+
     }
 
 }
@@ -7,11 +7,8 @@ package org.openmuc.jmbus.wireless;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.text.MessageFormat;
-import java.util.Arrays;
 
-import org.openmuc.jmbus.DecodingException;
 import org.openmuc.jmbus.transportlayer.TransportLayer;
 
 /*
@@ -32,15 +29,12 @@ class WMBusConnectionRadioCrafts extends AbstractWMBusConnection {
         /**
          * Indicates message from primary station, function send/no reply (SND -N
          */
-        private static final byte CONTROL_BYTE = 0x44;
-        private final TransportLayer transportLayer;
+        private static final int CONTROL_BYTE = 0x44;
+        private final FrameExtractor frameExtractor;
 
-        private final byte[] discardBuffer = new byte[BUFFER_LENGTH];
-        private int bufferPointer = 0;
-
-        public MessageReceiverImpl(TransportLayer transportLayer, WMBusListener listener) {
-            super(listener);
-            this.transportLayer = transportLayer;
+        public MessageReceiverImpl(TransportLayer transportLayer, MessageDispatcher dispatcher) {
+            super(dispatcher);
+            this.frameExtractor = new RadioCraftsFrameExtractor(transportLayer);
         }
 
         @Override
@@ -49,10 +43,11 @@ class WMBusConnectionRadioCrafts extends AbstractWMBusConnection {
 
                 while (!isClosed()) {
 
-                    byte[] messageData = initMessageData();
+                    byte[] messageData = frameExtractor.readFrame();
 
-                    int len = messageData.length - 2;
-                    handleData(messageData, len);
+                    if (messageData != null) {
+                        notifyListener(messageData);
+                    }
 
                 }
             } catch (final IOException e) {
@@ -67,76 +62,35 @@ class WMBusConnectionRadioCrafts extends AbstractWMBusConnection {
 
         }
 
-        private void handleData(byte[] messageData, int len) throws IOException {
-            try {
-                int numReadBytes = getInputStream().read(messageData, 2, len);
+        private void notifyListener(final byte[] messageBytes) {
+            messageBytes[0] = (byte) (messageBytes[0] - 1);
+            int rssi = messageBytes[messageBytes.length - 1] & 0xff;
 
-                if (len == numReadBytes) {
-                    notifyListener(messageData);
-                }
-                else {
-                    discard(messageData, 0, numReadBytes + 2);
-                }
-            } catch (InterruptedIOException e) {
-                discard(messageData, 0, 2);
-            }
+            final int signalStrengthInDBm = (rssi * -1) / 2;
+            handleTelegram(messageBytes, signalStrengthInDBm, frameExtractor.getFrameArrival(), null, this);
         }
 
-        private byte[] initMessageData() throws IOException {
-            byte b0, b1;
-            while (true) {
-                this.transportLayer.setTimeout(0);
-                b0 = getInputStream().readByte();
-                this.transportLayer.setTimeout(MESSAGE_FRAGEMENT_TIMEOUT);
-
-                try {
-                    // this may time out.
-                    b1 = getInputStream().readByte();
-                } catch (InterruptedIOException e) {
-                    continue;
-                }
+        private class RadioCraftsFrameExtractor extends FrameExtractor {
 
-                if (b1 == CONTROL_BYTE) {
-                    break;
-                }
-
-                discardBuffer[bufferPointer++] = b0;
-                discardBuffer[bufferPointer++] = b1;
+            RadioCraftsFrameExtractor(TransportLayer transportLayer) {
+                super(transportLayer, MESSAGE_FRAGEMENT_TIMEOUT, getBufferPool());
+            }
 
-                if (bufferPointer - 2 >= discardBuffer.length) {
-                    discard(discardBuffer, 0, bufferPointer);
-                    bufferPointer = 0;
+            @Override
+            protected int frameLength() {
+                if (buffered() < 2) {
+                    return INCOMPLETE;
                 }
-
+                // the length doesn't count the length byte itself
+                return peek(1) == CONTROL_BYTE ? peek(0) + 1 : NOT_A_FRAME;
             }
 
-            int messageLength = b0 & 0xff;
-
-            final byte[] messageData = new byte[messageLength + 1];
-            messageData[0] = b0;
-            messageData[1] = b1;
-
-            return messageData;
-        }
-
-        private void notifyListener(final byte[] messageBytes) {
-            messageBytes[0] = (byte) (messageBytes[0] - 1);
-            int rssi = messageBytes[messageBytes.length - 1] & 0xff;
-
-            final int signalStrengthInDBm = (rssi * -1) / 2;
-            try {
-                super.notifyNewMessage(WMBusMessage.decode(messageBytes, signalStrengthInDBm, keyMap));
-            } catch (DecodingException e) {
-                super.notifyDiscarded(messageBytes);
+            @Override
+            protected void discarded(byte[] bytes) {
+                notifyDiscarded(bytes);
             }
         }
 
-        private void discard(byte[] buffer, int offset, int length) {
-            final byte[] discardedBytes = Arrays.copyOfRange(buffer, offset, offset + length);
-
-            super.notifyDiscarded(discardedBytes);
-        }
-
     }
 
     public WMBusConnectionRadioCrafts(WMBusMode mode, WMBusListener listener, TransportLayer tl) {
@@ -144,8 +98,8 @@ class WMBusConnectionRadioCrafts extends AbstractWMBusConnection {
     }
 
     @Override
-    protected MessageReceiver newMessageReceiver(TransportLayer transportLayer, WMBusListener listener) {
-        return new MessageReceiverImpl(transportLayer, listener);
+    protected MessageReceiver newMessageReceiver(TransportLayer transportLayer, MessageDispatcher dispatcher) {
+        return new MessageReceiverImpl(transportLayer, dispatcher);
     }
 
     /**
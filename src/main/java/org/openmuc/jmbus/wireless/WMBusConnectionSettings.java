@@ -0,0 +1,206 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import org.openmuc.jmbus.UndecryptableMeterCache;
+
+/**
+ * Settings of the receive path of a wireless M-Bus connection, which are the same for every kind of connection.
+ * <p>
+ * The settings are passed to a connection builder, e.g. {@link WMBusConnection.WMBusSerialBuilder#setSettings}, and
+ * are read when the connection is built. Changing them afterwards does not affect connections built before, so one
+ * instance may be used to build several connections.
+ * </p>
+ *
+ * <pre>
+ * WMBusConnectionSettings settings = new WMBusConnectionSettings().setQueueCapacity(4096).setListenerThreads(4);
+ * new WMBusSerialBuilder(WMBusManufacturer.AMBER, listener, "/dev/ttyUSB0").setSettings(settings).build();
+ * </pre>
+ */
+public class WMBusConnectionSettings {
+
+    private int queueCapacity = MessageDispatcher.DEFAULT_QUEUE_CAPACITY;
+    private OverflowPolicy overflowPolicy = MessageDispatcher.DEFAULT_OVERFLOW_POLICY;
+    private int listenerThreads = 1;
+    private WMBusBatchListener batchListener;
+    private int maxBatchSize;
+    private int maxBatchLatency;
+    private AddressFilter addressFilter;
+    private ReceptionStatistics receptionStatistics;
+    private MeterLivenessTracker livenessTracker;
+    private RetransmissionFilter retransmissionFilter;
+    private TelegramBufferPool bufferPool;
+    private UndecryptableMeterCache undecryptableMeterCache;
+
+    /**
+     * Sets a listener which receives the messages in batches instead of the {@link WMBusListener} of the builder.
+     *
+     * @param batchListener
+     *            the batch listener or {@code null} to use the {@link WMBusListener}.
+     * @param maxBatchSize
+     *            the maximum number of messages in a batch, greater than zero.
+     * @param maxBatchLatency
+     *            the maximum time in MILLIS a message waits for its batch to be delivered.
+     * @return the settings themselves.
+     */
+    public WMBusConnectionSettings setBatchListener(WMBusBatchListener batchListener, int maxBatchSize,
+            int maxBatchLatency) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Maximum batch size must be > 0.");
+        }
+        if (maxBatchLatency < 0) {
+            throw new IllegalArgumentException("Maximum batch latency must be >= 0.");
+        }
+        this.batchListener = batchListener;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchLatency = maxBatchLatency;
+        return this;
+    }
+
+    /**
+     * Sets the number of received messages which are queued for the listener. Default is 1024.
+     *
+     * @param queueCapacity
+     *            the capacity of the receive queue, greater than zero.
+     * @return the settings themselves.
+     */
+    public WMBusConnectionSettings setQueueCapacity(int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be > 0.");
+        }
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads delivering messages to the listener. Default is 1.
+     * <p>
+     * With more than one thread, messages are sharded by their link layer address: the messages of one meter are
+     * delivered in order by the same thread, while different meters are delivered in parallel. The listener must be
+     * thread safe. Every thread has a receive queue with the configured capacity.
+     * </p>
+     *
+     * @param listenerThreads
+     *            the number of listener threads, greater than zero.
+     * @return the settings themselves.
+     */
+    public WMBusConnectionSettings setListenerThreads(int listenerThreads) {
+        if (listenerThreads <= 0) {
+            throw new IllegalArgumentException("Number of listener threads must be > 0.");
+        }
+        this.listenerThreads = listenerThreads;
+        return this;
+    }
+
+    /**
+     * Sets what happens to received messages if the receive queue is full. Default is {@link OverflowPolicy#BLOCK}.
+     *
+     * @param overflowPolicy
+     *            the overflow policy.
+     * @return the settings themselves.
+     */
+    public WMBusConnectionSettings setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("Overflow policy must not be null.");
+        }
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * Sets a filter which drops received telegrams by their link layer address before they are decoded.
+     *
+     * @param addressFilter
+     *            the address filter or {@code null} to accept all telegrams.
+     * @return the settings themselves.
+     */
+    public WMBusConnectionSettings setAddressFilter(AddressFilter addressFilter) {
+        this.addressFilter = addressFilter;
+        return this;
+    }
+
+    /**
+     * Sets the statistics which record every received message. One instance may be shared by several connections.
+     *
+     * @param receptionStatistics
+     *            the reception statistics.
+     * @return the settings themselves.
+     */
+    public WMBusConnectionSettings setReceptionStatistics(ReceptionStatistics receptionStatistics) {
+        this.receptionStatistics = receptionStatistics;
+        return this;
+    }
+
+    /**
+     * Sets the tracker which reports meters that stopped transmitting. One instance may be shared by several
+     * connections.
+     *
+     * @param livenessTracker
+     *            the liveness tracker.
+     * @return the settings themselves.
+     */
+    public WMBusConnectionSettings setLivenessTracker(MeterLivenessTracker livenessTracker) {
+        this.livenessTracker = livenessTracker;
+        return this;
+    }
+
+    /**
+     * Sets the filter which drops telegrams a meter transmits several times before they are decoded. One instance may
+     * be shared by several connections.
+     *
+     * @param retransmissionFilter
+     *            the retransmission filter.
+     * @return the settings themselves.
+     */
+    public WMBusConnectionSettings setRetransmissionFilter(RetransmissionFilter retransmissionFilter) {
+        this.retransmissionFilter = retransmissionFilter;
+        return this;
+    }
+
+    /**
+     * Sets the pool providing the buffers of received frames. Listeners should call {@link WMBusMessage#release()} on
+     * messages they are done with, so that their buffers are reused. One instance may be shared by several
+     * connections.
+     *
+     * @param bufferPool
+     *            the buffer pool.
+     * @return the settings themselves.
+     */
+    public WMBusConnectionSettings setBufferPool(TelegramBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        return this;
+    }
+
+    /**
+     * Sets the cache of meters whose messages could not be decrypted, which is used by
+     * {@link WMBusMessage#decodeVariableDataResponse()}. A meter is removed from the cache when its key is added or
+     * removed. One instance may be shared by several connections.
+     *
+     * @param undecryptableMeterCache
+     *            the cache of undecryptable meters.
+     * @return the settings themselves.
+     */
+    public WMBusConnectionSettings setUndecryptableMeterCache(UndecryptableMeterCache undecryptableMeterCache) {
+        this.undecryptableMeterCache = undecryptableMeterCache;
+        return this;
+    }
+
+    void applyTo(AbstractWMBusConnection connection) {
+        connection.setQueueCapacity(this.queueCapacity);
+        connection.setOverflowPolicy(this.overflowPolicy);
+        connection.setAddressFilter(this.addressFilter);
+        connection.setListenerThreads(this.listenerThreads);
+        connection.setReceptionStatistics(this.receptionStatistics);
+        connection.setLivenessTracker(this.livenessTracker);
+        connection.setRetransmissionFilter(this.retransmissionFilter);
+        connection.setBufferPool(this.bufferPool);
+        connection.setUndecryptableMeterCache(this.undecryptableMeterCache);
+        if (this.batchListener != null) {
+            connection.setBatchListener(this.batchListener, this.maxBatchSize, this.maxBatchLatency);
+        }
+    }
+
+}
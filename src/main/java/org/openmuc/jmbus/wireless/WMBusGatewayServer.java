@@ -0,0 +1,450 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openmuc.jmbus.wireless.WMBusConnection.WMBusManufacturer;
+
+/**
+ * Shares one wireless M-Bus stick with many applications by re-broadcasting its telegrams to TCP clients.
+ * <p>
+ * Only one process can open the serial port of a stick. The server is the listener of the connection to the stick and
+ * forwards every telegram to all connected clients. Towards its clients it behaves like a stick of the given
+ * manufacturer behind a serial to TCP converter, so the clients connect with {@link WMBusConnection.WMBusTcpBuilder}.
+ * Their configuration commands are acknowledged but not passed on, the stick is configured by the owner of the
+ * connection. Telegrams are forwarded to a client once it has configured its stick.
+ * </p>
+ * <p>
+ * All clients are served by one selector thread. Every client has a bounded queue of frames. A client which cannot keep
+ * up with the telegrams until its queue is full is disconnected, so a slow client neither delays the others nor makes
+ * the server buffer without limit.
+ * </p>
+ *
+ * <pre>
+ * WMBusGatewayServer server = new WMBusGatewayServer(10001, WMBusManufacturer.AMBER);
+ * WMBusConnection connection = new WMBusSerialBuilder(WMBusManufacturer.IMST, server, "/dev/ttyUSB0").build();
+ * server.open(connection);
+ * </pre>
+ */
+public class WMBusGatewayServer implements WMBusListener, AutoCloseable {
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    // keeps the frames in the queue of a client instead of the socket, a slow client is noticed early
+    private static final int SEND_BUFFER_SIZE = 16 * 1024;
+
+    private final int port;
+    private final WMBusManufacturer manufacturer;
+    private final long startNanos = System.nanoTime();
+
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicLong numberOfEvictions = new AtomicLong();
+
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private WMBusListener listener;
+
+    private WMBusConnection connection;
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Creates a new server, which is started by {@link #open(WMBusConnection)}.
+     *
+     * @param port
+     *            the TCP port to listen on, {@code 0} for any free port.
+     * @param manufacturer
+     *            the manufacturer of the stick the clients expect, which determines the framing of the telegrams.
+     */
+    public WMBusGatewayServer(int port, WMBusManufacturer manufacturer) {
+        this.port = port;
+        this.manufacturer = manufacturer;
+    }
+
+    /**
+     * Sets the number of frames queued for a client before it is disconnected. Default is {@code 256}.
+     *
+     * @param queueCapacity
+     *            the capacity, greater than zero.
+     * @return the server itself.
+     */
+    public WMBusGatewayServer setQueueCapacity(int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be > 0.");
+        }
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * Sets a listener which is also informed about the telegrams of the stick, e.g. to process them in the owning
+     * process as well. Default is none, the server then releases the messages.
+     *
+     * @param listener
+     *            the listener.
+     * @return the server itself.
+     */
+    public WMBusGatewayServer setListener(WMBusListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Starts listening for clients. The server takes ownership of the connection, whose listener it must be, and closes
+     * it when it is closed itself.
+     *
+     * @param connection
+     *            the connection to the stick.
+     * @throws IOException
+     *             if the server socket could not be bound.
+     */
+    public synchronized void open(WMBusConnection connection) throws IOException {
+        if (serverChannel != null) {
+            throw new IllegalStateException("Server has already been opened.");
+        }
+
+        selector = Selector.open();
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            selector.close();
+            throw new IOException("Listening on port " + port + " failed.", e);
+        }
+
+        this.connection = connection;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "wM-Bus gateway server");
+        thread.start();
+    }
+
+    /**
+     * Returns the port the server listens on, which is only known after opening for port {@code 0}.
+     *
+     * @return the port.
+     */
+    public int getLocalPort() {
+        if (serverChannel == null) {
+            return port;
+        }
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the number of connected clients.
+     *
+     * @return the number of clients.
+     */
+    public int getNumberOfClients() {
+        return clients.size();
+    }
+
+    /**
+     * Returns the number of clients which have been disconnected because they were too slow.
+     *
+     * @return the number of evicted clients.
+     */
+    public long getNumberOfEvictions() {
+        return numberOfEvictions.get();
+    }
+
+    /**
+     * Disconnects all clients, stops listening and closes the connection to the stick.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        Thread thread;
+        WMBusConnection connection;
+        synchronized (this) {
+            thread = this.thread;
+            connection = this.connection;
+        }
+        if (thread == null) {
+            return;
+        }
+
+        selector.wakeup();
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    @Override
+    public void newMessage(WMBusMessage message) {
+        try {
+            if (!clients.isEmpty()) {
+                broadcast(message);
+            }
+        } finally {
+            if (listener != null) {
+                listener.newMessage(message);
+            }
+            else {
+                message.release();
+            }
+        }
+    }
+
+    private void broadcast(WMBusMessage message) {
+        byte[] blob = message.asBlob();
+        byte[] telegram = Arrays.copyOf(blob, (blob[0] & 0xff) + 1);
+
+        Long timeStamp = message.getHardwareTimestamp();
+        if (timeStamp == null) {
+            timeStamp = TimeUnit.NANOSECONDS.toMillis(message.getReceiveTime() - startNanos);
+        }
+
+        // the clients share the framing, all of them get the same frame
+        byte[] frame = null;
+        for (Client client : clients) {
+            if (client.isForwarding()) {
+                if (frame == null) {
+                    frame = client.protocol.frame(telegram, message.getRssi(), timeStamp);
+                }
+                client.offer(frame, true);
+            }
+        }
+    }
+
+    @Override
+    public void discardedBytes(byte[] bytes) {
+        if (listener != null) {
+            listener.discardedBytes(bytes);
+        }
+    }
+
+    /*
+     * The stick is gone, the clients will notice by the disconnect.
+     */
+    @Override
+    public void stoppedListening(IOException cause) {
+        close();
+        if (listener != null) {
+            listener.stoppedListening(cause);
+        }
+    }
+
+    /*
+     * Runs the task on the thread of the server.
+     */
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void loop() {
+        try {
+            while (!closed) {
+                selector.select();
+
+                runTasks();
+                processSelectedKeys();
+            }
+        } catch (IOException e) {
+            // the selector failed, nobody can be served anymore
+        } finally {
+            closed = true;
+            for (Client client : clients) {
+                client.close();
+            }
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void processSelectedKeys() throws IOException {
+        for (SelectionKey key : selector.selectedKeys()) {
+            if (key.isValid() && key.isAcceptable()) {
+                accept();
+                continue;
+            }
+
+            Client client = (Client) key.attachment();
+            try {
+                if (key.isValid() && key.isWritable()) {
+                    client.flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    client.read();
+                }
+            } catch (IOException e) {
+                client.close();
+            }
+        }
+        selector.selectedKeys().clear();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER_SIZE);
+            Client client = new Client(channel);
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+            clients.add(client);
+        } catch (IOException e) {
+            // the client is gone already
+            channel.close();
+        }
+    }
+
+    private class Client {
+
+        private final SocketChannel channel;
+        private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(256);
+        private SelectionKey key;
+        private boolean writeRequested;
+        private boolean closed;
+
+        // accessed by the thread of the server only, except for the framing
+        private final StickProtocol protocol = new StickProtocol(manufacturer);
+        private volatile boolean forwarding;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean isForwarding() {
+            return forwarding;
+        }
+
+        /*
+         * Called by the threads of the connection and of the server. A client whose queue is full is evicted.
+         */
+        synchronized void offer(byte[] frame, boolean evict) {
+            if (closed) {
+                return;
+            }
+            if (queue.size() >= queueCapacity && evict) {
+                numberOfEvictions.incrementAndGet();
+                close();
+                return;
+            }
+
+            queue.add(ByteBuffer.wrap(frame));
+            if (!writeRequested) {
+                writeRequested = true;
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        requestWrite();
+                    }
+                });
+            }
+        }
+
+        private synchronized void requestWrite() {
+            if (!closed) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        synchronized void flush() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = queue.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                queue.poll();
+            }
+            writeRequested = false;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void read() throws IOException {
+            readBuffer.clear();
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                byte[] answer = protocol.received(readBuffer.get() & 0xff);
+                if (answer != null) {
+                    offer(answer, false);
+                }
+            }
+            forwarding = protocol.isForwarding();
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.clear();
+            clients.remove(this);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+}
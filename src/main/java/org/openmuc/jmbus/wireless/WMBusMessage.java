@@ -7,10 +7,14 @@ package org.openmuc.jmbus.wireless;
 
 import java.text.MessageFormat;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.openmuc.jmbus.DecodingException;
+import org.openmuc.jmbus.EncryptionMode;
 import org.openmuc.jmbus.SecondaryAddress;
+import org.openmuc.jmbus.UndecryptableMeterCache;
 import org.openmuc.jmbus.VariableDataStructure;
+import org.openmuc.jmbus.VariableDataStructure.DecodingOutcome;
 
 /**
  * Represents a wireless M-Bus link layer message without the CRC checksum.
@@ -37,27 +41,53 @@ import org.openmuc.jmbus.VariableDataStructure;
  */
 public class WMBusMessage {
 
+    static final int CI_INDEX = 10;
+
     private final Integer signalStrengthInDBm;
+    private final long receiveTime;
+    private final Long hardwareTimestamp;
+
+    // null unless the buffer has been taken from a pool
+    private final TelegramBufferPool bufferPool;
+    private final AtomicInteger referenceCount;
 
     private final byte[] buffer;
-    private final int controlField;
-    private final SecondaryAddress secondaryAddress;
-    private final VariableDataStructure vdr;
+    private final int length;
+    private final Map<SecondaryAddress, byte[]> keyMap;
+    // set by the connection before the message is handed over to the listener
+    private UndecryptableMeterCache undecryptableMeterCache;
+    private ReceptionStatistics receptionStatistics;
+
+    // created on first access, routing only needs the header fields read from the buffer
+    private volatile SecondaryAddress secondaryAddress;
+    private VariableDataStructure vdr;
 
-    private WMBusMessage(Integer signalStrengthInDBm, byte[] buffer, int controlField,
-            SecondaryAddress secondaryAddress, VariableDataStructure vdr) {
+    private WMBusMessage(Integer signalStrengthInDBm, long receiveTime, Long hardwareTimestamp, byte[] buffer,
+            int length, Map<SecondaryAddress, byte[]> keyMap, TelegramBufferPool bufferPool) {
         this.signalStrengthInDBm = signalStrengthInDBm;
+        this.bufferPool = bufferPool;
+        this.referenceCount = bufferPool == null ? null : new AtomicInteger(1);
+        this.receiveTime = receiveTime;
+        this.hardwareTimestamp = hardwareTimestamp;
         this.buffer = buffer;
-        this.controlField = controlField;
-        this.secondaryAddress = secondaryAddress;
-        this.vdr = vdr;
+        this.length = length;
+        this.keyMap = keyMap;
     }
 
     /*
-     * Only decodes the wireless M-Bus message itself.
+     * Only checks the length of the wireless M-Bus message. The secondary address and the variable data structure are
+     * created when they are accessed.
      */
     static WMBusMessage decode(byte[] buffer, Integer signalStrengthInDBm, Map<SecondaryAddress, byte[]> keyMap)
             throws DecodingException {
+        return decode(buffer, signalStrengthInDBm, System.nanoTime(), null, keyMap, null);
+    }
+
+    /*
+     * The buffer is returned to the pool when the message is released, the pool may be null.
+     */
+    static WMBusMessage decode(byte[] buffer, Integer signalStrengthInDBm, long receiveTime, Long hardwareTimestamp,
+            Map<SecondaryAddress, byte[]> keyMap, TelegramBufferPool bufferPool) throws DecodingException {
         int length = buffer[0] & 0xff;
 
         if (length > (buffer.length - 1)) {
@@ -66,12 +96,39 @@ public class WMBusMessage {
                     length);
             throw new DecodingException(msg);
         }
+        if (length < CI_INDEX) {
+            throw new DecodingException(
+                    MessageFormat.format("Message with length field {0} is too short to hold a header.", length));
+        }
+
+        return new WMBusMessage(signalStrengthInDBm, receiveTime, hardwareTimestamp, buffer, length, keyMap,
+                bufferPool);
+    }
 
-        int controlField = buffer[1] & 0xff;
-        SecondaryAddress secondaryAddress = SecondaryAddress.newFromWMBusHeader(buffer, 2);
-        VariableDataStructure vdr = new VariableDataStructure(buffer, 10, length - 9, secondaryAddress, keyMap);
+    /**
+     * Packs the 8 bytes of a link layer secondary address into a long, the first byte being the least significant one.
+     * The manufacturer ID ends up in bits 0-15, the device ID in bits 16-47, the version in bits 48-55 and the device
+     * type in bits 56-63.
+     */
+    static long packAddress(byte[] buffer, int offset) {
+        long address = 0;
+        for (int i = offset + 7; i >= offset; i--) {
+            address = (address << 8) | (buffer[i] & 0xff);
+        }
+        return address;
+    }
 
-        return new WMBusMessage(signalStrengthInDBm, buffer, controlField, secondaryAddress, vdr);
+    /**
+     * Creates the link layer secondary address from a packed address.
+     * 
+     * @see #packAddress(byte[], int)
+     */
+    static SecondaryAddress unpackAddress(long address) {
+        byte[] bytes = new byte[8];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (address >>> (8 * i));
+        }
+        return SecondaryAddress.newFromWMBusHeader(bytes, 0);
     }
 
     /**
@@ -84,7 +141,7 @@ public class WMBusMessage {
     }
 
     public int getControlField() {
-        return controlField;
+        return buffer[1] & 0xff;
     }
 
     /**
@@ -93,7 +150,169 @@ public class WMBusMessage {
      * @return the secondary address.
      */
     public SecondaryAddress getSecondaryAddress() {
-        return secondaryAddress;
+        SecondaryAddress address = secondaryAddress;
+        if (address == null) {
+            address = SecondaryAddress.newFromWMBusHeader(buffer, 2);
+            secondaryAddress = address;
+        }
+        return address;
+    }
+
+    /**
+     * Get the link layer secondary address without creating a {@link SecondaryAddress}. The 8 address bytes are packed
+     * into a long with the first byte being the least significant one: the manufacturer ID in bits 0-15, the device ID
+     * in bits 16-47, the version in bits 48-55 and the device type in bits 56-63.
+     * 
+     * @return the packed link layer secondary address.
+     */
+    public long getPackedAddress() {
+        return packAddress(buffer, 2);
+    }
+
+    /**
+     * Get the CI field following the link layer header.
+     * 
+     * @return the CI field.
+     */
+    public int getCiField() {
+        return buffer[CI_INDEX] & 0xff;
+    }
+
+    /**
+     * Get the access number from the header of the transport layer without decoding the variable data structure.
+     * 
+     * @return the access number or -1 if the message has no header with an access number.
+     */
+    public int getAccessNumber() {
+        int index = accessNumberIndex(getCiField());
+        return index > 0 && index <= length ? buffer[index] & 0xff : -1;
+    }
+
+    /**
+     * Get the status byte from the header of the transport layer without decoding the variable data structure.
+     * 
+     * @return the status or -1 if the message has no header with a status.
+     */
+    public int getStatus() {
+        int ciField = getCiField();
+        if (ciField != 0x7a && ciField != 0x72) {
+            return -1;
+        }
+        int index = accessNumberIndex(getCiField()) + 1;
+        return index <= length ? buffer[index] & 0xff : -1;
+    }
+
+    /**
+     * Get the encryption mode announced by the header without decoding the variable data structure. For messages with
+     * an extended link layer the mode is taken from the session number, the variable data structure additionally
+     * checks whether the payload is actually encrypted.
+     * 
+     * @return the encryption mode or {@code null} if the CI field is not supported.
+     */
+    public EncryptionMode getEncryptionMode() {
+        switch (getCiField()) {
+        case 0x78: // no header
+            return EncryptionMode.NONE;
+        case 0x7a: // short header
+        case 0x72: // long header
+            int configIndex = accessNumberIndex(getCiField()) + 2;
+            if (configIndex + 1 > length) {
+                return null;
+            }
+            int payloadIndex = configIndex + 2;
+            if (payloadIndex + 1 <= length && buffer[payloadIndex] == 0x2f && buffer[payloadIndex + 1] == 0x2f) {
+                // decrypted payloads start with 0x2F2F, so this message is not encrypted
+                return EncryptionMode.NONE;
+            }
+            return EncryptionMode.getInstance(buffer[configIndex + 1] & 0x0f);
+        case 0x8d: // ELL, encryption is the upper three bits of the session number
+            int sessionNumberIndex = CI_INDEX + 3;
+            if (sessionNumberIndex + 3 > length) {
+                return null;
+            }
+            return EncryptionMode.getInstance((buffer[sessionNumberIndex + 3] & 0xff) >> 5);
+        default:
+            return null;
+        }
+    }
+
+    /*
+     * The index of the access number in a message with the given CI field or -1 if it has none.
+     */
+    static int accessNumberIndex(int ciField) {
+        switch (ciField) {
+        case 0x7a: // short header
+            return CI_INDEX + 1;
+        case 0x72: // long header, after the secondary address of the meter
+            return CI_INDEX + 9;
+        case 0x8d: // ELL, after the communication control field
+            return CI_INDEX + 2;
+        default:
+            return -1;
+        }
+    }
+
+    /**
+     * Decodes the variable data structure of the message.
+     * <p>
+     * If the connection which received the message has an {@link UndecryptableMeterCache}, a missing or wrong key is
+     * reported through the returned outcome and meters contained in the cache are skipped, see
+     * {@link VariableDataStructure#decode(UndecryptableMeterCache)}. Otherwise a missing or wrong key causes a
+     * {@link DecodingException}.
+     * </p>
+     * <p>
+     * Failures are recorded in the {@link ReceptionStatistics} of the connection: messages which could not be
+     * decrypted or have been skipped as decryption failures, all others as decoding failures. Only the first call
+     * records anything.
+     * </p>
+     * 
+     * @return the outcome of the decoding.
+     * @throws DecodingException
+     *             if the variable data structure could not be decoded.
+     * 
+     * @see WMBusConnectionSettings#setUndecryptableMeterCache(UndecryptableMeterCache)
+     */
+    public DecodingOutcome decodeVariableDataResponse() throws DecodingException {
+        VariableDataStructure vds = getVariableDataResponse();
+        ReceptionStatistics statistics = takeReceptionStatistics();
+
+        DecodingOutcome outcome;
+        try {
+            if (undecryptableMeterCache == null) {
+                vds.decode();
+                outcome = DecodingOutcome.DECODED;
+            }
+            else {
+                outcome = vds.decode(undecryptableMeterCache);
+            }
+        } catch (DecodingException e) {
+            if (statistics != null) {
+                statistics.recordDecodingFailure(this);
+            }
+            throw e;
+        }
+
+        if (statistics != null && outcome != DecodingOutcome.DECODED) {
+            statistics.recordDecryptionFailure(this);
+        }
+        return outcome;
+    }
+
+    /*
+     * Every message is recorded at most once, however often it is decoded.
+     */
+    private synchronized ReceptionStatistics takeReceptionStatistics() {
+        ReceptionStatistics statistics = receptionStatistics;
+        receptionStatistics = null;
+        return statistics;
+    }
+
+    void setUndecryptableMeterCache(UndecryptableMeterCache undecryptableMeterCache) {
+        this.undecryptableMeterCache = undecryptableMeterCache;
+    }
+
+    void setReceptionStatistics(ReceptionStatistics receptionStatistics) {
+        this.receptionStatistics = receptionStatistics;
     }
 
     /**
@@ -101,7 +320,13 @@ public class WMBusMessage {
      * 
      * @return the variable data structure.
      */
-    public VariableDataStructure getVariableDataResponse() {
+    public synchronized VariableDataStructure getVariableDataResponse() {
+        if (referenceCount != null && referenceCount.get() <= 0) {
+            throw new IllegalStateException("Message has already been released.");
+        }
+        if (vdr == null) {
+            vdr = new VariableDataStructure(buffer, CI_INDEX, length - 9, getSecondaryAddress(), keyMap);
+        }
         return vdr;
     }
 
@@ -114,6 +339,61 @@ public class WMBusMessage {
         return signalStrengthInDBm;
     }
 
+    /**
+     * Keeps the buffer of the message from being recycled until {@link #release()} is called once more, e.g. when the
+     * message is handed over to another thread.
+     * 
+     * @return the message itself.
+     */
+    public WMBusMessage retain() {
+        if (referenceCount != null && referenceCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Message has already been released.");
+        }
+        return this;
+    }
+
+    /**
+     * Returns the buffer of the message to the buffer pool of the connection. The message, its byte array and its
+     * variable data structure must not be used afterwards, so copy out or decode what you need first. Does nothing if
+     * the connection does not pool buffers.
+     * 
+     * @see WMBusConnectionSettings#setBufferPool(TelegramBufferPool)
+     */
+    public void release() {
+        if (referenceCount == null) {
+            return;
+        }
+
+        int count = referenceCount.decrementAndGet();
+        if (count == 0) {
+            bufferPool.recycle(buffer);
+        }
+        else if (count < 0) {
+            throw new IllegalStateException("Message has already been released.");
+        }
+    }
+
+    /**
+     * Get the time the first byte of the message has been read from the transport layer. The value is only meaningful
+     * compared to other values of {@link System#nanoTime()}, e.g. {@code System.nanoTime() - message.getReceiveTime()}
+     * in the listener is the latency of the receive pipeline including the queueing delay.
+     * 
+     * @return the value of {@link System#nanoTime()} at the reception of the message.
+     */
+    public long getReceiveTime() {
+        return receiveTime;
+    }
+
+    /**
+     * Get the time stamp the wireless M-Bus stick attached to the message, taken from its real time clock. Only IMST
+     * sticks attach a time stamp. The unit and the epoch depend on the clock of the stick.
+     * 
+     * @return the raw time stamp or {@code null} if the stick did not attach one.
+     */
+    public Long getHardwareTimestamp() {
+        return hardwareTimestamp;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -123,11 +403,11 @@ public class WMBusMessage {
         }
 
         return builder.append("Control Field: ")
-                .append(String.format("0x%02X", controlField))
+                .append(String.format("0x%02X", getControlField()))
                 .append("\nSecondary Address -> ")
-                .append(secondaryAddress)
+                .append(getSecondaryAddress())
                 .append("\nVariable Data Response:\n")
-                .append(vdr)
+                .append(getVariableDataResponse())
                 .toString();
     }
 
@@ -0,0 +1,217 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the messages of a wireless M-Bus connection to a {@link WMBusSubscriber} as far as it requested them.
+ * <p>
+ * The publisher is used as the listener of the connection. Messages which have not been requested yet are kept in a
+ * bounded buffer. If the buffer is full, the overflow policy decides: {@link OverflowPolicy#BLOCK} blocks the listener
+ * thread of the connection until the subscriber requests more messages, so the receive queue of the connection fills
+ * up and its own overflow policy applies. The drop policies drop messages, see {@link #getDroppedCount()}.
+ * </p>
+ * <p>
+ * A publisher supports a single subscriber. Messages received before the subscription are buffered. If the
+ * connection stops listening, the subscriber gets the cause through {@link WMBusSubscriber#onError(Throwable)} after
+ * the buffered messages. Call {@link #complete()} after closing the connection to complete the subscriber.
+ * </p>
+ *
+ * <pre>
+ * WMBusPublisher publisher = new WMBusPublisher(256, OverflowPolicy.BLOCK);
+ * WMBusConnection connection = new WMBusSerialBuilder(WMBusManufacturer.AMBER, publisher, "/dev/ttyUSB0").build();
+ * publisher.subscribe(subscriber);
+ * </pre>
+ */
+public class WMBusPublisher implements WMBusListener {
+
+    private final RingBuffer<WMBusMessage> buffer;
+
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger workInProgress = new AtomicInteger();
+
+    private volatile WMBusSubscriber subscriber;
+    private volatile boolean cancelled;
+    private volatile boolean done;
+    private volatile Throwable error;
+    private volatile IllegalArgumentException invalidRequest;
+    private boolean terminated;
+
+    /**
+     * Creates a new publisher.
+     *
+     * @param bufferCapacity
+     *            the maximum number of messages which have been received but not requested yet.
+     * @param overflowPolicy
+     *            what happens to messages if the buffer is full.
+     */
+    public WMBusPublisher(int bufferCapacity, OverflowPolicy overflowPolicy) {
+        this.buffer = new RingBuffer<>(bufferCapacity, overflowPolicy);
+    }
+
+    /**
+     * Subscribes to the messages of the connection.
+     *
+     * @param subscriber
+     *            the subscriber.
+     * @throws IllegalStateException
+     *             if the publisher already has a subscriber.
+     */
+    public synchronized void subscribe(WMBusSubscriber subscriber) {
+        if (this.subscriber != null) {
+            throw new IllegalStateException("The publisher supports a single subscriber only.");
+        }
+
+        subscriber.onSubscribe(new Subscription());
+        this.subscriber = subscriber;
+        drain();
+    }
+
+    /**
+     * Completes the subscriber after the buffered messages have been delivered. Messages received afterwards are
+     * dropped.
+     */
+    public void complete() {
+        done = true;
+        buffer.close();
+        drain();
+    }
+
+    /**
+     * Get the number of messages dropped because the buffer was full.
+     *
+     * @return the number of dropped messages.
+     */
+    public long getDroppedCount() {
+        return buffer.getDroppedCount();
+    }
+
+    /**
+     * Get the number of messages which have been received but not requested yet.
+     *
+     * @return the number of buffered messages.
+     */
+    public int getBufferedCount() {
+        return buffer.size();
+    }
+
+    @Override
+    public void newMessage(WMBusMessage message) {
+        if (cancelled || done) {
+            return;
+        }
+
+        try {
+            buffer.put(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        drain();
+    }
+
+    @Override
+    public void discardedBytes(byte[] bytes) {
+        // not part of the message stream
+    }
+
+    @Override
+    public void stoppedListening(IOException cause) {
+        error = cause;
+        complete();
+    }
+
+    /*
+     * Delivers buffered messages as far as requested. Only one thread delivers at a time, calls from other threads
+     * meanwhile make it loop once more.
+     */
+    private void drain() {
+        if (workInProgress.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            WMBusSubscriber s = subscriber;
+            if (s != null) {
+                deliver(s);
+            }
+            missed = workInProgress.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void deliver(WMBusSubscriber s) {
+        if (invalidRequest != null && !cancelled) {
+            cancelled = true;
+            buffer.close();
+            s.onError(invalidRequest);
+            return;
+        }
+
+        while (!cancelled && demand.get() > 0) {
+            WMBusMessage message = buffer.poll();
+            if (message == null) {
+                break;
+            }
+
+            if (demand.get() != Long.MAX_VALUE) {
+                demand.decrementAndGet();
+            }
+            s.onNext(message);
+        }
+
+        if (cancelled || terminated || !done || buffer.size() > 0) {
+            return;
+        }
+
+        terminated = true;
+        if (error != null) {
+            s.onError(error);
+        }
+        else {
+            s.onComplete();
+        }
+    }
+
+    private class Subscription implements WMBusSubscription {
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Number of requested messages must be > 0.");
+                drain();
+                return;
+            }
+
+            long current;
+            long next;
+            do {
+                current = demand.get();
+                if (current == Long.MAX_VALUE) {
+                    return;
+                }
+                next = current + n;
+                if (next < 0) {
+                    // overflow, the demand is unbounded from now on
+                    next = Long.MAX_VALUE;
+                }
+            } while (!demand.compareAndSet(current, next));
+
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            // releases a blocked listener thread
+            buffer.close();
+        }
+    }
+
+}
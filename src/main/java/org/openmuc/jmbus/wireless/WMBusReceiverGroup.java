@@ -0,0 +1,364 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openmuc.jmbus.SecondaryAddress;
+
+/**
+ * Merges the messages of several wireless M-Bus connections into one stream and drops duplicate telegrams.
+ * <p>
+ * The group is used as the listener of all member connections. Two messages are duplicates if they have the same
+ * secondary address, access number and payload and arrive within the de-duplication window. Duplicates are dropped
+ * before the variable data structure of the message is decoded or decrypted.
+ * </p>
+ * <p>
+ * If a hold time is configured, the first copy of a telegram is held back for this time and the copy with the best
+ * RSSI is delivered. Otherwise the first copy is delivered immediately.
+ * </p>
+ * <p>
+ * The group keeps on listening as long as one of its connections does, the listener is told that the group stopped
+ * listening when the last connection stopped.
+ * </p>
+ *
+ * <pre>
+ * WMBusReceiverGroup group = new WMBusReceiverGroup(listener, 10000, 200);
+ * group.addConnection(new WMBusSerialBuilder(WMBusManufacturer.AMBER, group, "/dev/ttyUSB0").build());
+ * group.addConnection(new WMBusSerialBuilder(WMBusManufacturer.IMST, group, "/dev/ttyUSB1").build());
+ * </pre>
+ */
+public class WMBusReceiverGroup implements WMBusConnection, WMBusListener {
+
+    private final List<WMBusConnection> connections = new CopyOnWriteArrayList<>();
+
+    private final MessageDispatcher dispatcher;
+    private final ScheduledExecutorService holdTimer;
+
+    private final long deduplicationWindowNanos;
+    private final int holdTime;
+
+    // in order of arrival, guarded by this
+    private final LinkedHashMap<TelegramKey, Telegram> telegrams = new LinkedHashMap<>();
+    private long duplicateCount;
+    private int liveConnections;
+
+    /**
+     * Creates a new receiver group.
+     *
+     * @param listener
+     *            the listener receiving the merged messages.
+     * @param deduplicationWindow
+     *            the time in MILLIS in which a repeated telegram is regarded as duplicate.
+     * @param holdTime
+     *            the time in MILLIS the first copy of a telegram waits for copies with a better RSSI. Zero delivers
+     *            the first copy immediately. Must not be greater than the de-duplication window.
+     */
+    public WMBusReceiverGroup(WMBusListener listener, int deduplicationWindow, int holdTime) {
+        this(listener, deduplicationWindow, holdTime, MessageDispatcher.DEFAULT_QUEUE_CAPACITY,
+                MessageDispatcher.DEFAULT_OVERFLOW_POLICY);
+    }
+
+    /**
+     * Creates a new receiver group.
+     *
+     * @param listener
+     *            the listener receiving the merged messages.
+     * @param deduplicationWindow
+     *            the time in MILLIS in which a repeated telegram is regarded as duplicate.
+     * @param holdTime
+     *            the time in MILLIS the first copy of a telegram waits for copies with a better RSSI. Zero delivers
+     *            the first copy immediately. Must not be greater than the de-duplication window.
+     * @param queueCapacity
+     *            the capacity of the queue to the listener.
+     * @param overflowPolicy
+     *            what happens to messages if the queue to the listener is full.
+     */
+    public WMBusReceiverGroup(WMBusListener listener, int deduplicationWindow, int holdTime, int queueCapacity,
+            OverflowPolicy overflowPolicy) {
+        if (holdTime < 0 || holdTime > deduplicationWindow) {
+            throw new IllegalArgumentException("Hold time must be >= 0 and <= de-duplication window.");
+        }
+
+        this.deduplicationWindowNanos = TimeUnit.MILLISECONDS.toNanos(deduplicationWindow);
+        this.holdTime = holdTime;
+        this.holdTimer = holdTime > 0 ? Executors.newSingleThreadScheduledExecutor() : null;
+
+        this.dispatcher = new MessageDispatcher(listener, queueCapacity, overflowPolicy);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Adds a connection to the group. The connection must have been built with this group as listener, other
+     * connections are closed with the group but their end of listening is not awaited.
+     *
+     * @param connection
+     *            the connection.
+     */
+    public void addConnection(WMBusConnection connection) {
+        connections.add(connection);
+        if (connection instanceof AbstractWMBusConnection && ((AbstractWMBusConnection) connection).deliversTo(this)) {
+            synchronized (this) {
+                liveConnections++;
+            }
+        }
+    }
+
+    /**
+     * Get the number of telegrams dropped as duplicates.
+     *
+     * @return the number of duplicates.
+     */
+    public synchronized long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    @Override
+    public void newMessage(WMBusMessage message) {
+        TelegramKey key = TelegramKey.of(message);
+        if (key == null) {
+            // not a complete telegram, nothing to compare
+            dispatcher.newMessage(message);
+            return;
+        }
+
+        final Telegram telegram;
+        synchronized (this) {
+            long now = System.nanoTime();
+            purgeExpired(now);
+
+            Telegram known = telegrams.get(key);
+            if (known != null) {
+                duplicateCount++;
+                if (!known.delivered && hasBetterRssi(message, known.best)) {
+                    known.best.release();
+                    known.best = message;
+                }
+                else {
+                    message.release();
+                }
+                return;
+            }
+
+            telegram = new Telegram(now, message);
+            telegrams.put(key, telegram);
+            if (holdTimer == null) {
+                telegram.delivered = true;
+                // the window only needs the key from now on
+                telegram.best = null;
+            }
+        }
+
+        if (holdTimer == null) {
+            dispatcher.newMessage(message);
+            return;
+        }
+
+        try {
+            holdTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(telegram);
+                }
+            }, holdTime, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the group is closed while a member still delivers
+            release(telegram);
+        }
+    }
+
+    @Override
+    public void discardedBytes(byte[] bytes) {
+        dispatcher.discardedBytes(bytes);
+    }
+
+    @Override
+    public void stoppedListening(IOException cause) {
+        synchronized (this) {
+            if (--liveConnections > 0) {
+                // only one member stopped, the others keep on receiving
+                return;
+            }
+        }
+        dispatcher.stoppedListening(cause);
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException exception = null;
+        for (WMBusConnection connection : connections) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+        connections.clear();
+
+        if (holdTimer != null) {
+            // held telegrams are still delivered
+            holdTimer.shutdown();
+            try {
+                holdTimer.awaitTermination(holdTime * 2L, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        dispatcher.shutdown();
+
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    @Override
+    public void addKey(SecondaryAddress address, byte[] key) {
+        for (WMBusConnection connection : connections) {
+            connection.addKey(address, key);
+        }
+    }
+
+    @Override
+    public void removeKey(SecondaryAddress address) {
+        for (WMBusConnection connection : connections) {
+            connection.removeKey(address);
+        }
+    }
+
+    @Override
+    public void setAddressFilter(AddressFilter filter) {
+        for (WMBusConnection connection : connections) {
+            connection.setAddressFilter(filter);
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return dispatcher.getQueueDepth();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return dispatcher.getDroppedCount();
+    }
+
+    private void deliver(Telegram telegram) {
+        WMBusMessage message;
+        synchronized (this) {
+            telegram.delivered = true;
+            message = telegram.best;
+            // the window only needs the key from now on
+            telegram.best = null;
+        }
+        dispatcher.newMessage(message);
+    }
+
+    private void release(Telegram telegram) {
+        WMBusMessage message;
+        synchronized (this) {
+            telegram.delivered = true;
+            message = telegram.best;
+            telegram.best = null;
+        }
+        if (message != null) {
+            message.release();
+        }
+    }
+
+    private void purgeExpired(long now) {
+        Iterator<Telegram> iter = telegrams.values().iterator();
+        while (iter.hasNext()) {
+            Telegram telegram = iter.next();
+            if (now - telegram.firstSeen < deduplicationWindowNanos || !telegram.delivered) {
+                // the following telegrams arrived later
+                return;
+            }
+            iter.remove();
+        }
+    }
+
+    private static boolean hasBetterRssi(WMBusMessage candidate, WMBusMessage best) {
+        if (candidate.getRssi() == null) {
+            return false;
+        }
+        return best.getRssi() == null || candidate.getRssi() > best.getRssi();
+    }
+
+    private static class Telegram {
+
+        private final long firstSeen;
+        private WMBusMessage best;
+        private boolean delivered;
+
+        Telegram(long firstSeen, WMBusMessage best) {
+            this.firstSeen = firstSeen;
+            this.best = best;
+        }
+    }
+
+    /**
+     * Secondary address, access number and payload of a telegram, taken from the raw message.
+     */
+    private static class TelegramKey {
+
+        private static final int CI_INDEX = 10;
+
+        private final long address;
+        private final int accessNumber;
+        private final int payloadLength;
+        private final int payloadHash;
+
+        private TelegramKey(long address, int accessNumber, int payloadLength, int payloadHash) {
+            this.address = address;
+            this.accessNumber = accessNumber;
+            this.payloadLength = payloadLength;
+            this.payloadHash = payloadHash;
+        }
+
+        static TelegramKey of(WMBusMessage message) {
+            byte[] buffer = message.asBlob();
+            int length = buffer[0] & 0xff;
+            if (length < CI_INDEX || length >= buffer.length) {
+                return null;
+            }
+
+            // the payload covers everything the length field counts, e.g. not the appended RSSI
+            int payloadHash = 1;
+            for (int i = 1; i <= length; i++) {
+                payloadHash = 31 * payloadHash + buffer[i];
+            }
+
+            return new TelegramKey(message.getPackedAddress(), message.getAccessNumber(), length, payloadHash);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (address ^ (address >>> 32));
+            result = 31 * result + accessNumber;
+            result = 31 * result + payloadLength;
+            return 31 * result + payloadHash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TelegramKey)) {
+                return false;
+            }
+            TelegramKey other = (TelegramKey) obj;
+            return address == other.address && accessNumber == other.accessNumber
+                    && payloadLength == other.payloadLength && payloadHash == other.payloadHash;
+        }
+    }
+
+}
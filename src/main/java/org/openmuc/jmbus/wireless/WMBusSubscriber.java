@@ -0,0 +1,44 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+/**
+ * Receives wireless M-Bus messages from a {@link WMBusPublisher} as far as requested through its
+ * {@link WMBusSubscription}. The methods correspond to those of a reactive streams subscriber and are called serially.
+ */
+public interface WMBusSubscriber {
+
+    /**
+     * Called once before any other method.
+     * 
+     * @param subscription
+     *            the subscription used to request messages.
+     */
+    void onSubscribe(WMBusSubscription subscription);
+
+    /**
+     * Called for every requested message.
+     * 
+     * @param message
+     *            the next message.
+     */
+    void onNext(WMBusMessage message);
+
+    /**
+     * Called if the connection has been interrupted, after the messages received before. No further methods are
+     * called.
+     * 
+     * @param cause
+     *            the cause of the interruption.
+     */
+    void onError(Throwable cause);
+
+    /**
+     * Called after the last message if the publisher has been completed. No further methods are called.
+     */
+    void onComplete();
+
+}
@@ -0,0 +1,26 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+/**
+ * Links a {@link WMBusSubscriber} to a {@link WMBusPublisher}.
+ */
+public interface WMBusSubscription {
+
+    /**
+     * Requests more messages. The demand adds up over several calls, {@link Long#MAX_VALUE} is regarded as unbounded.
+     * 
+     * @param n
+     *            the number of additional messages, must be &gt; 0.
+     */
+    void request(long n);
+
+    /**
+     * Stops the delivery of messages. Messages received afterwards are dropped.
+     */
+    void cancel();
+
+}
@@ -10,14 +10,21 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.openmuc.jmbus.MBusConnection.MBusSerialBuilder;
+import org.openmuc.jmbus.transportlayer.RecordingTransportLayer;
+import org.openmuc.jmbus.transportlayer.ReplayTransportLayer;
 
 import junitparams.JUnitParamsRunner;
 import junitparams.Parameters;
@@ -25,6 +32,9 @@ import junitparams.Parameters;
 @RunWith(JUnitParamsRunner.class)
 public class MBusConnectionTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     @Ignore
     public void constructorTest() throws IOException {
@@ -33,6 +43,29 @@ public class MBusConnectionTest {
         mBusConnection.close();
     }
 
+    @Test
+    public void testReplay() throws Exception {
+        File captureFile = folder.newFile("capture.jmbc");
+        captureFile.delete();
+
+        MBusTestTCPLayer tcpLayer = new MBusTestTCPLayer(
+                new DataInputStream(new ByteArrayInputStream(MessagesData.testMsg1)),
+                new DataOutputStream(new ByteArrayOutputStream()));
+        RecordingTransportLayer recordingLayer = new RecordingTransportLayer(tcpLayer, captureFile);
+        recordingLayer.open();
+        recordingLayer.getOutputStream().write(new byte[] { 0x10, 0x7b, 0x01, 0x7c, 0x16 });
+        recordingLayer.getInputStream().readFully(new byte[MessagesData.testMsg1.length]);
+        recordingLayer.close();
+
+        MBusConnection connection = MBusConnection.newReplayBuilder(captureFile)
+                .setSpeed(ReplayTransportLayer.MAX_SPEED)
+                .build();
+        VariableDataStructure vds = connection.read(1);
+        connection.close();
+
+        assertEquals(3, vds.getDataRecords().size());
+    }
+
     public Object testParserData() {
         Object[] p1 = { MessagesData.testMsg1, 1, 3, false };
         Object[] p2 = { MessagesData.testMsg2, 5, 6, false };
@@ -0,0 +1,208 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MBusMultiplexerTest {
+
+    private ServerSocket serverSocket;
+    private MBusMultiplexer multiplexer;
+
+    @Before
+    public void setUp() throws Exception {
+        serverSocket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        multiplexer = new MBusMultiplexer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        multiplexer.close();
+        serverSocket.close();
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        final List<byte[]> requests = Collections.synchronizedList(new ArrayList<byte[]>());
+        Thread server = startServer(requests, true);
+
+        MBusGateway gateway = multiplexer.connect("127.0.0.1", serverSocket.getLocalPort());
+        ResultListener first = new ResultListener();
+        ResultListener second = new ResultListener();
+        gateway.read(1, first);
+        gateway.read(1, second);
+
+        first.await();
+        second.await();
+        assertEquals(1, first.response.getAddressField());
+        assertEquals(1, second.response.getAddressField());
+        assertEquals(3, first.response.getVariableDataResponse().getDataRecords().size());
+
+        gateway.close();
+        server.join(2000);
+
+        // the frame count bit toggles from one request to the next
+        assertArrayEquals(new byte[] { 0x10, 0x7b, 0x01, 0x7c, 0x16 }, requests.get(0));
+        assertArrayEquals(new byte[] { 0x10, 0x5b, 0x01, 0x5c, 0x16 }, requests.get(1));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        Thread server = startServer(new ArrayList<byte[]>(), false);
+
+        MBusGateway gateway = multiplexer.connect("127.0.0.1", serverSocket.getLocalPort(), 1000, 100);
+        ResultListener listener = new ResultListener();
+        long start = System.nanoTime();
+        gateway.read(1, listener);
+
+        listener.await();
+        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(listener.cause instanceof SocketTimeoutException);
+        assertTrue("timed out after " + duration + " ms", duration >= 100);
+
+        multiplexer.close();
+        server.join(2000);
+
+        ResultListener afterClose = new ResultListener();
+        gateway.read(1, afterClose);
+        afterClose.await();
+        assertTrue(afterClose.cause instanceof IOException);
+    }
+
+    @Test
+    public void testInvalidArgumentsRejected() throws Exception {
+        Thread server = startServer(new ArrayList<byte[]>(), true);
+
+        MBusGateway gateway = multiplexer.connect("127.0.0.1", serverSocket.getLocalPort());
+        ResultListener listener = new ResultListener();
+        try {
+            gateway.read(300, listener);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // rejected in the thread of the caller
+        }
+        try {
+            gateway.write(1, new byte[253], listener);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // rejected in the thread of the caller
+        }
+
+        // the multiplexer keeps serving
+        gateway.read(1, listener);
+        listener.await();
+        assertEquals(1, listener.response.getAddressField());
+
+        gateway.close();
+        server.join(2000);
+    }
+
+    @Test(timeout = 10000)
+    public void testEveryRequestCompletedOnClose() throws Exception {
+        Thread server = startServer(new ArrayList<byte[]>(), false);
+        final MBusGateway gateway = multiplexer.connect("127.0.0.1", serverSocket.getLocalPort());
+
+        final int numberOfRequests = 2000;
+        final CountDownLatch completed = new CountDownLatch(numberOfRequests);
+        final MBusResponseListener listener = new MBusResponseListener() {
+            @Override
+            public void responseReceived(MBusMessage response) {
+                completed.countDown();
+            }
+
+            @Override
+            public void requestFailed(IOException cause) {
+                completed.countDown();
+            }
+        };
+        Thread client = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < numberOfRequests; i++) {
+                    gateway.read(1, listener);
+                }
+            }
+        });
+        client.start();
+
+        // close while the client is still submitting
+        Thread.sleep(1);
+        multiplexer.close();
+        client.join();
+
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        server.join(2000);
+    }
+
+    private Thread startServer(final List<byte[]> requests, final boolean answer) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (Socket socket = serverSocket.accept()) {
+                    DataInputStream is = new DataInputStream(socket.getInputStream());
+                    OutputStream os = socket.getOutputStream();
+                    byte[] request = new byte[5];
+                    while (true) {
+                        is.readFully(request);
+                        requests.add(request.clone());
+                        if (answer) {
+                            os.write(MessagesData.testMsg1);
+                            os.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    // connection closed
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static class ResultListener implements MBusResponseListener {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile MBusMessage response;
+        private volatile IOException cause;
+
+        @Override
+        public void responseReceived(MBusMessage response) {
+            this.response = response;
+            latch.countDown();
+        }
+
+        @Override
+        public void requestFailed(IOException cause) {
+            this.cause = cause;
+            latch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+}
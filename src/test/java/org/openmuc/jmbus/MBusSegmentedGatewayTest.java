@@ -0,0 +1,208 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MBusSegmentedGatewayTest {
+
+    private static final byte[] RECORD = { 0x04, 0x13, 0x01, 0x00, 0x00, 0x00 };
+
+    // every meter takes this long to answer
+    private static final int RESPONSE_DELAY = 100;
+    private static final int METERS_PER_SEGMENT = 4;
+
+    private MBusMultiplexer multiplexer;
+    private final List<Segment> segments = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        multiplexer = new MBusMultiplexer();
+        for (int i = 0; i < 2; i++) {
+            SimulatedMBus bus = new SimulatedMBus(i);
+            for (int address = 1; address <= METERS_PER_SEGMENT; address++) {
+                byte[] idNumber = { (byte) address, (byte) i, 0x00, 0x00 };
+                SecondaryAddress secondaryAddress = SecondaryAddress.newFromManufactureId(idNumber, "ABC", (byte) 1,
+                        (byte) 7, true);
+                bus.addMeter(new SimulatedMeter(address, secondaryAddress).addTelegram(RECORD)
+                        .setResponseDelay(RESPONSE_DELAY));
+            }
+            segments.add(new Segment(bus));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        multiplexer.close();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    @Test
+    public void testSegmentsReadInParallel() throws Exception {
+        MBusSegmentedGateway gateway = new MBusSegmentedGateway(multiplexer, "127.0.0.1", segments.get(0).getPort(),
+                segments.get(1).getPort());
+        for (int segment = 0; segment < 2; segment++) {
+            for (int address = 1; address <= METERS_PER_SEGMENT; address++) {
+                gateway.addMeter(segment, address);
+            }
+        }
+        // not wired, times out
+        gateway.addMeter(1, 42);
+
+        ReadoutListener listener = new ReadoutListener();
+        long start = System.nanoTime();
+        gateway.readAll(listener);
+        listener.await();
+        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(2 * METERS_PER_SEGMENT, listener.read.size());
+        assertEquals(Collections.singletonList("1/42"), listener.failed);
+        for (int segment = 0; segment < 2; segment++) {
+            for (int address = 1; address <= METERS_PER_SEGMENT; address++) {
+                assertTrue(listener.read.contains(segment + "/" + address));
+            }
+        }
+
+        // segment 1 takes longest with four answers and a timeout, one segment after the other would take longer
+        int segmentTime = METERS_PER_SEGMENT * RESPONSE_DELAY + 500;
+        int sequentialTime = segmentTime + METERS_PER_SEGMENT * RESPONSE_DELAY;
+        assertTrue("took " + duration + " ms", duration >= segmentTime && duration < sequentialTime);
+
+        assertTrue(gateway.getUtilisation(1) > 0.8);
+        assertTrue(gateway.getUtilisation() > 0.5);
+        assertEquals(2 * METERS_PER_SEGMENT + 1, gateway.getRequestRate() * duration / 1000, 1.0);
+
+        gateway.resetStatistics();
+        assertEquals(0, gateway.getRequestRate(), 0);
+        gateway.close();
+    }
+
+    @Test
+    public void testEmptyReadout() throws Exception {
+        MBusSegmentedGateway gateway = new MBusSegmentedGateway(multiplexer, "127.0.0.1", segments.get(0).getPort());
+        ReadoutListener listener = new ReadoutListener();
+        gateway.readAll(listener);
+        listener.await();
+        assertTrue(listener.read.isEmpty());
+        gateway.close();
+    }
+
+    private static class ReadoutListener implements MBusReadoutListener {
+
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final List<String> read = Collections.synchronizedList(new ArrayList<String>());
+        private final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void meterRead(int segment, int primaryAddress, MBusMessage response) {
+            assertEquals(primaryAddress, response.getAddressField());
+            read.add(segment + "/" + primaryAddress);
+        }
+
+        @Override
+        public void meterFailed(int segment, int primaryAddress, IOException cause) {
+            failed.add(segment + "/" + primaryAddress);
+        }
+
+        @Override
+        public void readoutFinished() {
+            finished.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(finished.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    /*
+     * Serves a simulated bus on a TCP port like a segment of a gateway.
+     */
+    private static class Segment {
+
+        private final ServerSocket serverSocket;
+        private final SimulatedMBus bus;
+        private volatile Socket socket;
+
+        Segment(SimulatedMBus bus) throws IOException {
+            this.bus = bus;
+            this.serverSocket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve();
+                }
+            }).start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void serve() {
+            try {
+                socket = serverSocket.accept();
+                bus.open();
+                final InputStream is = socket.getInputStream();
+                Thread requests = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        byte[] buffer = new byte[256];
+                        try {
+                            int length;
+                            while ((length = is.read(buffer)) >= 0) {
+                                bus.write(ByteBuffer.wrap(buffer, 0, length));
+                            }
+                        } catch (IOException e) {
+                            // connection closed
+                        }
+                    }
+                });
+                requests.start();
+
+                OutputStream os = socket.getOutputStream();
+                ByteBuffer buffer = ByteBuffer.allocate(256);
+                while (true) {
+                    buffer.clear();
+                    int length = bus.read(buffer, System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+                    if (length > 0) {
+                        os.write(buffer.array(), 0, length);
+                    }
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        void close() throws IOException {
+            bus.close();
+            serverSocket.close();
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,206 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.openmuc.jmbus.TestAddresses.newAddress;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class SimulatedMBusTest {
+
+    // volume in liters
+    private static final byte[] RECORD_1 = { 0x04, 0x13, 0x01, 0x00, 0x00, 0x00 };
+    private static final byte[] RECORD_2 = { 0x04, 0x13, 0x02, 0x00, 0x00, 0x00, 0x04, 0x13, 0x03, 0x00, 0x00, 0x00 };
+
+    @Test
+    public void testReadMoreRecordsFollow() throws Exception {
+        SimulatedMBus bus = new SimulatedMBus(0).addMeter(
+                new SimulatedMeter(5, newAddress(12345678)).addTelegram(RECORD_1).addTelegram(RECORD_2));
+
+        MBusConnection connection = MBusConnection.newSimulatedBuilder(bus).build();
+        try {
+            VariableDataStructure vds = connection.read(5);
+            assertTrue(vds.moreRecordsFollow());
+            assertEquals(1, vds.getDataRecords().size());
+            assertEquals(newAddress(12345678), vds.getSecondaryAddress());
+
+            vds = connection.read(5);
+            assertFalse(vds.moreRecordsFollow());
+            assertEquals(2, vds.getDataRecords().size());
+
+            vds = connection.read(5);
+            assertTrue(vds.moreRecordsFollow());
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testRepeatedFrameCountBit() throws Exception {
+        SimulatedMeter meter = new SimulatedMeter(5, newAddress(1)).addTelegram(RECORD_1).addTelegram(RECORD_2);
+        SimulatedMBus bus = new SimulatedMBus(0).addMeter(meter);
+
+        MBusConnection connection = MBusConnection.newSimulatedBuilder(bus).build();
+        try {
+            for (int i = 0; i < 2; i++) {
+                MBusMessage message = connection.sendShortMessage(5, 0x7b, true);
+                message.getVariableDataResponse().decode();
+                assertTrue(message.getVariableDataResponse().moreRecordsFollow());
+            }
+            assertEquals(2, meter.getNumberOfResponses());
+
+            connection.linkReset(5);
+            VariableDataStructure vds = connection.read(5);
+            assertTrue(vds.moreRecordsFollow());
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testSelectAndWrite() throws Exception {
+        SimulatedMeter meter1 = new SimulatedMeter(0, newAddress(11)).addTelegram(RECORD_1);
+        SimulatedMeter meter2 = new SimulatedMeter(0, newAddress(12)).addTelegram(RECORD_2);
+        SimulatedMBus bus = new SimulatedMBus(0).addMeter(meter1).addMeter(meter2);
+
+        MBusConnection connection = MBusConnection.newSimulatedBuilder(bus).build();
+        try {
+            connection.selectComponent(newAddress(12));
+            assertFalse(meter1.isSelected());
+            assertTrue(meter2.isSelected());
+
+            VariableDataStructure vds = connection.read(0xfd);
+            assertEquals(newAddress(12), vds.getSecondaryAddress());
+
+            connection.write(0xfd, new byte[] { 0x01, 0x7a, 0x02 });
+            assertArrayEquals(new byte[] { 0x01, 0x7a, 0x02 }, meter2.getReceivedData());
+
+            connection.deselectComponent();
+            assertFalse(meter2.isSelected());
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testPrimaryAddressCollision() throws Exception {
+        SimulatedMBus bus = new SimulatedMBus(0).addMeter(new SimulatedMeter(0, newAddress(11)))
+                .addMeter(new SimulatedMeter(0, newAddress(12)).addTelegram(RECORD_2));
+
+        MBusConnection connection = MBusConnection.newSimulatedBuilder(bus).build();
+        try {
+            connection.read(0);
+        } finally {
+            connection.close();
+            assertEquals(1, bus.getNumberOfCollisions());
+        }
+    }
+
+    @Test
+    public void testScanResolvesCollisions() throws Exception {
+        int[] ids = { 11, 21, 2, 12345678 };
+        SimulatedMBus bus = new SimulatedMBus(0);
+        for (int id : ids) {
+            bus.addMeter(new SimulatedMeter(0, newAddress(id)).addTelegram(RECORD_1));
+        }
+
+        MBusConnection connection = MBusConnection.newSimulatedBuilder(bus).setTimeout(10).build();
+        List<SecondaryAddress> secondaryAddresses = connection.scan("ffffffff", null);
+
+        Set<SecondaryAddress> expected = new HashSet<>();
+        for (int id : ids) {
+            expected.add(newAddress(id));
+        }
+        assertEquals(expected, new HashSet<>(secondaryAddresses));
+        assertTrue(bus.getNumberOfCollisions() > 0);
+    }
+
+    @Test(expected = InterruptedIOException.class)
+    public void testLostAnswerTimesOut() throws Exception {
+        SimulatedMBus bus = new SimulatedMBus(0).addMeter(new SimulatedMeter(5, newAddress(1))).setLossRate(1);
+
+        MBusConnection connection = MBusConnection.newSimulatedBuilder(bus).setTimeout(50).build();
+        try {
+            connection.read(5);
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testLatency() throws Exception {
+        SimulatedMBus bus = new SimulatedMBus(0).setLatency(100)
+                .addMeter(new SimulatedMeter(5, newAddress(1)).setResponseDelay(100));
+
+        MBusConnection connection = MBusConnection.newSimulatedBuilder(bus).setTimeout(1000).build();
+        try {
+            long start = System.nanoTime();
+            connection.linkReset(5);
+            assertTrue(System.nanoTime() - start >= 200000000L);
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testNegotiateBaudRate() throws Exception {
+        SimulatedMeter fastMeter = new SimulatedMeter(5, newAddress(1)).addTelegram(RECORD_1).setMaxBaudRate(9600);
+        SimulatedMeter slowMeter = new SimulatedMeter(6, newAddress(2)).addTelegram(RECORD_1);
+        SimulatedMBus bus = new SimulatedMBus(0).addMeter(fastMeter).addMeter(slowMeter);
+
+        MBusConnection connection = MBusConnection.newSimulatedBuilder(bus).setTimeout(50).build();
+        try {
+            assertEquals(2400, connection.getBaudRate(5));
+            assertEquals(9600, connection.negotiateBaudRate(5));
+            assertEquals(9600, connection.getBaudRate(5));
+            assertEquals(9600, fastMeter.getBaudRate());
+
+            // every request is sent at the baud rate of its meter
+            assertEquals(newAddress(1), connection.read(5).getSecondaryAddress());
+            assertEquals(newAddress(2), connection.read(6).getSecondaryAddress());
+            assertEquals(2400, bus.getBaudRate());
+
+            // the slow meter ignores every switch
+            assertEquals(2400, connection.negotiateBaudRate(6));
+            assertEquals(2400, slowMeter.getBaudRate());
+
+            connection.resetBaudRate(5);
+            assertEquals(2400, fastMeter.getBaudRate());
+            assertEquals(2400, connection.getBaudRate(5));
+            connection.read(5);
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testNegotiateBaudRateUpToMaximum() throws Exception {
+        SimulatedMeter meter = new SimulatedMeter(5, newAddress(1)).setMaxBaudRate(38400);
+        SimulatedMBus bus = new SimulatedMBus(0).addMeter(meter);
+
+        MBusConnection connection = MBusConnection.newSimulatedBuilder(bus).setTimeout(50).build();
+        try {
+            assertEquals(4800, connection.negotiateBaudRate(5, 4800));
+            assertEquals(4800, meter.getBaudRate());
+            assertEquals(38400, connection.negotiateBaudRate(5));
+            connection.linkReset(5);
+            assertEquals(38400, bus.getBaudRate());
+        } finally {
+            connection.close();
+        }
+    }
+
+}
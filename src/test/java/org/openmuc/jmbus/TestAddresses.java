@@ -0,0 +1,43 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus;
+
+/**
+ * Secondary addresses of simulated meters: manufacturer ABC, version 1, device type water and the given ID in BCD.
+ */
+public final class TestAddresses {
+
+    private static final byte VERSION = 1;
+    private static final byte WATER = 7;
+
+    private TestAddresses() {
+    }
+
+    /**
+     * Creates the address of a wired M-Bus meter, as contained in the long header.
+     */
+    public static SecondaryAddress newAddress(int id) {
+        return SecondaryAddress.newFromManufactureId(encodeId(id), "ABC", VERSION, WATER, true);
+    }
+
+    /**
+     * Creates the address of a wireless M-Bus meter, as contained in the link layer header.
+     */
+    public static SecondaryAddress newWMBusAddress(int id) {
+        byte[] idNumber = encodeId(id);
+        byte[] bytes = { 0x43, 0x04, idNumber[0], idNumber[1], idNumber[2], idNumber[3], VERSION, WATER };
+        return SecondaryAddress.newFromWMBusHeader(bytes, 0);
+    }
+
+    private static byte[] encodeId(int id) {
+        byte[] idNumber = new byte[4];
+        for (int i = 0; i < 4; i++, id /= 100) {
+            idNumber[i] = (byte) ((id % 10) | (id / 10 % 10) << 4);
+        }
+        return idNumber;
+    }
+
+}
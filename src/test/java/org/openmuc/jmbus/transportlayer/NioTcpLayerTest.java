@@ -0,0 +1,150 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NioTcpLayerTest {
+
+    private ServerSocket serverSocket;
+    private NioTcpLayer layer;
+    private Socket server;
+
+    @Before
+    public void setUp() throws Exception {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        layer = new NioTcpLayer("127.0.0.1", serverSocket.getLocalPort(), 1000, 100, true, true);
+        layer.open();
+        server = serverSocket.accept();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        layer.close();
+        server.close();
+        serverSocket.close();
+    }
+
+    @Test
+    public void testReadAndWrite() throws Exception {
+        byte[] frame = new byte[260];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) i;
+        }
+
+        OutputStream serverOut = server.getOutputStream();
+        serverOut.write(frame);
+        serverOut.flush();
+
+        DataInputStream is = layer.getInputStream();
+        assertEquals(0, is.read());
+        assertEquals(1, is.readByte());
+        byte[] rest = new byte[258];
+        is.readFully(rest);
+        assertEquals((byte) 259, rest[257]);
+
+        byte[] request = { 0x10, 0x5b, 0x01, 0x5c, 0x16 };
+        layer.getOutputStream().write(request);
+        byte[] received = new byte[request.length];
+        new DataInputStream(server.getInputStream()).readFully(received);
+        assertArrayEquals(request, received);
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+        long start = System.currentTimeMillis();
+        try {
+            layer.getInputStream().read();
+            fail("read should have timed out");
+        } catch (SocketTimeoutException e) {
+            long duration = System.currentTimeMillis() - start;
+            assertTrue("timed out after " + duration + " ms", duration >= 90);
+        }
+
+        assertEquals(0, layer.getInputStream().available());
+        server.getOutputStream().write(0xe5);
+        assertEquals(0xe5, layer.getInputStream().read());
+    }
+
+    @Test
+    public void testReadDeadline() throws Exception {
+        ByteBuffer dst = ByteBuffer.allocateDirect(16);
+
+        long start = System.nanoTime();
+        assertEquals(0, layer.read(dst, start + TimeUnit.MILLISECONDS.toNanos(50)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(0, layer.available());
+
+        server.getOutputStream().write(new byte[] { 0x68, 0x03 });
+        int numRead = 0;
+        while (numRead < 2) {
+            numRead += layer.read(dst, System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+        }
+        assertEquals(0x68, dst.get(0));
+        assertEquals(0x03, dst.get(1));
+
+        layer.write(ByteBuffer.wrap(new byte[] { (byte) 0xe5 }));
+        assertEquals(0xe5, server.getInputStream().read());
+    }
+
+    @Test(timeout = 5000)
+    public void testCloseWhileReading() throws Exception {
+        final ByteBuffer dst = ByteBuffer.allocateDirect(16);
+        final BlockingQueue<Exception> failures = new LinkedBlockingQueue<>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        layer.read(dst, System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+                    }
+                } catch (Exception e) {
+                    failures.add(e);
+                }
+            }
+        });
+        reader.start();
+
+        // let the reader block on the selector
+        Thread.sleep(100);
+        layer.close();
+
+        Exception failure = failures.take();
+        assertTrue(failure.toString(), failure instanceof IOException);
+        assertTrue(layer.isClosed());
+    }
+
+    @Test
+    public void testEndOfStream() throws Exception {
+        server.close();
+        assertEquals(-1, layer.getInputStream().read());
+        assertFalse(layer.isClosed());
+
+        layer.close();
+        assertTrue(layer.isClosed());
+    }
+
+}
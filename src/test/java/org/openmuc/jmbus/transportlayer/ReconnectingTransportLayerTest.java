@@ -0,0 +1,143 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReconnectingTransportLayerTest {
+
+    private ServerSocket serverSocket;
+    private ReconnectingTransportLayer layer;
+    private final RecordingListener listener = new RecordingListener();
+
+    @Before
+    public void setUp() throws Exception {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        TcpLayer tcpLayer = new TcpLayer("127.0.0.1", serverSocket.getLocalPort(), 1000, 100, true, false);
+        layer = new ReconnectingTransportLayer(tcpLayer, 20, 80, listener);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        layer.close();
+        serverSocket.close();
+    }
+
+    @Test
+    public void testReconnectAfterEndOfStream() throws Exception {
+        final AtomicInteger initializations = new AtomicInteger();
+        layer.setInitializer(new ReconnectingTransportLayer.Initializer() {
+            @Override
+            public void initialize() throws IOException {
+                initializations.incrementAndGet();
+            }
+        });
+        layer.open();
+
+        Socket first = serverSocket.accept();
+        first.getOutputStream().write(0x11);
+        first.close();
+
+        ByteBuffer dst = ByteBuffer.allocate(8);
+        assertEquals(1, layer.read(dst, deadline()));
+        assertEquals(0x11, dst.get(0));
+
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket second = serverSocket.accept();
+                    // the layer flushes the input right after connecting
+                    Thread.sleep(100);
+                    second.getOutputStream().write(0x22);
+                    second.getInputStream().read();
+                    second.close();
+                } catch (IOException | InterruptedException e) {
+                    // test fails on the client side
+                }
+            }
+        });
+        server.start();
+
+        // reaches the end of the first connection and continues on the second one
+        assertEquals(1, layer.read(dst, deadline()));
+        assertEquals(0x22, dst.get(1));
+        assertEquals(1, initializations.get());
+        assertEquals(1, listener.lost.get());
+        assertEquals(1, listener.restored.get());
+        assertTrue(listener.outageDuration >= 10);
+
+        layer.close();
+        server.join(2000);
+    }
+
+    @Test
+    public void testCloseStopsReconnecting() throws Exception {
+        layer.open();
+        serverSocket.accept().close();
+        serverSocket.close();
+
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                layer.close();
+            }
+        });
+        closer.start();
+
+        try {
+            layer.read(ByteBuffer.allocate(8), deadline());
+            fail("read should fail after close");
+        } catch (IOException e) {
+            assertTrue(layer.isClosed());
+        }
+        assertEquals(1, listener.lost.get());
+        assertEquals(0, listener.restored.get());
+        closer.join();
+    }
+
+    private static long deadline() {
+        return System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+    }
+
+    private static class RecordingListener implements OutageListener {
+
+        private final AtomicInteger lost = new AtomicInteger();
+        private final AtomicInteger restored = new AtomicInteger();
+        private volatile long outageDuration;
+
+        @Override
+        public void connectionLost(IOException cause) {
+            lost.incrementAndGet();
+        }
+
+        @Override
+        public void connectionRestored(long outageDuration) {
+            this.outageDuration = outageDuration;
+            restored.incrementAndGet();
+        }
+    }
+
+}
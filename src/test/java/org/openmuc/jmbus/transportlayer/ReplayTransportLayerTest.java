@@ -0,0 +1,109 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReplayTransportLayerTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File captureFile;
+
+    @Before
+    public void setUp() throws Exception {
+        captureFile = new File(folder.getRoot(), "capture.jmbc");
+
+        // a stick announces itself, is configured and sends two telegrams 100 ms apart
+        try (CaptureFile.Writer writer = new CaptureFile.Writer(captureFile)) {
+            long start = System.nanoTime();
+            writer.write(CaptureFile.READ, start, new byte[] { 0x01 }, 0, 1);
+            writer.write(CaptureFile.WRITE, start + 10 * MILLIS, new byte[] { 0x09, 0x46, 0x08 }, 0, 3);
+            writer.write(CaptureFile.READ, start + 20 * MILLIS, new byte[] { 0x3e }, 0, 1);
+            writer.write(CaptureFile.READ, start + 120 * MILLIS, new byte[] { 0x11, 0x12 }, 0, 2);
+            writer.write(CaptureFile.READ, start + 220 * MILLIS, new byte[] { 0x21 }, 0, 1);
+        }
+    }
+
+    @Test
+    public void testOriginalSpeed() throws Exception {
+        ReplayTransportLayer layer = new ReplayTransportLayer(captureFile, 1, 500);
+        layer.open();
+        ByteBuffer dst = ByteBuffer.allocate(16);
+
+        assertEquals(1, layer.read(dst, deadline(50)));
+
+        // the acknowledgement is held back until the command has been written
+        assertEquals(0, layer.read(dst, deadline(50)));
+        layer.write(ByteBuffer.wrap(new byte[] { 0x09, 0x46, 0x08 }));
+        long written = System.nanoTime();
+        assertEquals(1, layer.read(dst, deadline(50)));
+        assertEquals(0x3e, dst.get(1));
+
+        assertEquals(2, layer.read(dst, deadline(500)));
+        assertTrue(System.nanoTime() - written >= 100 * MILLIS);
+        assertEquals(1, layer.read(dst, deadline(500)));
+        assertTrue(System.nanoTime() - written >= 200 * MILLIS);
+
+        assertEquals(-1, layer.read(dst, deadline(50)));
+        layer.close();
+    }
+
+    @Test
+    public void testMaxSpeed() throws Exception {
+        ReplayTransportLayer layer = new ReplayTransportLayer(captureFile, ReplayTransportLayer.MAX_SPEED, 500);
+        layer.open();
+        ByteBuffer dst = ByteBuffer.allocate(16);
+
+        assertEquals(1, layer.available());
+        layer.getOutputStream().write(new byte[] { 0x09, 0x46, 0x08 });
+        assertEquals(5, layer.available());
+
+        long start = System.nanoTime();
+        assertEquals(5, layer.read(dst, deadline(50)));
+        assertTrue(System.nanoTime() - start < 50 * MILLIS);
+        layer.close();
+    }
+
+    @Test
+    public void testRecording() throws Exception {
+        File recorded = new File(folder.getRoot(), "recorded.jmbc");
+        ReplayTransportLayer replayLayer = new ReplayTransportLayer(captureFile, ReplayTransportLayer.MAX_SPEED, 500);
+        RecordingTransportLayer layer = new RecordingTransportLayer(replayLayer, recorded);
+        layer.open();
+        layer.write(ByteBuffer.wrap(new byte[] { 0x09, 0x46, 0x08 }));
+        layer.getInputStream().readFully(new byte[5]);
+        layer.close();
+
+        CaptureFile.Records records = CaptureFile.read(recorded);
+        assertEquals(CaptureFile.WRITE, records.types[0]);
+        assertEquals(3, records.length(0));
+        int received = 0;
+        for (int i = 1; i < records.size; i++) {
+            assertEquals(CaptureFile.READ, records.types[i]);
+            received += records.length(i);
+        }
+        assertEquals(5, received);
+    }
+
+    private static long deadline(int millis) {
+        return System.nanoTime() + millis * MILLIS;
+    }
+
+}
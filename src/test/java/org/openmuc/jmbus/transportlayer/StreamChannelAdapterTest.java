@@ -0,0 +1,91 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.transportlayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.openmuc.jmbus.MBusTestTCPLayer;
+
+public class StreamChannelAdapterTest {
+
+    @Test
+    public void testReadWithDeadline() throws Exception {
+        TimeoutInputStream is = new TimeoutInputStream(new byte[] { 0x10, 0x40, 0x01, 0x41, 0x16 });
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        MBusTestTCPLayer tcpLayer = new MBusTestTCPLayer(new DataInputStream(is), new DataOutputStream(os));
+        ChannelTransportLayer layer = StreamChannelAdapter.adapt(tcpLayer);
+        layer.open();
+
+        assertEquals(5, layer.available());
+        ByteBuffer dst = ByteBuffer.allocate(3);
+        assertEquals(3, layer.read(dst, System.nanoTime()));
+        assertEquals(2, layer.read(ByteBuffer.allocate(8), System.nanoTime()));
+
+        // the timeout of the adapted stream is reported as elapsed deadline
+        assertEquals(0, layer.read(ByteBuffer.allocate(8), System.nanoTime() + 20000000L));
+        assertEquals(20, tcpLayer.getTimeout());
+
+        layer.write(ByteBuffer.wrap(new byte[] { (byte) 0xe5 }));
+        assertArrayEquals(new byte[] { (byte) 0xe5 }, os.toByteArray());
+
+        layer.setTimeout(20);
+        try {
+            layer.getInputStream().read();
+            fail("read should have timed out");
+        } catch (InterruptedIOException e) {
+            // expected
+        }
+        assertTrue(is.timeouts >= 2);
+    }
+
+    @Test
+    public void testChannelLayerIsNotAdapted() {
+        TcpLayer tcpLayer = new TcpLayer("127.0.0.1", 10001, 1000, 500, true, false);
+        assertSame(tcpLayer, StreamChannelAdapter.adapt(tcpLayer));
+    }
+
+    /**
+     * Returns the bytes and times out like a serial port afterwards.
+     */
+    private static class TimeoutInputStream extends InputStream {
+
+        private final byte[] bytes;
+        private int position;
+        private int timeouts;
+
+        TimeoutInputStream(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == bytes.length) {
+                timeouts++;
+                throw new InterruptedIOException("timeout");
+            }
+            return bytes[position++] & 0xff;
+        }
+
+        @Override
+        public int available() {
+            return bytes.length - position;
+        }
+    }
+
+}
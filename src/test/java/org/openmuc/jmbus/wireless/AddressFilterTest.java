@@ -0,0 +1,94 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.openmuc.jmbus.DeviceType;
+import org.openmuc.jmbus.HexUtils;
+import org.openmuc.jmbus.SecondaryAddress;
+
+public class AddressFilterTest {
+
+    // manufacturer LSE, device type warm water
+    private static final byte[] TELEGRAM = HexUtils.hexToBytes("2C446532821851582C067AE1000000046D1906D9180C13341200"
+            + "00426CBF1C4C1300000000326CFFFF01FD7300");
+
+    private static final SecondaryAddress ADDRESS = SecondaryAddress.newFromWMBusHeader(TELEGRAM, 2);
+
+    @Test
+    public void testEmptyFilterAcceptsAll() {
+        AddressFilter filter = AddressFilter.newBuilder().build();
+
+        assertTrue(filter.acceptsTelegram(TELEGRAM));
+        assertTrue(filter.accepts(ADDRESS));
+    }
+
+    @Test
+    public void testAllowedAddress() {
+        AddressFilter filter = AddressFilter.newBuilder().allowAddress(ADDRESS).build();
+        assertTrue(filter.acceptsTelegram(TELEGRAM));
+
+        byte[] otherTelegram = TELEGRAM.clone();
+        otherTelegram[4]++;
+        assertFalse(filter.acceptsTelegram(otherTelegram));
+    }
+
+    @Test
+    public void testDeniedAddress() {
+        AddressFilter filter = AddressFilter.newBuilder().allowManufacturer("LSE").denyAddress(ADDRESS).build();
+
+        assertFalse(filter.acceptsTelegram(TELEGRAM));
+        assertFalse(filter.accepts(ADDRESS));
+    }
+
+    @Test
+    public void testManufacturerAndDeviceType() {
+        assertTrue(AddressFilter.newBuilder().allowManufacturer("lse").build().acceptsTelegram(TELEGRAM));
+        assertFalse(AddressFilter.newBuilder().allowManufacturer("KAM").build().acceptsTelegram(TELEGRAM));
+        assertFalse(AddressFilter.newBuilder().denyManufacturer("LSE").build().acceptsTelegram(TELEGRAM));
+
+        assertTrue(AddressFilter.newBuilder()
+                .allowDeviceType(ADDRESS.getDeviceType())
+                .build()
+                .acceptsTelegram(TELEGRAM));
+        assertFalse(
+                AddressFilter.newBuilder().denyDeviceType(ADDRESS.getDeviceType()).build().acceptsTelegram(TELEGRAM));
+        assertFalse(AddressFilter.newBuilder()
+                .allowManufacturer("LSE")
+                .allowDeviceType(DeviceType.GAS_METER)
+                .build()
+                .acceptsTelegram(TELEGRAM));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidManufacturerRejected() {
+        AddressFilter.newBuilder().allowManufacturer("K4M");
+    }
+
+    @Test
+    public void testManyAddresses() {
+        AddressFilter.Builder builder = AddressFilter.newBuilder();
+        byte[] telegram = TELEGRAM.clone();
+        for (int i = 0; i < 1000; i++) {
+            telegram[4] = (byte) i;
+            telegram[5] = (byte) (i >> 8);
+            builder.allowAddress(SecondaryAddress.newFromWMBusHeader(telegram, 2));
+        }
+        AddressFilter filter = builder.build();
+
+        for (int i = 0; i < 1000; i++) {
+            telegram[4] = (byte) i;
+            telegram[5] = (byte) (i >> 8);
+            assertTrue(filter.acceptsTelegram(telegram));
+        }
+        telegram[5] = (byte) 0x10;
+        assertFalse(filter.acceptsTelegram(telegram));
+    }
+
+}
@@ -6,6 +6,8 @@
 package org.openmuc.jmbus.wireless;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -15,6 +17,8 @@ import org.openmuc.jmbus.DataRecord;
 import org.openmuc.jmbus.DecodingException;
 import org.openmuc.jmbus.SecondaryAddress;
 import org.openmuc.jmbus.HexUtils;
+import org.openmuc.jmbus.UndecryptableMeterCache;
+import org.openmuc.jmbus.VariableDataStructure.DecodingOutcome;
 
 public class DecryptionTest {
 
@@ -40,6 +44,41 @@ public class DecryptionTest {
         decodewith(wrongKey);
     }
 
+    @Test
+    public void testUndecryptableMeterCache() throws Exception {
+        SecondaryAddress address = SecondaryAddress.newFromWMBusHeader(testFrameKamstrupEncrypted, 2);
+        UndecryptableMeterCache cache = new UndecryptableMeterCache(60000, 60000);
+        Map<SecondaryAddress, byte[]> keyMap = new HashMap<>();
+
+        assertEquals(DecodingOutcome.NO_KEY, decodeWith(keyMap, cache));
+        assertTrue(cache.isUndecryptable(address));
+        assertEquals(DecodingOutcome.SKIPPED, decodeWith(keyMap, cache));
+
+        keyMap.put(address, HexUtils.hexToBytes("4E5508544202058100DFEFA06B0934AF"));
+        cache.remove(address);
+        assertEquals(DecodingOutcome.WRONG_KEY, decodeWith(keyMap, cache));
+        assertEquals(UndecryptableMeterCache.Reason.WRONG_KEY, cache.reasonFor(address));
+
+        keyMap.put(address, HexUtils.hexToBytes("4E5508544202058100DFEFA06B0934A5"));
+        cache.remove(address);
+        assertEquals(DecodingOutcome.DECODED, decodeWith(keyMap, cache));
+        assertFalse(cache.isUndecryptable(address));
+    }
+
+    @Test
+    public void testUndecryptableMeterCacheRetry() throws Exception {
+        SecondaryAddress address = SecondaryAddress.newFromWMBusHeader(testFrameKamstrupEncrypted, 2);
+        UndecryptableMeterCache cache = new UndecryptableMeterCache(0, 0);
+
+        assertEquals(DecodingOutcome.NO_KEY, decodeWith(new HashMap<SecondaryAddress, byte[]>(), cache));
+        assertFalse(cache.isUndecryptable(address));
+    }
+
+    private DecodingOutcome decodeWith(Map<SecondaryAddress, byte[]> keyMap, UndecryptableMeterCache cache)
+            throws DecodingException {
+        return WMBusMessage.decode(testFrameKamstrupEncrypted, 0, keyMap).getVariableDataResponse().decode(cache);
+    }
+
     private WMBusMessage decodewith(byte[] key) throws DecodingException {
         Map<SecondaryAddress, byte[]> keyMap = new HashMap<>();
         keyMap.put(SecondaryAddress.newFromWMBusHeader(testFrameKamstrupEncrypted, 2), key);
@@ -0,0 +1,148 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.openmuc.jmbus.HexUtils;
+import org.openmuc.jmbus.MBusTestTCPLayer;
+
+public class FrameExtractorTest {
+
+    private static final String FRAME = "0B44010203040506070809FF";
+
+    @Test
+    public void testFramesBetweenNoise() throws Exception {
+        ChunkedInputStream is = new ChunkedInputStream();
+        is.add("AABB" + FRAME + "CC" + FRAME.substring(0, 10));
+        is.add(FRAME.substring(10));
+
+        TestExtractor extractor = new TestExtractor(is, 1000);
+
+        assertArrayEquals(HexUtils.hexToBytes(FRAME), extractor.readFrame());
+        assertEquals("AABB", HexUtils.bytesToHex(extractor.discarded.remove(0)));
+
+        assertArrayEquals(HexUtils.hexToBytes(FRAME), extractor.readFrame());
+        assertEquals("CC", HexUtils.bytesToHex(extractor.discarded.remove(0)));
+
+        assertNull(extractor.readFrame());
+        assertEquals(0, extractor.discarded.size());
+    }
+
+    @Test
+    public void testFragmentTimeout() throws Exception {
+        ChunkedInputStream is = new ChunkedInputStream();
+        is.add(FRAME.substring(0, 10));
+
+        TestExtractor extractor = new TestExtractor(is, 50);
+
+        long start = System.currentTimeMillis();
+        while (extractor.discarded.isEmpty() && System.currentTimeMillis() - start < 1000) {
+            assertNull(extractor.readFrame());
+        }
+        assertEquals(FRAME.substring(0, 10), HexUtils.bytesToHex(extractor.discarded.get(0)));
+
+        is.add(FRAME);
+        assertArrayEquals(HexUtils.hexToBytes(FRAME), extractor.readFrame());
+    }
+
+    @Test
+    public void testFrameArrival() throws Exception {
+        ChunkedInputStream is = new ChunkedInputStream();
+        is.add(FRAME + FRAME.substring(0, 10));
+        is.add(FRAME.substring(10));
+
+        TestExtractor extractor = new TestExtractor(is, 1000);
+
+        long start = System.nanoTime();
+        assertArrayEquals(HexUtils.hexToBytes(FRAME), extractor.readFrame());
+        long firstArrival = extractor.getFrameArrival();
+        assertTrue(firstArrival >= start);
+
+        // starts in the same chunk, completed by the next one
+        assertArrayEquals(HexUtils.hexToBytes(FRAME), extractor.readFrame());
+        assertEquals(firstArrival, extractor.getFrameArrival());
+
+        is.add(FRAME);
+        long added = System.nanoTime();
+        assertArrayEquals(HexUtils.hexToBytes(FRAME), extractor.readFrame());
+        assertTrue(extractor.getFrameArrival() >= added);
+    }
+
+    private static class TestExtractor extends FrameExtractor {
+
+        private final List<byte[]> discarded = new ArrayList<>();
+
+        TestExtractor(InputStream is, int fragmentTimeout) {
+            super(new MBusTestTCPLayer(new DataInputStream(is), new DataOutputStream(new ByteArrayOutputStream())),
+                    fragmentTimeout);
+        }
+
+        @Override
+        protected int frameLength() {
+            if (buffered() < 2) {
+                return INCOMPLETE;
+            }
+            return peek(1) == 0x44 ? peek(0) + 1 : NOT_A_FRAME;
+        }
+
+        @Override
+        protected void discarded(byte[] bytes) {
+            discarded.add(bytes);
+        }
+    }
+
+    /**
+     * Returns the added chunks one after another and times out like a serial port if there is no data.
+     */
+    private static class ChunkedInputStream extends InputStream {
+
+        private final List<byte[]> chunks = new ArrayList<>();
+        private int position;
+
+        void add(String hexChunk) {
+            chunks.add(HexUtils.hexToBytes(hexChunk));
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (chunks.isEmpty()) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new InterruptedIOException("timeout");
+            }
+            byte[] chunk = chunks.get(0);
+            int b = chunk[position++] & 0xff;
+            if (position == chunk.length) {
+                chunks.remove(0);
+                position = 0;
+            }
+            return b;
+        }
+
+        @Override
+        public int available() {
+            return chunks.isEmpty() ? 0 : chunks.get(0).length - position;
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.openmuc.jmbus.wireless.TestMessages.newMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class MessageDispatcherTest {
+
+    @Test(timeout = 5000)
+    public void testBatchBySize() throws Exception {
+        BatchListener batchListener = new BatchListener();
+        MessageDispatcher dispatcher = new MessageDispatcher(batchListener, 3, 60000, 16, OverflowPolicy.BLOCK);
+        dispatcher.start();
+
+        for (int i = 0; i < 6; i++) {
+            dispatcher.newMessage(newMessage());
+        }
+
+        assertEquals(3, batchListener.batches.take().size());
+        assertEquals(3, batchListener.batches.take().size());
+        dispatcher.shutdown();
+    }
+
+    @Test(timeout = 5000)
+    public void testBatchByLatency() throws Exception {
+        BatchListener batchListener = new BatchListener();
+        MessageDispatcher dispatcher = new MessageDispatcher(batchListener, 500, 50, 16, OverflowPolicy.BLOCK);
+        dispatcher.start();
+
+        dispatcher.newMessage(newMessage());
+        dispatcher.newMessage(newMessage());
+
+        assertEquals(2, batchListener.batches.take().size());
+        dispatcher.shutdown();
+    }
+
+    @Test(timeout = 5000)
+    public void testBatchFlushedBeforeOtherEvents() throws Exception {
+        BatchListener batchListener = new BatchListener();
+        MessageDispatcher dispatcher = new MessageDispatcher(batchListener, 500, 60000, 16, OverflowPolicy.BLOCK);
+        dispatcher.start();
+
+        IOException cause = new IOException();
+        dispatcher.newMessage(newMessage());
+        dispatcher.stoppedListening(cause);
+
+        assertEquals(1, batchListener.batches.take().size());
+        assertSame(cause, batchListener.causes.poll(5, TimeUnit.SECONDS));
+        dispatcher.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void testShardedOrderPerMeter() throws Exception {
+        final int meters = 8;
+        final int messagesPerMeter = 50;
+        final Map<Long, List<Integer>> accessNumbers = new ConcurrentHashMap<>();
+        final BlockingQueue<Integer> receivedBeforeStop = new LinkedBlockingQueue<>();
+        final AtomicInteger received = new AtomicInteger();
+
+        WMBusListener listener = new WMBusListener() {
+
+            @Override
+            public void newMessage(WMBusMessage message) {
+                List<Integer> list = accessNumbers.get(message.getPackedAddress());
+                list.add(message.getAccessNumber());
+                received.incrementAndGet();
+            }
+
+            @Override
+            public void discardedBytes(byte[] bytes) {
+            }
+
+            @Override
+            public void stoppedListening(IOException cause) {
+                receivedBeforeStop.add(received.get());
+            }
+        };
+
+        MessageDispatcher dispatcher = new MessageDispatcher(listener, 4, 16, OverflowPolicy.BLOCK);
+        dispatcher.start();
+
+        for (int i = 0; i < messagesPerMeter; i++) {
+            for (int meter = 0; meter < meters; meter++) {
+                WMBusMessage message = newMessage(meter, i, 0);
+                if (i == 0) {
+                    accessNumbers.put(message.getPackedAddress(),
+                            Collections.synchronizedList(new ArrayList<Integer>()));
+                }
+                dispatcher.newMessage(message);
+            }
+        }
+        dispatcher.stoppedListening(new IOException());
+
+        assertEquals(Integer.valueOf(meters * messagesPerMeter), receivedBeforeStop.take());
+        for (List<Integer> list : accessNumbers.values()) {
+            assertEquals(messagesPerMeter, list.size());
+            for (int i = 0; i < messagesPerMeter; i++) {
+                assertEquals(Integer.valueOf(i), list.get(i));
+            }
+        }
+        dispatcher.shutdown();
+    }
+
+    private static class BatchListener implements WMBusBatchListener {
+
+        private final BlockingQueue<List<WMBusMessage>> batches = new LinkedBlockingQueue<>();
+        private final BlockingQueue<IOException> causes = new LinkedBlockingQueue<>();
+
+        @Override
+        public void newMessages(List<WMBusMessage> messages) {
+            batches.add(new ArrayList<>(messages));
+        }
+
+        @Override
+        public void discardedBytes(byte[] bytes) {
+        }
+
+        @Override
+        public void stoppedListening(IOException cause) {
+            causes.add(cause);
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.openmuc.jmbus.SecondaryAddress;
+
+public class MeterLivenessTrackerTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long START = 1000 * SECOND;
+
+    @Test
+    public void testMissingAndReturned() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        MeterLivenessTracker tracker = new MeterLivenessTracker(listener, 2, 3600000, 1000, START, null);
+        SecondaryAddress address = WMBusMessage.unpackAddress(42);
+
+        // learns an interval of 60 s
+        tracker.messageReceived(42, START, 0);
+        tracker.messageReceived(42, START + 60 * SECOND, 60000);
+        assertEquals(60000, tracker.getTransmissionInterval(address));
+
+        // two missed transmissions plus half an interval
+        tracker.advance(START + 209 * SECOND);
+        assertTrue(listener.missing.isEmpty());
+        tracker.advance(START + 211 * SECOND);
+        assertEquals(1, listener.missing.size());
+        assertEquals(address, listener.missing.get(0));
+        assertTrue(tracker.isMissing(address));
+
+        tracker.messageReceived(42, START + 600 * SECOND, 600000);
+        assertEquals(1, listener.returned.size());
+        assertFalse(tracker.isMissing(address));
+        // the outage does not count as interval
+        assertEquals(60000, tracker.getTransmissionInterval(address));
+
+        tracker.remove(address);
+        tracker.advance(START + 10000 * SECOND);
+        assertEquals(1, listener.missing.size());
+        assertEquals(0, tracker.size());
+    }
+
+    @Test
+    public void testInitialTimeoutAndCopies() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        MeterLivenessTracker tracker = new MeterLivenessTracker(listener, 1, 3600000, 1000, START, null);
+        SecondaryAddress address = WMBusMessage.unpackAddress(7);
+
+        tracker.messageReceived(7, START, 0);
+        // a copy received by another stick
+        tracker.messageReceived(7, START + 1000, 0);
+        assertEquals(-1, tracker.getTransmissionInterval(address));
+
+        tracker.advance(START + 3599 * SECOND);
+        assertTrue(listener.missing.isEmpty());
+        tracker.advance(START + 3601 * SECOND);
+        assertEquals(1, listener.missing.size());
+    }
+
+    @Test
+    public void testManyMeters() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        MeterLivenessTracker tracker = new MeterLivenessTracker(listener, 1, 3600000, 1000, START, null);
+
+        // meters transmitting between every 10 s and once a day
+        int meters = 10000;
+        for (int meter = 0; meter < meters; meter++) {
+            long interval = (10 + meter * 9) * SECOND;
+            tracker.messageReceived(meter, START, 0);
+            tracker.messageReceived(meter, START + interval, 0);
+        }
+        assertEquals(meters, tracker.size());
+
+        for (long second = 0; second <= 250000; second += 100) {
+            tracker.advance(START + second * SECOND);
+        }
+        assertEquals(meters, listener.missing.size());
+    }
+
+    private static class RecordingListener implements MissingMeterListener {
+
+        private final List<SecondaryAddress> missing = new ArrayList<>();
+        private final List<SecondaryAddress> returned = new ArrayList<>();
+
+        @Override
+        public void meterMissing(SecondaryAddress address, long lastSeen) {
+            missing.add(address);
+        }
+
+        @Override
+        public void meterReturned(SecondaryAddress address, long lastSeen) {
+            returned.add(address);
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.openmuc.jmbus.wireless.TestMessages.newMessage;
+
+
+import org.junit.Test;
+
+public class ReceptionStatisticsTest {
+
+    @Test
+    public void testMeterStatistics() throws Exception {
+        ReceptionStatistics statistics = new ReceptionStatistics();
+
+        statistics.record(newMessage(0, 0xfe, -80));
+        statistics.record(newMessage(0, 0xfe, -75));
+        // 0xff and 0x00 are lost
+        statistics.record(newMessage(0, 0x01, -70));
+        statistics.record(newMessage(0, 0x02, null));
+        statistics.recordDecryptionFailure(newMessage(0, 0x02, null));
+
+        WMBusMessage message = newMessage(0, 0x02, null);
+        MeterStatistics meterStatistics = statistics.getStatistics(message.getSecondaryAddress());
+
+        assertEquals(message.getSecondaryAddress(), meterStatistics.getSecondaryAddress());
+        assertEquals(3, meterStatistics.getMessageCount());
+        assertEquals(1, meterStatistics.getDuplicateCount());
+        assertEquals(2, meterStatistics.getLostCount());
+        assertEquals(1, meterStatistics.getDecryptionFailureCount());
+        assertEquals(Integer.valueOf(-80), meterStatistics.getMinRssi());
+        assertEquals(Integer.valueOf(-70), meterStatistics.getMaxRssi());
+        assertEquals(-75.0, meterStatistics.getAverageRssi(), 0.001);
+
+        assertNull(statistics.getStatistics(newMessage(1, 0, null).getSecondaryAddress()));
+    }
+
+    @Test
+    public void testManyMeters() throws Exception {
+        ReceptionStatistics statistics = new ReceptionStatistics();
+        for (int meter = 0; meter < 1000; meter++) {
+            statistics.record(newMessage(meter, 1, -80));
+            statistics.record(newMessage(meter, 2, -80));
+        }
+
+        assertEquals(1000, statistics.size());
+        assertEquals(1000, statistics.snapshot().size());
+        for (MeterStatistics meterStatistics : statistics.snapshot()) {
+            assertEquals(2, meterStatistics.getMessageCount());
+        }
+
+        statistics.clear();
+        assertEquals(0, statistics.size());
+    }
+
+}
@@ -0,0 +1,79 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.openmuc.jmbus.HexUtils;
+
+public class RetransmissionFilterTest {
+
+    private static final byte[] TEST_MESSAGE = HexUtils
+            .hexToBytes("2C446532821851582C067AE1000000046D1906D9180C1334120000426CBF1C4C1300000000326CFFFF01FD7300");
+
+    @Test
+    public void testRetransmission() throws Exception {
+        RetransmissionFilter filter = new RetransmissionFilter();
+
+        assertFalse(filter.isRetransmission(newTelegram(0, 1, 0)));
+        assertTrue(filter.isRetransmission(newTelegram(0, 1, 0)));
+        assertTrue(filter.isRetransmission(newTelegram(0, 1, 0)));
+
+        // same access number, different payload
+        assertFalse(filter.isRetransmission(newTelegram(0, 1, 1)));
+        // next access number
+        assertFalse(filter.isRetransmission(newTelegram(0, 2, 1)));
+        // another meter
+        assertFalse(filter.isRetransmission(newTelegram(1, 2, 1)));
+
+        assertEquals(2, filter.getSuppressedCount());
+        assertEquals(2, filter.size());
+    }
+
+    @Test
+    public void testWithoutAccessNumber() throws Exception {
+        RetransmissionFilter filter = new RetransmissionFilter();
+        byte[] telegram = newTelegram(0, 1, 0);
+        // no header
+        telegram[10] = 0x78;
+
+        assertFalse(filter.isRetransmission(telegram));
+        assertFalse(filter.isRetransmission(telegram));
+        assertFalse(filter.isRetransmission(new byte[] { 0x05, 0x44, 0x00, 0x00, 0x00, 0x00 }));
+        assertEquals(0, filter.getSuppressedCount());
+    }
+
+    @Test
+    public void testManyMeters() throws Exception {
+        RetransmissionFilter filter = new RetransmissionFilter();
+        for (int meter = 0; meter < 10000; meter++) {
+            assertFalse(filter.isRetransmission(newTelegram(meter, 1, 0)));
+        }
+        for (int meter = 0; meter < 10000; meter++) {
+            assertTrue(filter.isRetransmission(newTelegram(meter, 1, 0)));
+        }
+
+        assertEquals(10000, filter.size());
+        assertEquals(10000, filter.getSuppressedCount());
+
+        filter.clear();
+        assertEquals(0, filter.size());
+        assertFalse(filter.isRetransmission(newTelegram(0, 1, 0)));
+    }
+
+    private static byte[] newTelegram(int meter, int accessNumber, int value) {
+        byte[] buffer = TEST_MESSAGE.clone();
+        buffer[4] = (byte) meter;
+        buffer[5] = (byte) (meter >> 8);
+        buffer[11] = (byte) accessNumber;
+        buffer[25] = (byte) value;
+        return buffer;
+    }
+
+}
@@ -0,0 +1,87 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+    @Test
+    public void testDropNewest() throws Exception {
+        RingBuffer<Integer> ringBuffer = fill(OverflowPolicy.DROP_NEWEST);
+
+        assertFalse(ringBuffer.put(4));
+        assertEquals(1, ringBuffer.getDroppedCount());
+        assertEquals(3, ringBuffer.size());
+
+        assertEquals(Integer.valueOf(1), ringBuffer.take());
+        assertEquals(Integer.valueOf(2), ringBuffer.take());
+        assertEquals(Integer.valueOf(3), ringBuffer.take());
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        RingBuffer<Integer> ringBuffer = fill(OverflowPolicy.DROP_OLDEST);
+
+        assertTrue(ringBuffer.put(4));
+        assertTrue(ringBuffer.put(5));
+        assertEquals(2, ringBuffer.getDroppedCount());
+        assertEquals(3, ringBuffer.size());
+
+        assertEquals(Integer.valueOf(3), ringBuffer.take());
+        assertEquals(Integer.valueOf(4), ringBuffer.take());
+        assertEquals(Integer.valueOf(5), ringBuffer.take());
+    }
+
+    @Test(timeout = 5000)
+    public void testBlock() throws Exception {
+        final RingBuffer<Integer> ringBuffer = fill(OverflowPolicy.BLOCK);
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ringBuffer.put(4);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        producer.start();
+
+        assertEquals(Integer.valueOf(1), ringBuffer.take());
+        producer.join();
+
+        assertEquals(0, ringBuffer.getDroppedCount());
+        assertEquals(3, ringBuffer.size());
+    }
+
+    @Test
+    public void testCloseDrainsBuffer() throws Exception {
+        RingBuffer<Integer> ringBuffer = fill(OverflowPolicy.BLOCK);
+        ringBuffer.close();
+
+        assertFalse(ringBuffer.put(4));
+        assertEquals(Integer.valueOf(1), ringBuffer.take());
+        assertEquals(Integer.valueOf(2), ringBuffer.take());
+        assertEquals(Integer.valueOf(3), ringBuffer.take());
+        assertNull(ringBuffer.take());
+    }
+
+    private static RingBuffer<Integer> fill(OverflowPolicy overflowPolicy) throws InterruptedException {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>(3, overflowPolicy);
+        for (int i = 1; i <= 3; i++) {
+            assertTrue(ringBuffer.put(i));
+        }
+        return ringBuffer;
+    }
+
+}
@@ -0,0 +1,174 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.openmuc.jmbus.TestAddresses.newWMBusAddress;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmuc.jmbus.EncryptionMode;
+import org.openmuc.jmbus.SecondaryAddress;
+import org.openmuc.jmbus.SimulatedWMBusMeter;
+import org.openmuc.jmbus.SimulatedWMBusMeter.Format;
+import org.openmuc.jmbus.UndecryptableMeterCache;
+import org.openmuc.jmbus.VariableDataStructure;
+import org.openmuc.jmbus.VariableDataStructure.DecodingOutcome;
+import org.openmuc.jmbus.wireless.WMBusConnection.WMBusManufacturer;
+import org.openmuc.jmbus.wireless.WMBusConnection.WMBusSimulatedBuilder;
+
+import junitparams.JUnitParamsRunner;
+import junitparams.Parameters;
+
+@RunWith(JUnitParamsRunner.class)
+public class SimulatedWMBusStickTest {
+
+    private static final byte[] KEY = { 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b, 0x0c, 0x0d,
+            0x0e, 0x0f, 0x10 };
+
+    public Object testManufacturers() {
+        return WMBusManufacturer.values();
+    }
+
+    @Test(timeout = 10000)
+    @Parameters(method = "testManufacturers")
+    public void testAllFormatsDecoded(WMBusManufacturer manufacturer) throws Exception {
+        SimulatedWMBusStick stick = new SimulatedWMBusStick(manufacturer, 0).setTelegramRate(1000);
+        int id = 0x10;
+        for (Format format : Format.values()) {
+            stick.addMeter(new SimulatedWMBusMeter(newWMBusAddress(id++), format, KEY));
+        }
+
+        Listener listener = new Listener();
+        WMBusConnection connection = new WMBusSimulatedBuilder(stick, listener).build();
+        for (SimulatedWMBusMeter meter : stick.getMeters()) {
+            connection.addKey(meter.getSecondaryAddress(), KEY);
+        }
+
+        Set<EncryptionMode> encryptionModes = EnumSet.noneOf(EncryptionMode.class);
+        Set<SecondaryAddress> addresses = new HashSet<>();
+        try {
+            for (int i = 0; i < 40; i++) {
+                WMBusMessage message = listener.messages.take();
+                VariableDataStructure vds = message.getVariableDataResponse();
+                vds.decode();
+
+                assertEquals(2, vds.getDataRecords().size());
+                encryptionModes.add(message.getEncryptionMode());
+                addresses.add(message.getSecondaryAddress());
+            }
+        } finally {
+            connection.close();
+        }
+
+        assertEquals(4, addresses.size());
+        assertEquals(EnumSet.of(EncryptionMode.NONE, EncryptionMode.AES_CBC_IV, EncryptionMode.AES_128),
+                encryptionModes);
+        assertEquals(0, listener.discarded.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testKeyAddedAfterNoKey() throws Exception {
+        SimulatedWMBusStick stick = new SimulatedWMBusStick(WMBusManufacturer.AMBER, 0).setTelegramRate(1000);
+        SimulatedWMBusMeter meter = new SimulatedWMBusMeter(newWMBusAddress(0x10), Format.AES_MODE_5, KEY);
+        stick.addMeter(meter);
+
+        UndecryptableMeterCache cache = new UndecryptableMeterCache(60000, 60000);
+        ReceptionStatistics statistics = new ReceptionStatistics();
+        Listener listener = new Listener();
+        WMBusConnection connection = new WMBusSimulatedBuilder(stick, listener)
+                .setSettings(new WMBusConnectionSettings().setUndecryptableMeterCache(cache)
+                        .setReceptionStatistics(statistics))
+                .build();
+
+        try {
+            assertEquals(DecodingOutcome.NO_KEY, listener.messages.take().decodeVariableDataResponse());
+            assertEquals(DecodingOutcome.SKIPPED, listener.messages.take().decodeVariableDataResponse());
+
+            connection.addKey(meter.getSecondaryAddress(), KEY);
+            assertFalse(cache.isUndecryptable(meter.getSecondaryAddress()));
+            assertEquals(DecodingOutcome.DECODED, listener.messages.take().decodeVariableDataResponse());
+        } finally {
+            connection.close();
+        }
+
+        MeterStatistics meterStatistics = statistics.getStatistics(meter.getSecondaryAddress());
+        assertEquals(2, meterStatistics.getDecryptionFailureCount());
+        assertEquals(0, meterStatistics.getDecodingFailureCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidQueueCapacityRejected() throws Exception {
+        SimulatedWMBusStick stick = new SimulatedWMBusStick(WMBusManufacturer.AMBER, 0);
+        try {
+            new WMBusSimulatedBuilder(stick, new Listener())
+                    .setSettings(new WMBusConnectionSettings().setQueueCapacity(0));
+        } finally {
+            assertTrue(stick.isClosed());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testFaultsInjected() throws Exception {
+        SimulatedWMBusStick stick = new SimulatedWMBusStick(WMBusManufacturer.AMBER, 0).setTelegramRate(2000)
+                .setNoiseRate(0.2)
+                .setTruncationRate(0.1)
+                .setDuplicateRate(0.2);
+        for (int id = 0; id < 10; id++) {
+            stick.addMeter(new SimulatedWMBusMeter(newWMBusAddress(id), Format.PLAIN, null));
+        }
+
+        Listener listener = new Listener();
+        WMBusConnection connection = new WMBusSimulatedBuilder(stick, listener).build();
+
+        Set<String> telegrams = new HashSet<>();
+        int duplicates = 0;
+        try {
+            for (int i = 0; i < 200; i++) {
+                WMBusMessage message = listener.messages.take();
+                if (!telegrams.add(message.getSecondaryAddress() + "/" + message.getAccessNumber())) {
+                    duplicates++;
+                }
+            }
+        } finally {
+            connection.close();
+        }
+
+        assertTrue(duplicates > 0);
+        assertTrue(listener.discarded.get() > 0);
+    }
+
+    private static class Listener implements WMBusListener {
+
+        private final BlockingQueue<WMBusMessage> messages = new LinkedBlockingQueue<>();
+        private final AtomicInteger discarded = new AtomicInteger();
+
+        @Override
+        public void newMessage(WMBusMessage message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void discardedBytes(byte[] bytes) {
+            discarded.incrementAndGet();
+        }
+
+        @Override
+        public void stoppedListening(IOException cause) {
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.openmuc.jmbus.wireless.TestMessages.TEST_MESSAGE;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+import org.openmuc.jmbus.SecondaryAddress;
+
+public class TelegramBufferPoolTest {
+
+    @Test
+    public void testRecycleByLength() throws Exception {
+        TelegramBufferPool pool = new TelegramBufferPool(1);
+
+        byte[] buffer = pool.acquire(45);
+        assertEquals(45, buffer.length);
+        pool.recycle(buffer);
+
+        assertNotSame(buffer, pool.acquire(46));
+        assertSame(buffer, pool.acquire(45));
+        assertEquals(2, pool.getAllocatedCount());
+
+        // only one free buffer per length is kept
+        pool.recycle(buffer);
+        pool.recycle(new byte[45]);
+        assertSame(buffer, pool.acquire(45));
+    }
+
+    @Test
+    public void testMessageRelease() throws Exception {
+        TelegramBufferPool pool = new TelegramBufferPool();
+        byte[] buffer = pool.acquire(TEST_MESSAGE.length);
+        System.arraycopy(TEST_MESSAGE, 0, buffer, 0, buffer.length);
+
+        WMBusMessage message = WMBusMessage.decode(buffer, null, System.nanoTime(), null,
+                new HashMap<SecondaryAddress, byte[]>(), pool);
+        message.retain();
+        message.getVariableDataResponse().decode();
+
+        message.release();
+        assertNotSame(buffer, pool.acquire(buffer.length));
+
+        message.release();
+        assertSame(buffer, pool.acquire(buffer.length));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUseAfterRelease() throws Exception {
+        TelegramBufferPool pool = new TelegramBufferPool();
+        WMBusMessage message = WMBusMessage.decode(TEST_MESSAGE.clone(), null, System.nanoTime(), null,
+                new HashMap<SecondaryAddress, byte[]>(), pool);
+
+        message.release();
+        message.getVariableDataResponse();
+    }
+
+    @Test
+    public void testReleaseUnpooled() throws Exception {
+        WMBusMessage message = WMBusMessage.decode(TEST_MESSAGE.clone(), null,
+                new HashMap<SecondaryAddress, byte[]>());
+
+        message.release();
+        message.release();
+        message.getVariableDataResponse().decode();
+    }
+
+}
@@ -0,0 +1,40 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import java.util.HashMap;
+
+import org.openmuc.jmbus.DecodingException;
+import org.openmuc.jmbus.HexUtils;
+import org.openmuc.jmbus.SecondaryAddress;
+
+/**
+ * Unencrypted wireless M-Bus messages of a meter with short header.
+ */
+final class TestMessages {
+
+    static final byte[] TEST_MESSAGE = HexUtils
+            .hexToBytes("2C446532821851582C067AE1000000046D1906D9180C1334120000426CBF1C4C1300000000326CFFFF01FD7300");
+
+    private TestMessages() {
+    }
+
+    static WMBusMessage newMessage() throws DecodingException {
+        return WMBusMessage.decode(TEST_MESSAGE.clone(), 0, new HashMap<SecondaryAddress, byte[]>());
+    }
+
+    /*
+     * The meter is encoded in the device ID, so that every meter has a different link layer address.
+     */
+    static WMBusMessage newMessage(int meter, int accessNumber, Integer rssi) throws DecodingException {
+        byte[] buffer = TEST_MESSAGE.clone();
+        buffer[4] = (byte) meter;
+        buffer[5] = (byte) (meter >> 8);
+        buffer[11] = (byte) accessNumber;
+        return WMBusMessage.decode(buffer, rssi, new HashMap<SecondaryAddress, byte[]>());
+    }
+
+}
@@ -0,0 +1,125 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.openmuc.jmbus.TestAddresses.newWMBusAddress;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmuc.jmbus.SecondaryAddress;
+import org.openmuc.jmbus.SimulatedWMBusMeter;
+import org.openmuc.jmbus.SimulatedWMBusMeter.Format;
+import org.openmuc.jmbus.VariableDataStructure;
+import org.openmuc.jmbus.wireless.WMBusConnection.WMBusManufacturer;
+import org.openmuc.jmbus.wireless.WMBusConnection.WMBusSimulatedBuilder;
+import org.openmuc.jmbus.wireless.WMBusConnection.WMBusTcpBuilder;
+
+import junitparams.JUnitParamsRunner;
+import junitparams.Parameters;
+
+@RunWith(JUnitParamsRunner.class)
+public class WMBusGatewayServerTest {
+
+    private static WMBusGatewayServer openServer(WMBusManufacturer manufacturer, double telegramRate,
+            int queueCapacity) throws IOException {
+        SimulatedWMBusStick stick = new SimulatedWMBusStick(WMBusManufacturer.IMST, 0).setTelegramRate(telegramRate);
+        for (int id = 0; id < 3; id++) {
+            stick.addMeter(new SimulatedWMBusMeter(newWMBusAddress(id), Format.PLAIN, null));
+        }
+
+        WMBusGatewayServer server = new WMBusGatewayServer(0, manufacturer).setQueueCapacity(queueCapacity);
+        server.open(new WMBusSimulatedBuilder(stick, server).build());
+        return server;
+    }
+
+    public Object testManufacturers() {
+        return WMBusManufacturer.values();
+    }
+
+    @Test(timeout = 10000)
+    @Parameters(method = "testManufacturers")
+    public void testClientsReceiveTelegrams(WMBusManufacturer manufacturer) throws Exception {
+        WMBusGatewayServer server = openServer(manufacturer, 200, 256);
+        Listener listener1 = new Listener();
+        Listener listener2 = new Listener();
+        try {
+            WMBusConnection client1 = new WMBusTcpBuilder(manufacturer, listener1, "localhost",
+                    server.getLocalPort()).build();
+            WMBusConnection client2 = new WMBusTcpBuilder(manufacturer, listener2, "localhost",
+                    server.getLocalPort()).build();
+            try {
+                for (Listener listener : new Listener[] { listener1, listener2 }) {
+                    Set<SecondaryAddress> addresses = new HashSet<>();
+                    for (int i = 0; i < 20; i++) {
+                        WMBusMessage message = listener.messages.take();
+                        VariableDataStructure vds = message.getVariableDataResponse();
+                        vds.decode();
+                        assertEquals(2, vds.getDataRecords().size());
+                        assertNotNull(message.getRssi());
+                        addresses.add(message.getSecondaryAddress());
+                    }
+                    assertEquals(3, addresses.size());
+                }
+                assertEquals(2, server.getNumberOfClients());
+            } finally {
+                client1.close();
+                client2.close();
+            }
+        } finally {
+            server.close();
+        }
+        assertEquals(0, server.getNumberOfEvictions());
+    }
+
+    @Test(timeout = 20000)
+    public void testSlowClientEvicted() throws Exception {
+        WMBusGatewayServer server = openServer(WMBusManufacturer.RADIO_CRAFTS, 20000, 16);
+        Socket socket = new Socket();
+        try {
+            socket.setReceiveBufferSize(1024);
+            socket.connect(new InetSocketAddress("localhost", server.getLocalPort()));
+            // leave the config mode of the stick, then never read
+            socket.getOutputStream().write(new byte[] { 0x00, 0x58 });
+
+            while (server.getNumberOfEvictions() == 0) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, server.getNumberOfClients());
+        } finally {
+            socket.close();
+            server.close();
+        }
+    }
+
+    private static class Listener implements WMBusListener {
+
+        private final BlockingQueue<WMBusMessage> messages = new LinkedBlockingQueue<>();
+
+        @Override
+        public void newMessage(WMBusMessage message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void discardedBytes(byte[] bytes) {
+        }
+
+        @Override
+        public void stoppedListening(IOException cause) {
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmuc.jmbus.EncryptionMode;
+import org.openmuc.jmbus.HexUtils;
+import org.openmuc.jmbus.SecondaryAddress;
+
+import junitparams.JUnitParamsRunner;
+import junitparams.Parameters;
+
+@RunWith(JUnitParamsRunner.class)
+public class WMBusMessageHeaderTest {
+
+    public Object[] headerParams() {
+        Object[] shortHeader = { "2C44A7320613996707047A2A1000202F2F0C06000000000C14000000000C22381701000B5A1702000B"
+                + "5E1702006E", 0x7a, 0x2a, 0x10, EncryptionMode.NONE };
+        Object[] longHeader = { "2644333003000000011B72030000003330011B542000002F2F02FD1701002F2F2F2F2F2F2F2F2F80",
+                0x72, 0x54, 0x20, EncryptionMode.NONE };
+        Object[] extendedLinkLayer = { "24442D2C692845631B168D3050209CD621B006B1140AEF4953AE5B86FAFC0B00E70705B84689",
+                0x8d, 0x50, -1, EncryptionMode.AES_128 };
+        return new Object[] { shortHeader, longHeader, extendedLinkLayer };
+    }
+
+    @Test
+    @Parameters(method = "headerParams")
+    public void testHeaderFields(String hexMessage, int ciField, int accessNumber, int status,
+            EncryptionMode encryptionMode) throws Exception {
+        byte[] buffer = HexUtils.hexToBytes(hexMessage);
+        WMBusMessage message = WMBusMessage.decode(buffer, null, new HashMap<SecondaryAddress, byte[]>());
+
+        assertEquals(0x44, message.getControlField());
+        assertEquals(ciField, message.getCiField());
+        assertEquals(accessNumber, message.getAccessNumber());
+        assertEquals(status, message.getStatus());
+        assertEquals(encryptionMode, message.getEncryptionMode());
+
+        SecondaryAddress address = message.getSecondaryAddress();
+        assertEquals(WMBusMessage.packAddress(address.asByteArray(), 0), message.getPackedAddress());
+    }
+
+}
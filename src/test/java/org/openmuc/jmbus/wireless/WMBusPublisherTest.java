@@ -0,0 +1,106 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.openmuc.jmbus.wireless.TestMessages.newMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class WMBusPublisherTest {
+
+    @Test
+    public void testDemandHonoured() throws Exception {
+        WMBusPublisher publisher = new WMBusPublisher(16, OverflowPolicy.BLOCK);
+        Subscriber subscriber = new Subscriber();
+        publisher.subscribe(subscriber);
+
+        subscriber.subscription.request(2);
+        for (int i = 0; i < 3; i++) {
+            publisher.newMessage(newMessage());
+        }
+        assertEquals(2, subscriber.messages.size());
+        assertEquals(1, publisher.getBufferedCount());
+
+        IOException cause = new IOException();
+        publisher.stoppedListening(cause);
+        assertNull(subscriber.error);
+
+        subscriber.subscription.request(5);
+        assertEquals(3, subscriber.messages.size());
+        assertSame(cause, subscriber.error);
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        WMBusPublisher publisher = new WMBusPublisher(2, OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 5; i++) {
+            publisher.newMessage(newMessage());
+        }
+        assertEquals(3, publisher.getDroppedCount());
+
+        Subscriber subscriber = new Subscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        publisher.complete();
+
+        assertEquals(2, subscriber.messages.size());
+        assertTrue(subscriber.completed);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        WMBusPublisher publisher = new WMBusPublisher(16, OverflowPolicy.BLOCK);
+        Subscriber subscriber = new Subscriber();
+        publisher.subscribe(subscriber);
+
+        subscriber.subscription.request(10);
+        publisher.newMessage(newMessage());
+        subscriber.subscription.cancel();
+        publisher.newMessage(newMessage());
+        publisher.complete();
+
+        assertEquals(1, subscriber.messages.size());
+        assertFalse(subscriber.completed);
+    }
+
+    private static class Subscriber implements WMBusSubscriber {
+
+        private final List<WMBusMessage> messages = new ArrayList<>();
+        private WMBusSubscription subscription;
+        private Throwable error;
+        private boolean completed;
+
+        @Override
+        public void onSubscribe(WMBusSubscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(WMBusMessage message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void onError(Throwable cause) {
+            error = cause;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmuc.jmbus.wireless;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.openmuc.jmbus.HexUtils;
+import org.openmuc.jmbus.SecondaryAddress;
+import org.openmuc.jmbus.wireless.WMBusConnection.WMBusManufacturer;
+import org.openmuc.jmbus.wireless.WMBusConnection.WMBusSimulatedBuilder;
+
+public class WMBusReceiverGroupTest {
+
+    private static final String TEST_MESSAGE = "2C446532821851582C067AE1000000046D1906D9180C1334120000426CBF1C4C130000"
+            + "0000326CFFFF01FD7300";
+
+    @Test(timeout = 5000)
+    public void testDuplicatesDropped() throws Exception {
+        Listener listener = new Listener();
+        WMBusReceiverGroup group = new WMBusReceiverGroup(listener, 10000, 0);
+
+        group.newMessage(newMessage(TEST_MESSAGE, -80));
+        group.newMessage(newMessage(TEST_MESSAGE, -70));
+        group.newMessage(newMessage(TEST_MESSAGE, -90));
+
+        assertEquals(Integer.valueOf(-80), listener.messages.take().getRssi());
+        assertNull(listener.messages.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(2, group.getDuplicateCount());
+        group.close();
+    }
+
+    @Test(timeout = 5000)
+    public void testBestRssiDelivered() throws Exception {
+        Listener listener = new Listener();
+        WMBusReceiverGroup group = new WMBusReceiverGroup(listener, 10000, 100);
+
+        group.newMessage(newMessage(TEST_MESSAGE, -80));
+        group.newMessage(newMessage(TEST_MESSAGE, -70));
+        group.newMessage(newMessage(TEST_MESSAGE, -90));
+
+        assertEquals(Integer.valueOf(-70), listener.messages.take().getRssi());
+        assertNull(listener.messages.poll(200, TimeUnit.MILLISECONDS));
+        group.close();
+    }
+
+    @Test(timeout = 5000)
+    public void testNewAccessNumberDelivered() throws Exception {
+        Listener listener = new Listener();
+        WMBusReceiverGroup group = new WMBusReceiverGroup(listener, 10000, 0);
+
+        // the access number follows the CI field 0x7A
+        String nextTelegram = TEST_MESSAGE.replace("7AE1", "7AE2");
+        group.newMessage(newMessage(TEST_MESSAGE, -80));
+        group.newMessage(newMessage(nextTelegram, -80));
+
+        listener.messages.take();
+        listener.messages.take();
+        assertEquals(0, group.getDuplicateCount());
+        group.close();
+    }
+
+    @Test(timeout = 5000)
+    public void testStoppedWhenLastConnectionStopped() throws Exception {
+        Listener listener = new Listener();
+        WMBusReceiverGroup group = new WMBusReceiverGroup(listener, 10000, 0);
+        SimulatedWMBusStick firstStick = new SimulatedWMBusStick(WMBusManufacturer.AMBER, 0);
+        SimulatedWMBusStick secondStick = new SimulatedWMBusStick(WMBusManufacturer.AMBER, 1);
+        group.addConnection(new WMBusSimulatedBuilder(firstStick, group).build());
+        group.addConnection(new WMBusSimulatedBuilder(secondStick, group).build());
+        // not listened to by the group, never stops it
+        group.addConnection(new Member());
+
+        firstStick.close();
+        assertNull(listener.stopped.poll(200, TimeUnit.MILLISECONDS));
+
+        secondStick.close();
+        assertNotNull(listener.stopped.take());
+        group.close();
+    }
+
+    private static WMBusMessage newMessage(String hexMessage, int rssi) throws Exception {
+        return WMBusMessage.decode(HexUtils.hexToBytes(hexMessage), rssi, new HashMap<SecondaryAddress, byte[]>());
+    }
+
+    private static class Listener implements WMBusListener {
+
+        private final BlockingQueue<WMBusMessage> messages = new LinkedBlockingQueue<>();
+        private final BlockingQueue<IOException> stopped = new LinkedBlockingQueue<>();
+
+        @Override
+        public void newMessage(WMBusMessage message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void discardedBytes(byte[] bytes) {
+        }
+
+        @Override
+        public void stoppedListening(IOException cause) {
+            stopped.add(cause);
+        }
+    }
+
+    private static class Member implements WMBusConnection {
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void addKey(SecondaryAddress address, byte[] key) {
+        }
+
+        @Override
+        public void removeKey(SecondaryAddress address) {
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return 0;
+        }
+
+        @Override
+        public long getDroppedCount() {
+            return 0;
+        }
+
+        @Override
+        public void setAddressFilter(AddressFilter filter) {
+        }
+    }
+
+}